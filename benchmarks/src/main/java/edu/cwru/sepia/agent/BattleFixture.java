@@ -0,0 +1,134 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.PlayerState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+
+import java.util.Random;
+
+/**
+ * A synthetic N-vs-N footman battle in the middle of an episode, for driving RLAgent's hot paths without running
+ * the SEPIA engine.
+ *
+ * Your footmen stand at random positions in the left half of the map and the enemy footmen in the right half.
+ * The previous turn's history has every footman on both sides ordered to attack a random enemy, a completed
+ * action for every other one of your footmen, so that the agent sees an event, and one damage log per footman.
+ * Nobody has died, so running a decision turn on the fixture leaves the unit lists unchanged and it can be
+ * repeated.
+ */
+class BattleFixture {
+
+	// The footman template from data/rl_5fv5f.xml
+	private static final int FOOTMAN_HP = 60;
+
+	final int size;
+	final State state;
+	final History history;
+	final State.StateView stateView;
+	final History.HistoryView historyView;
+	final int[] allyIds;
+	final int[] enemyIds;
+
+	/**
+	 * @param size Footmen per side
+	 * @param seed Seed for positions, health and orders
+	 */
+	BattleFixture(int size, long seed) {
+		this.size = size;
+		Random random = new Random(seed);
+
+		// Leave the map about a quarter full
+		int extent = Math.max(25, (int) Math.ceil(Math.sqrt(size * 8.0)));
+		int turn = 10;
+
+		State.StateBuilder builder = new State.StateBuilder();
+		builder.setSize(extent, extent);
+		builder.setTurn(turn - 1);
+
+		allyIds = new int[size];
+		enemyIds = new int[size];
+		int nextId = 0;
+		Unit[][] units = new Unit[2][size];
+		for (int player = 0; player < 2; player++) {
+			PlayerState playerState = new PlayerState(player);
+			UnitTemplate footman = footmanTemplate(100 + player, player);
+			playerState.addTemplate(footman);
+
+			int minX = player == 0 ? 0 : extent / 2;
+			for (int i = 0; i < size; i++) {
+				Unit unit = new Unit(footman, nextId);
+				int x;
+				int y;
+				do {
+					x = minX + random.nextInt(extent / 2);
+					y = random.nextInt(extent);
+				} while (!builder.positionAvailable(x, y));
+				unit.setHP(1 + random.nextInt(FOOTMAN_HP));
+				builder.addUnit(unit, x, y);
+				playerState.addUnit(unit);
+				units[player][i] = unit;
+				(player == 0 ? allyIds : enemyIds)[i] = nextId++;
+			}
+			builder.addPlayer(playerState);
+		}
+		builder.setIDDistributerTargetMax(nextId);
+		builder.setIDDistributerTemplateMax(200);
+		state = builder.build();
+		state.updateGlobalListsFromPlayers();
+
+		history = new History();
+		history.addPlayer(0);
+		history.addPlayer(1);
+		int lastTurn = turn - 1;
+		for (int i = 0; i < size; i++) {
+			int allyTarget = random.nextInt(size);
+			Action allyAction = Action.createCompoundAttack(allyIds[i], enemyIds[allyTarget]);
+			history.recordCommandRecieved(0, lastTurn, allyIds[i], allyAction);
+			history.recordCommandFeedback(0, lastTurn,
+					new ActionResult(allyAction, i % 2 == 0 ? ActionFeedback.COMPLETED : ActionFeedback.INCOMPLETE));
+			history.recordDamage(units[0][i], units[1][allyTarget], 1 + random.nextInt(9), state);
+
+			int enemyTarget = random.nextInt(size);
+			Action enemyAction = Action.createCompoundAttack(enemyIds[i], allyIds[enemyTarget]);
+			history.recordCommandRecieved(1, lastTurn, enemyIds[i], enemyAction);
+			history.recordDamage(units[1][i], units[0][enemyTarget], 1 + random.nextInt(9), state);
+		}
+		state.incrementTurn();
+
+		stateView = state.getView(0);
+		historyView = history.getView(0);
+	}
+
+	/**
+	 * @return A learning agent that has seen the fixture's turn, so its snapshot and Q-matrix are built.
+	 */
+	RLAgent newAgent() {
+		RLAgent agent = new RLAgent(0, new String[] { "1000000", "false" });
+		agent.setExitOnCompletion(false);
+		agent.setWeightSaving(false);
+		agent.initialStep(stateView, historyView);
+		return agent;
+	}
+
+	private static UnitTemplate footmanTemplate(int id, int player) {
+		UnitTemplate footman = new UnitTemplate(id);
+		footman.setName("Footman");
+		footman.setBaseHealth(FOOTMAN_HP);
+		footman.setBasicAttack(6);
+		footman.setPiercingAttack(3);
+		footman.setRange(1);
+		footman.setArmor(2);
+		footman.setSightRange(4);
+		footman.setCanMove(true);
+		footman.setCharacter('f');
+		footman.setDurationMove(1);
+		footman.setDurationAttack(1);
+		footman.setPlayer(player);
+		return footman;
+	}
+}
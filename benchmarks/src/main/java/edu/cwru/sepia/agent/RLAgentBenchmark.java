@@ -0,0 +1,136 @@
+package edu.cwru.sepia.agent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks for RLAgent's hot paths on synthetic battles of 5v5 up to 200v200, see {@link BattleFixture}.
+ *
+ * - calcQValue and calculateFeatureVector evaluate a single (footman, enemy) pair, on an agent that has seen the
+ *   fixture's turn, so its snapshot, targeting index and enemy grid are filled
+ * - accumulateRewards runs the per-turn reward pass, from RewardAccumulator.reset, that RLAgent.calculateReward is
+ *   answered from. calculateReward itself is only a lookup once the pass is done for the turn.
+ * - middleStep runs a whole learning decision turn: rewards, snapshot, targeting, ranks, Q-matrix and weight updates
+ *
+ * Every middleStep invocation starts from the same point, a fresh episode with the trial's initial weights, see
+ * {@link FreshEpisode}. Otherwise the weight updates of one invocation would feed the next until they diverge, and
+ * the reward pass would be skipped as already done for the turn. The reset runs outside the timed section but its
+ * allocations are still counted by the gc profiler, so only middleStep pays for them.
+ *
+ * Run main to get ns/op together with the gc profiler's allocation rate, or pass the usual JMH options to
+ * org.openjdk.jmh.Main.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RLAgentBenchmark {
+
+	@Param({ "5", "10", "50", "200" })
+	public int size;
+
+	private BattleFixture fixture;
+	private RLAgent agent;
+	private int attackerId;
+	private int defenderId;
+
+	private RewardAccumulator rewards;
+	private List<Integer> roster;
+	private Set<Integer> eliminatedEnemyFootmen;
+	private int lastTurn;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = new BattleFixture(size, 42);
+		agent = fixture.newAgent();
+		attackerId = fixture.allyIds[0];
+		defenderId = fixture.enemyIds[size - 1];
+
+		rewards = new RewardAccumulator(0, RLAgent.ENEMY_PLAYERNUM);
+		roster = new ArrayList<Integer>();
+		for (int allyId : fixture.allyIds) {
+			roster.add(allyId);
+		}
+		// Nobody dies on the fixture's turn, so no kill is ever claimed and the set stays empty
+		eliminatedEnemyFootmen = new HashSet<Integer>();
+		lastTurn = fixture.stateView.getTurnNumber() - 1;
+	}
+
+	/**
+	 * A second agent on the benchmark's fixture that starts a new episode, with the trial's initial weights, before
+	 * every invocation. Only middleStep uses it.
+	 */
+	@State(Scope.Thread)
+	public static class FreshEpisode {
+
+		private BattleFixture fixture;
+		private RLAgent agent;
+		private double[] initialWeights;
+
+		@Setup(Level.Trial)
+		public void setUp(RLAgentBenchmark benchmark) {
+			fixture = benchmark.fixture;
+			agent = fixture.newAgent();
+			initialWeights = agent.weights.clone();
+		}
+
+		@Setup(Level.Invocation)
+		public void startEpisode() {
+			System.arraycopy(initialWeights, 0, agent.weights, 0, initialWeights.length);
+			agent.startEpisode(fixture.stateView);
+		}
+	}
+
+	@Benchmark
+	public double calcQValue() {
+		return agent.calcQValue(fixture.stateView, fixture.historyView, attackerId, defenderId);
+	}
+
+	@Benchmark
+	public double[] calculateFeatureVector() {
+		return agent.calculateFeatureVector(fixture.stateView, fixture.historyView, attackerId, defenderId);
+	}
+
+	@Benchmark
+	public double accumulateRewards() {
+		rewards.reset(roster);
+		rewards.accumulate(fixture.historyView, lastTurn, eliminatedEnemyFootmen);
+		return rewards.totalReward();
+	}
+
+	@Benchmark
+	public Object middleStep(FreshEpisode episode) {
+		return episode.agent.middleStep(episode.fixture.stateView, episode.fixture.historyView);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(RLAgentBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
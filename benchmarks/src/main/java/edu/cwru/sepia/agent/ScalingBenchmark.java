@@ -0,0 +1,86 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * End-to-end throughput of the headless learner as the battles grow, the baseline the optimisations are measured
+ * against. Where RLAgentBenchmark times single hot paths on a frozen fixture, this plays whole learning sessions
+ * against the combat agent through the SEPIA engine, on battles from the {@link ScenarioGenerator}.
+ *
+ * For every size it reports episodes and turns per second, the p50 and p99 middle step latency, and the heap
+ * high-water mark: the peak usage of every heap memory pool while the session ran, after a GC before it. One
+ * session on the smallest battle is played first and thrown away to warm up the JIT. Each row is also written as
+ * tab-separated values to the results file.
+ *
+ *   java -cp target/benchmarks.jar:../lib/Sepia.jar:../combat_agent edu.cwru.sepia.agent.ScalingBenchmark
+ *
+ * Usage: ScalingBenchmark [footmen per side, comma separated] [episodes per size] [seed] [results file]
+ */
+public class ScalingBenchmark {
+
+	/**
+	 * @return The session's throughput, latencies and heap high-water mark as a tab-separated row
+	 */
+	static String run(ScenarioGenerator scenario, int episodes, int seed) throws InterruptedException {
+		RLAgent agent = new RLAgent(0, new String[] { String.valueOf(episodes - 1), "false" });
+		agent.setEpisodeLogging(false);
+		agent.setTestReporting(false);
+		agent.setWeightSaving(false);
+		AgentMetrics metrics = new AgentMetrics(true);
+		agent.setMetrics(metrics);
+
+		List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				heapPools.add(pool);
+			}
+		}
+		System.gc();
+		for (MemoryPoolMXBean pool : heapPools) {
+			pool.resetPeakUsage();
+		}
+
+		HeadlessTrainer.Result result = new HeadlessTrainer(scenario, seed).train(agent);
+
+		long heapPeak = 0;
+		for (MemoryPoolMXBean pool : heapPools) {
+			heapPeak += pool.getPeakUsage().getUsed();
+		}
+		return String.format("%d\t%d\t%d\t%.1f\t%.0f\t%.1f\t%.1f\t%.1f", scenario.getFootmen(), result.episodes,
+				result.turns, result.episodesPerSecond(), result.turnsPerSecond(), metrics.getMiddleStepP50Micros(),
+				metrics.getMiddleStepP99Micros(), heapPeak / (1024.0 * 1024.0));
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] sizes = (args.length >= 1 ? args[0] : "5,10,20,50,100,200").split(",");
+		int episodes = args.length >= 2 ? Integer.parseInt(args[1]) : 60;
+		int seed = args.length >= 3 ? Integer.parseInt(args[2]) : 6;
+		String resultsFile = args.length >= 4 ? args[3] : "scaling.tsv";
+
+		// Warm up on the smallest battle
+		run(new ScenarioGenerator(Integer.parseInt(sizes[0].trim())), episodes, seed);
+
+		List<String> rows = new ArrayList<String>();
+		rows.add("footmen\tepisodes\tturns\tepisodes/s\tturns/s\tp50 us\tp99 us\theap peak MB");
+		System.out.println(rows.get(0));
+		for (String size : sizes) {
+			String row = run(new ScenarioGenerator(Integer.parseInt(size.trim())), episodes, seed);
+			System.out.println(row);
+			rows.add(row);
+		}
+
+		try {
+			Files.write(Paths.get(resultsFile), rows, StandardCharsets.UTF_8);
+		} catch (IOException ex) {
+			System.err.println("Failed to write the results to " + resultsFile + ". Reason: " + ex.getMessage());
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package edu.cwru.sepia.agent;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for the agent's hot paths: middle step wall time, reward computation time,
+ * feature vectors evaluated per turn, events, weight updates and episodes, and for agents with a decision
+ * deadline, how many turns missed it and how much of each turn's candidates were evaluated. Every agent in the JVM records into
+ * the shared instance by default, so parallel workers are reported together.
+ *
+ * The shared instance is registered with the platform MBean server as edu.cwru.sepia.agent:type=AgentMetrics and
+ * is configured with system properties:
+ * <pre>
+ *   rlagent.metrics=false             record nothing; every call is a no-op and no clock is read
+ *   rlagent.metrics.file=path         rewrite a text report to this file periodically
+ *   rlagent.metrics.interval=seconds  how often to write the report, 10 by default
+ * </pre>
+ */
+public class AgentMetrics implements AgentMetricsMXBean {
+
+	public static final String OBJECT_NAME = "edu.cwru.sepia.agent:type=AgentMetrics";
+
+	private static AgentMetrics shared;
+
+	private final boolean enabled;
+	private final long createdNanos = System.nanoTime();
+
+	private final Histogram middleStepNanos = new Histogram();
+	private final Histogram rewardNanos = new Histogram();
+	private final Histogram featureEvaluationsPerTurn = new Histogram();
+	private final AtomicLong events = new AtomicLong();
+	private final AtomicLong weightUpdates = new AtomicLong();
+	private final AtomicLong episodes = new AtomicLong();
+	private final AtomicLong missedDeadlines = new AtomicLong();
+	private final Histogram deadlineProgressPercent = new Histogram();
+
+	private ScheduledExecutorService dumper;
+
+	public AgentMetrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return The instance agents record into unless told otherwise, created and registered on first use.
+	 */
+	public static synchronized AgentMetrics shared() {
+		if (shared == null) {
+			shared = new AgentMetrics(!"false".equalsIgnoreCase(System.getProperty("rlagent.metrics")));
+			if (shared.enabled) {
+				shared.register(OBJECT_NAME);
+				String file = System.getProperty("rlagent.metrics.file");
+				if (file != null) {
+					double seconds = Double.parseDouble(System.getProperty("rlagent.metrics.interval", "10"));
+					shared.startDumping(Paths.get(file), seconds);
+				}
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server. Failures are reported and otherwise ignored.
+	 */
+	public void register(String objectName) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+		} catch (JMException ex) {
+			System.err.println("Failed to register agent metrics with JMX. Reason: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Rewrites the report to the given file every so many seconds on a background thread.
+	 */
+	public synchronized void startDumping(final Path file, double seconds) {
+		if (dumper != null) {
+			dumper.shutdownNow();
+		}
+		dumper = Executors.newSingleThreadScheduledExecutor(ParallelTrainer.daemonThreads("agent-metrics"));
+		long periodMillis = (long) (seconds * 1000);
+		dumper.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					dump(file);
+				} catch (IOException ex) {
+					System.err.println("Failed to write agent metrics. Reason: " + ex.getMessage());
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes the report to a temporary file and renames it over the given one, so readers never see half a report.
+	 */
+	public void dump(Path file) throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		Path temporary = parent.resolve(file.getFileName() + ".tmp");
+		Files.write(temporary, getReport().getBytes(StandardCharsets.UTF_8));
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return A timestamp to pass to the matching record call, or 0 without reading the clock when disabled.
+	 */
+	long startTimer() {
+		return enabled ? System.nanoTime() : 0L;
+	}
+
+	void recordMiddleStep(long startNanos, int featureEvaluations) {
+		if (!enabled) {
+			return;
+		}
+		middleStepNanos.record(System.nanoTime() - startNanos);
+		featureEvaluationsPerTurn.record(featureEvaluations);
+	}
+
+	void recordReward(long startNanos) {
+		if (!enabled) {
+			return;
+		}
+		rewardNanos.record(System.nanoTime() - startNanos);
+	}
+
+	void recordEvent() {
+		if (enabled) {
+			events.incrementAndGet();
+		}
+	}
+
+	void recordWeightUpdate() {
+		if (enabled) {
+			weightUpdates.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param missed Whether the turn ran out of time
+	 * @param progressPercent How much of the turn's candidate pairs were evaluated
+	 */
+	void recordDeadline(boolean missed, int progressPercent) {
+		if (!enabled) {
+			return;
+		}
+		deadlineProgressPercent.record(progressPercent);
+		if (missed) {
+			missedDeadlines.incrementAndGet();
+		}
+	}
+
+	void recordEpisode() {
+		if (enabled) {
+			episodes.incrementAndGet();
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public long getEpisodes() {
+		return episodes.get();
+	}
+
+	@Override
+	public double getEpisodesPerSecond() {
+		return episodes.get() / ((System.nanoTime() - createdNanos) / 1e9);
+	}
+
+	@Override
+	public long getMiddleSteps() {
+		return middleStepNanos.count();
+	}
+
+	@Override
+	public double getMiddleStepMeanMicros() {
+		return middleStepNanos.mean() / 1e3;
+	}
+
+	@Override
+	public double getMiddleStepP50Micros() {
+		return middleStepNanos.quantile(0.5) / 1e3;
+	}
+
+	@Override
+	public double getMiddleStepP99Micros() {
+		return middleStepNanos.quantile(0.99) / 1e3;
+	}
+
+	@Override
+	public double getMiddleStepMaxMicros() {
+		return middleStepNanos.max() / 1e3;
+	}
+
+	@Override
+	public long getEvents() {
+		return events.get();
+	}
+
+	@Override
+	public long getWeightUpdates() {
+		return weightUpdates.get();
+	}
+
+	@Override
+	public double getFeatureEvaluationsPerTurnMean() {
+		return featureEvaluationsPerTurn.mean();
+	}
+
+	@Override
+	public long getFeatureEvaluationsPerTurnP99() {
+		return featureEvaluationsPerTurn.quantile(0.99);
+	}
+
+	@Override
+	public long getFeatureEvaluationsPerTurnMax() {
+		return featureEvaluationsPerTurn.max();
+	}
+
+	@Override
+	public double getRewardMeanMicros() {
+		return rewardNanos.mean() / 1e3;
+	}
+
+	@Override
+	public double getRewardP99Micros() {
+		return rewardNanos.quantile(0.99) / 1e3;
+	}
+
+	@Override
+	public long getDeadlineTurns() {
+		return deadlineProgressPercent.count();
+	}
+
+	@Override
+	public long getMissedDeadlines() {
+		return missedDeadlines.get();
+	}
+
+	@Override
+	public double getDeadlineProgressMeanPercent() {
+		return deadlineProgressPercent.mean();
+	}
+
+	@Override
+	public long getDeadlineProgressP1Percent() {
+		return deadlineProgressPercent.quantile(0.01);
+	}
+
+	@Override
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("episodes                %d (%.2f/s)%n", getEpisodes(), getEpisodesPerSecond()));
+		report.append(String.format("middle steps            %d, %d events, %d weight updates%n",
+				getMiddleSteps(), getEvents(), getWeightUpdates()));
+		report.append(String.format("middle step us          mean %.1f  p50 %.1f  p99 %.1f  max %.1f%n",
+				getMiddleStepMeanMicros(), getMiddleStepP50Micros(), getMiddleStepP99Micros(), getMiddleStepMaxMicros()));
+		report.append(String.format("reward us               mean %.1f  p99 %.1f%n",
+				getRewardMeanMicros(), getRewardP99Micros()));
+		report.append(String.format("features per turn       mean %.1f  p99 %d  max %d%n",
+				getFeatureEvaluationsPerTurnMean(), getFeatureEvaluationsPerTurnP99(), getFeatureEvaluationsPerTurnMax()));
+		if (getDeadlineTurns() > 0) {
+			report.append(String.format("deadline turns          %d, %d missed, evaluated %% mean %.1f  p1 %d%n",
+					getDeadlineTurns(), getMissedDeadlines(), getDeadlineProgressMeanPercent(), getDeadlineProgressP1Percent()));
+		}
+		return report.toString();
+	}
+
+	@Override
+	public String toString() {
+		return getReport();
+	}
+}
@@ -0,0 +1,56 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * The JMX view of {@link AgentMetrics}. Latencies are in microseconds.
+ */
+public interface AgentMetricsMXBean {
+
+	boolean isEnabled();
+
+	long getEpisodes();
+
+	double getEpisodesPerSecond();
+
+	long getMiddleSteps();
+
+	double getMiddleStepMeanMicros();
+
+	double getMiddleStepP50Micros();
+
+	double getMiddleStepP99Micros();
+
+	double getMiddleStepMaxMicros();
+
+	long getEvents();
+
+	long getWeightUpdates();
+
+	double getFeatureEvaluationsPerTurnMean();
+
+	long getFeatureEvaluationsPerTurnP99();
+
+	long getFeatureEvaluationsPerTurnMax();
+
+	double getRewardMeanMicros();
+
+	double getRewardP99Micros();
+
+	/**
+	 * @return Number of event turns played with a decision deadline, and how many of them missed it
+	 */
+	long getDeadlineTurns();
+
+	long getMissedDeadlines();
+
+	/**
+	 * @return Percentage of the candidate pairs evaluated in deadline turns, on average and in the worst 1%
+	 */
+	double getDeadlineProgressMeanPercent();
+
+	long getDeadlineProgressP1Percent();
+
+	/**
+	 * @return The same report that is dumped to the metrics file.
+	 */
+	String getReport();
+}
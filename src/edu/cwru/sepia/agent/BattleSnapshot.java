@@ -0,0 +1,129 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit.UnitView;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A flat copy of the battlefield taken once per turn. Unit ids, positions and health are copied out of the
+ * SEPIA state view into primitive arrays indexed by a dense slot (0 .. count - 1) for each side, so the feature
+ * functions never have to go back to the state view while a decision is being made.
+ *
+ * The arrays are reused from turn to turn and only grow, so rebuilding the snapshot does not allocate once the
+ * largest army of the session has been seen.
+ */
+class BattleSnapshot {
+
+	// Number of living units on each side this turn
+	int numAllies;
+	int numEnemies;
+
+	// Ally (your footmen) columns, indexed by ally slot
+	int[] allyIds = new int[0];
+	int[] allyX = new int[0];
+	int[] allyY = new int[0];
+	int[] allyHP = new int[0];
+
+	// Enemy columns, indexed by enemy slot
+	int[] enemyIds = new int[0];
+	int[] enemyX = new int[0];
+	int[] enemyY = new int[0];
+	int[] enemyHP = new int[0];
+
+	// Maps a SEPIA unit ID to its slot on whichever side it belongs to, or -1 if it is not in the snapshot.
+	// SEPIA hands out unit IDs from a single counter, so both sides can share this table.
+	private int[] slotById = new int[0];
+
+	/**
+	 * Copies the living units out of the state view. Both lists must only contain units that are still alive.
+	 *
+	 * @param stateView Current state of the SEPIA game
+	 * @param allies Your footmen
+	 * @param enemies The enemy footmen
+	 */
+	void rebuild(State.StateView stateView, List<Integer> allies, List<Integer> enemies) {
+		// Forget the previous turn's slots
+		for (int i = 0; i < numAllies; i++) {
+			slotById[allyIds[i]] = -1;
+		}
+		for (int i = 0; i < numEnemies; i++) {
+			slotById[enemyIds[i]] = -1;
+		}
+
+		numAllies = allies.size();
+		numEnemies = enemies.size();
+		ensureSideCapacity();
+
+		int slot = 0;
+		for (int unitId : allies) {
+			UnitView unit = stateView.getUnit(unitId);
+			allyIds[slot] = unitId;
+			allyX[slot] = unit.getXPosition();
+			allyY[slot] = unit.getYPosition();
+			allyHP[slot] = unit.getHP();
+			mapSlot(unitId, slot);
+			slot++;
+		}
+
+		slot = 0;
+		for (int unitId : enemies) {
+			UnitView unit = stateView.getUnit(unitId);
+			enemyIds[slot] = unitId;
+			enemyX[slot] = unit.getXPosition();
+			enemyY[slot] = unit.getYPosition();
+			enemyHP[slot] = unit.getHP();
+			mapSlot(unitId, slot);
+			slot++;
+		}
+	}
+
+	/**
+	 * @param unitId One of your footmen
+	 * @return The slot of the footman this turn, or -1 if it is not alive.
+	 */
+	int allySlot(int unitId) {
+		if (unitId < 0 || unitId >= slotById.length) {
+			return -1;
+		}
+		int slot = slotById[unitId];
+		return (slot < numAllies && slot >= 0 && allyIds[slot] == unitId) ? slot : -1;
+	}
+
+	/**
+	 * @param unitId An enemy footman
+	 * @return The slot of the enemy this turn, or -1 if it is not alive.
+	 */
+	int enemySlot(int unitId) {
+		if (unitId < 0 || unitId >= slotById.length) {
+			return -1;
+		}
+		int slot = slotById[unitId];
+		return (slot < numEnemies && slot >= 0 && enemyIds[slot] == unitId) ? slot : -1;
+	}
+
+	private void mapSlot(int unitId, int slot) {
+		if (unitId >= slotById.length) {
+			int oldLength = slotById.length;
+			slotById = Arrays.copyOf(slotById, Math.max(unitId + 1, oldLength * 2));
+			Arrays.fill(slotById, oldLength, slotById.length, -1);
+		}
+		slotById[unitId] = slot;
+	}
+
+	private void ensureSideCapacity() {
+		if (allyIds.length < numAllies) {
+			allyIds = new int[numAllies];
+			allyX = new int[numAllies];
+			allyY = new int[numAllies];
+			allyHP = new int[numAllies];
+		}
+		if (enemyIds.length < numEnemies) {
+			enemyIds = new int[numEnemies];
+			enemyX = new int[numEnemies];
+			enemyY = new int[numEnemies];
+			enemyHP = new int[numEnemies];
+		}
+	}
+}
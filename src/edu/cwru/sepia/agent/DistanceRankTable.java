@@ -0,0 +1,133 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * For every (attacker, defender) pair in a {@link BattleSnapshot}, the number of enemies that are strictly closer
+ * to the attacker than the defender is, measured in Chebyshev distance.
+ *
+ * Each attacker's row of enemy distances is sorted once per turn, so the count for a pair is the position of the
+ * first enemy in that row whose distance is not smaller than the defender's. Enemies at the same distance as the
+ * defender are not counted as closer, the same as the original per-pair scan. Building the table costs
+ * O(F * E log E) per turn and every lookup afterwards is constant time.
+ */
+class DistanceRankTable {
+
+	private int numAllies;
+	private int numEnemies;
+
+	// Chebyshev distance from each ally slot to each enemy slot, row-major by ally slot
+	private int[] distances = new int[0];
+	// Number of enemies strictly closer than the defender, row-major by ally slot
+	private int[] closerCounts = new int[0];
+	// Scratch row used for sorting
+	private int[] sortedRow = new int[0];
+	// Generation each row was last rebuilt in; resizing starts a new generation
+	private int[] rowStamp = new int[0];
+	private int stamp = 1;
+
+	/**
+	 * Recomputes all distances and ranks from the snapshot.
+	 *
+	 * @param snapshot This turn's snapshot
+	 */
+	void rebuild(BattleSnapshot snapshot) {
+		resize(snapshot);
+		for (int allySlot = 0; allySlot < numAllies; allySlot++) {
+			rebuildRow(snapshot, allySlot);
+		}
+	}
+
+	/**
+	 * Sizes the table for this turn's snapshot without computing any rows. Only rows rebuilt since may be read,
+	 * see {@link #hasRow(int)}.
+	 */
+	void resize(BattleSnapshot snapshot) {
+		numAllies = snapshot.numAllies;
+		numEnemies = snapshot.numEnemies;
+
+		int cells = numAllies * numEnemies;
+		if (distances.length < cells) {
+			distances = new int[cells];
+			closerCounts = new int[cells];
+		}
+		if (sortedRow.length < numEnemies) {
+			sortedRow = new int[numEnemies];
+		}
+		if (rowStamp.length < numAllies) {
+			rowStamp = new int[numAllies];
+		}
+		stamp++;
+	}
+
+	/**
+	 * Recomputes one ally's distances and ranks, after {@link #resize(BattleSnapshot)} for this turn.
+	 */
+	void rebuildRow(BattleSnapshot snapshot, int allySlot) {
+		rebuildRow(snapshot, allySlot, sortedRow);
+	}
+
+	/**
+	 * Same as {@link #rebuildRow(BattleSnapshot, int)}, sorting in the caller's scratch row of at least numEnemies
+	 * entries, so different rows can be rebuilt on different threads.
+	 */
+	void rebuildRow(BattleSnapshot snapshot, int allySlot, int[] sortedRow) {
+		int x = snapshot.allyX[allySlot];
+		int y = snapshot.allyY[allySlot];
+		int row = allySlot * numEnemies;
+
+		for (int enemySlot = 0; enemySlot < numEnemies; enemySlot++) {
+			int distance = chebyshevDistance(x, y, snapshot.enemyX[enemySlot], snapshot.enemyY[enemySlot]);
+			distances[row + enemySlot] = distance;
+			sortedRow[enemySlot] = distance;
+		}
+		Arrays.sort(sortedRow, 0, numEnemies);
+
+		for (int enemySlot = 0; enemySlot < numEnemies; enemySlot++) {
+			closerCounts[row + enemySlot] = firstNotCloser(sortedRow, numEnemies, distances[row + enemySlot]);
+		}
+		rowStamp[allySlot] = stamp;
+	}
+
+	/**
+	 * @return Whether the ally's row was rebuilt since the table was last resized.
+	 */
+	boolean hasRow(int allySlot) {
+		return allySlot < numAllies && rowStamp[allySlot] == stamp;
+	}
+
+	/**
+	 * @return The Chebyshev distance between the two units.
+	 */
+	int distance(int allySlot, int enemySlot) {
+		return distances[allySlot * numEnemies + enemySlot];
+	}
+
+	/**
+	 * @return How many enemies are strictly closer to the ally than the given enemy.
+	 */
+	int closerCount(int allySlot, int enemySlot) {
+		return closerCounts[allySlot * numEnemies + enemySlot];
+	}
+
+	static int chebyshevDistance(int x1, int y1, int x2, int y2) {
+		return Math.max(Math.abs(x1 - x2), Math.abs(y1 - y2));
+	}
+
+	/**
+	 * Binary search for the first index in the sorted prefix whose value is at least the given distance.
+	 */
+	private static int firstNotCloser(int[] sorted, int length, int distance) {
+		int low = 0;
+		int high = length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sorted[mid] < distance) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,32 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Set;
+
+/**
+ * One component of the feature vector of an (attacker, defender) pair. Features are registered with a
+ * {@link FeatureRegistry}, which decides their position in the vector and the size of the weight vector.
+ *
+ * A feature may always read the snapshot, the grid and the targeting index, but must declare the optional inputs
+ * it reads. It must not allocate: it is evaluated for every candidate pair of every decision turn.
+ */
+interface Feature {
+
+	/**
+	 * @return A name that identifies the feature's weight in checkpoints, so it must not change once weights have
+	 *         been saved.
+	 */
+	String name();
+
+	/**
+	 * @return The optional per-turn inputs the feature reads, see {@link FeatureInput}.
+	 */
+	Set<FeatureInput> inputs();
+
+	/**
+	 * @param inputs This turn's inputs
+	 * @param attackerSlot Your footman's slot in this turn's snapshot. The one doing the attacking.
+	 * @param defenderSlot An enemy footman's slot in this turn's snapshot. The one you are considering attacking.
+	 * @return The value of the feature for the pair
+	 */
+	double evaluate(TurnInputs inputs, int attackerSlot, int defenderSlot);
+}
@@ -0,0 +1,11 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * The per-turn inputs that are only prepared when a registered {@link Feature} asks for them, see
+ * {@link TurnInputs}. The snapshot, the spatial grid and the targeting index are always kept, because the agent
+ * needs them to detect events, so every feature may read them without declaring anything.
+ */
+enum FeatureInput {
+	/** How many enemies are closer to a footman than a given enemy, from the distance ranks sorted for the turn */
+	DISTANCES
+}
@@ -0,0 +1,92 @@
+package edu.cwru.sepia.agent;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The ordered set of features that make up the feature vector. A feature's position in the registry is its index
+ * in the feature vector and in the weight vector, so the agent sizes its weights, its Q-matrix and its
+ * checkpoints from the registry.
+ *
+ * To add a feature, implement {@link Feature} in this package, where the turn's inputs can be read, and register
+ * it after the built-in ones from {@link Features#defaults()}. Then pass the registry to the RLAgent constructor
+ * that takes one. Saved weights are matched to features by name, so weights saved before the feature was added
+ * still load.
+ */
+class FeatureRegistry {
+
+	private final List<Feature> registered = new ArrayList<Feature>();
+	private final Set<FeatureInput> inputs = EnumSet.noneOf(FeatureInput.class);
+	// Snapshot of the registered features used on the hot path
+	private Feature[] features = new Feature[0];
+
+	/**
+	 * Adds a feature at the end of the vector.
+	 *
+	 * @throws IllegalArgumentException If a feature with the same name is already registered
+	 */
+	FeatureRegistry register(Feature feature) {
+		if (indexOf(feature.name()) >= 0) {
+			throw new IllegalArgumentException("Feature " + feature.name() + " is already registered");
+		}
+		registered.add(feature);
+		inputs.addAll(feature.inputs());
+		features = registered.toArray(new Feature[registered.size()]);
+		return this;
+	}
+
+	/**
+	 * @return The length of the feature vector.
+	 */
+	int size() {
+		return features.length;
+	}
+
+	/**
+	 * @return Whether any registered feature reads the given input.
+	 */
+	boolean requires(FeatureInput input) {
+		return inputs.contains(input);
+	}
+
+	/**
+	 * @return The feature names in vector order, as written to checkpoints.
+	 */
+	String[] names() {
+		String[] names = new String[features.length];
+		for (int i = 0; i < features.length; i++) {
+			names[i] = features[i].name();
+		}
+		return names;
+	}
+
+	/**
+	 * @return The index of the named feature in the vector, or -1 if it is not registered.
+	 */
+	int indexOf(String name) {
+		for (int i = 0; i < registered.size(); i++) {
+			if (registered.get(i).name().equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Writes every registered feature of one pair into the buffer in a single pass.
+	 *
+	 * @param inputs This turn's inputs
+	 * @param attackerSlot Your footman's slot in this turn's snapshot
+	 * @param defenderSlot An enemy footman's slot in this turn's snapshot
+	 * @param featureVector Buffer to write into
+	 * @param offset Index of the first feature in the buffer
+	 */
+	void evaluate(TurnInputs inputs, int attackerSlot, int defenderSlot, double[] featureVector, int offset) {
+		final Feature[] features = this.features;
+		for (int i = 0; i < features.length; i++) {
+			featureVector[offset + i] = features[i].evaluate(inputs, attackerSlot, defenderSlot);
+		}
+	}
+}
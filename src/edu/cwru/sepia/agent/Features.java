@@ -0,0 +1,134 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The agent's built-in features, in the order they have always had in the weight vector.
+ */
+final class Features {
+
+	private Features() {
+	}
+
+	/**
+	 * @return A registry of the built-in features: constant, distance, health, numbers and isAttackingSelf.
+	 */
+	static FeatureRegistry defaults() {
+		return new FeatureRegistry()
+				.register(new Constant())
+				.register(new Distance())
+				.register(new Health())
+				.register(new Numbers())
+				.register(new IsAttackingSelf());
+	}
+
+	/**
+	 * The offset of the Q-function from 0.
+	 */
+	static class Constant implements Feature {
+		@Override
+		public String name() {
+			return "constant";
+		}
+
+		@Override
+		public Set<FeatureInput> inputs() {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public double evaluate(TurnInputs inputs, int attackerSlot, int defenderSlot) {
+			double constant = 0.0;
+			return constant;
+		}
+	}
+
+	/**
+	 * The feature representing the Chebyshev Distance between the ally footman and the enemy footman: the number of
+	 * enemies minus the number of enemies that are closer, so the nearest enemy scores highest.
+	 */
+	static class Distance implements Feature {
+		@Override
+		public String name() {
+			return "distance";
+		}
+
+		@Override
+		public Set<FeatureInput> inputs() {
+			return EnumSet.of(FeatureInput.DISTANCES);
+		}
+
+		@Override
+		public double evaluate(TurnInputs inputs, int attackerSlot, int defenderSlot) {
+			int numberOfEnemiesCloser = inputs.closerCount(attackerSlot, defenderSlot);
+			return inputs.snapshot.numEnemies - numberOfEnemiesCloser;
+		}
+	}
+
+	/**
+	 * The feature representing the health ratio between the ally footman and the enemy footman.
+	 */
+	static class Health implements Feature {
+		@Override
+		public String name() {
+			return "health";
+		}
+
+		@Override
+		public Set<FeatureInput> inputs() {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public double evaluate(TurnInputs inputs, int attackerSlot, int defenderSlot) {
+			return ((double) inputs.snapshot.allyHP[attackerSlot]) / ((double) inputs.snapshot.enemyHP[defenderSlot]);
+		}
+	}
+
+	/**
+	 * The feature meant to represent the number of ally footmen currently attacking your footman's designated target
+	 * enemy footman in ratio to your remaining footmen. It has always been 0: it looked for your footmen among the
+	 * orders the enemy issued, where they never appear. It stays 0 so that saved weights keep their meaning.
+	 */
+	static class Numbers implements Feature {
+		@Override
+		public String name() {
+			return "numbers";
+		}
+
+		@Override
+		public Set<FeatureInput> inputs() {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public double evaluate(TurnInputs inputs, int attackerSlot, int defenderSlot) {
+			double numbersFeature = 0.0;
+			return numbersFeature;
+		}
+	}
+
+	/**
+	 * The feature representing whether or not your footman's designated target enemy footman is currently attacking
+	 * your footman: whether the enemy was ordered to attack your footman on the last turn.
+	 */
+	static class IsAttackingSelf implements Feature {
+		@Override
+		public String name() {
+			return "isAttackingSelf";
+		}
+
+		@Override
+		public Set<FeatureInput> inputs() {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public double evaluate(TurnInputs inputs, int attackerSlot, int defenderSlot) {
+			int defenderId = inputs.snapshot.enemyIds[defenderSlot];
+			return inputs.targeting.orderedTargetOf(defenderId) == inputs.snapshot.allyIds[attackerSlot] ? 1.0 : 0.0;
+		}
+	}
+}
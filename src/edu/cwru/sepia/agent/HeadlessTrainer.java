@@ -0,0 +1,270 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.SimpleModel;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+import edu.cwru.sepia.experiment.ConfigurationValues;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Trains an RLAgent against the combat agent without going through the XML runner. The SEPIA model is built
+ * directly from a map file with the same model parameters as data/5fv5fConfig.xml, no visual agent is attached,
+ * and the agent is told not to call System.exit, so training can be embedded in other programs and its raw
+ * throughput measured.
+ *
+ * Usage: HeadlessTrainer [map file] [number of episodes] [load weights] [seed] [evaluation threads] [trajectory log]
+ *
+ * Agents that do not learn, such as a PolicyAgent, can play a fixed number of episodes with {@link #play(Agent, int)}.
+ *
+ * With evaluation threads greater than 0, testing runs alongside learning, see {@link #train(RLAgent, int)}. With a
+ * trajectory log, every learning decision is appended to it for the OfflineTrainer.
+ */
+public class HeadlessTrainer {
+
+	public static final String DEFAULT_MAP = "data/rl_5fv5f.xml";
+
+	/**
+	 * The opponent used by the provided configurations. It lives in the default package, so it is loaded by name.
+	 */
+	public static final String ENEMY_AGENT_CLASS = "combatAgent";
+
+	// Same model parameters as the provided configurations
+	private static final int TIME_LIMIT = 100000;
+
+	private final StateCreator stateCreator;
+	private final int seed;
+
+	/**
+	 * @param mapFilename The SEPIA XML map to play, e.g. data/rl_10fv10f.xml
+	 * @param seed Seed for the SEPIA model and turn tracker
+	 * @throws JAXBException If the map is not a valid SEPIA state file
+	 */
+	public HeadlessTrainer(String mapFilename, int seed) throws JAXBException {
+		this(loadMap(mapFilename), seed);
+	}
+
+	public HeadlessTrainer(StateCreator stateCreator, int seed) {
+		this.stateCreator = stateCreator;
+		this.seed = seed;
+	}
+
+	/**
+	 * Reads a SEPIA XML map the same way the XML runner does.
+	 */
+	public static StateCreator loadMap(String mapFilename) throws JAXBException {
+		JAXBContext context = JAXBContext.newInstance(XmlState.class);
+		XmlState state = (XmlState) context.createUnmarshaller().unmarshal(new File(mapFilename));
+		return new XmlStateCreator(state);
+	}
+
+	/**
+	 * @return The model parameters used by the provided configurations: conquest with a long time limit.
+	 */
+	public static Configuration modelConfiguration() {
+		Configuration configuration = new Configuration();
+		configuration.put(ConfigurationValues.MODEL_CONQUEST.key, true);
+		configuration.put(ConfigurationValues.MODEL_MIDAS.key, false);
+		configuration.put(ConfigurationValues.MODEL_MANIFEST_DESTINY.key, false);
+		configuration.put(ConfigurationValues.MODEL_TIME_LIMIT.key, TIME_LIMIT);
+		return configuration;
+	}
+
+	/**
+	 * Creates the opponent the same way the XML runner does for the provided configurations.
+	 *
+	 * @param playernum The player the combat agent controls
+	 */
+	public static Agent createEnemyAgent(int playernum) {
+		try {
+			return (Agent) Class.forName(ENEMY_AGENT_CLASS).getConstructor(int.class).newInstance(playernum);
+		} catch (Exception ex) {
+			throw new IllegalStateException("Unable to instantiate " + ENEMY_AGENT_CLASS
+					+ ". Make sure the combat_agent directory is on the classpath.", ex);
+		}
+	}
+
+	/**
+	 * Plays episodes until the agent has finished its session. The agent's learning and testing schedule is
+	 * unchanged; it simply no longer exits the JVM at the end.
+	 *
+	 * SEPIA starts one thread per agent for every environment and never stops them. The environment is therefore
+	 * created and run on a daemon thread, which those agent threads inherit, so they never keep the JVM alive.
+	 *
+	 * @param agent The learner, playing as player 0
+	 * @return The trained weights and throughput of the session
+	 */
+	public Result train(final RLAgent agent) throws InterruptedException {
+		return runOnDaemon(new Callable<Result>() {
+			@Override
+			public Result call() throws Exception {
+				return runSession(agent);
+			}
+		}, "Training failed");
+	}
+
+	/**
+	 * Plays the given number of episodes with an agent that does not need to be told when to stop, on a daemon
+	 * thread like {@link #train(RLAgent)}. The environment is built once, so every episode after the first only
+	 * costs the game itself.
+	 *
+	 * @param agent The agent playing as player 0
+	 * @return The throughput of the episodes. The weights are null.
+	 */
+	public Result play(final Agent agent, final int episodes) throws InterruptedException {
+		return runOnDaemon(new Callable<Result>() {
+			@Override
+			public Result call() throws Exception {
+				Environment environment = createEnvironment(agent);
+				long turns = 0;
+				long start = System.nanoTime();
+				for (int episode = 0; episode < episodes; episode++) {
+					environment.runEpisode();
+					turns += environment.getStepNumber();
+				}
+				return new Result(null, episodes, turns, System.nanoTime() - start);
+			}
+		}, "Playing failed");
+	}
+
+	private static Result runOnDaemon(final Callable<Result> session, String failureMessage) throws InterruptedException {
+		final AtomicReference<Result> result = new AtomicReference<Result>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread runner = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					result.set(session.call());
+				} catch (Throwable ex) {
+					failure.set(ex);
+				}
+			}
+		}, "headless-trainer");
+		runner.setDaemon(true);
+		runner.start();
+		runner.join();
+
+		if (failure.get() != null) {
+			throw new IllegalStateException(failureMessage, failure.get());
+		}
+		return result.get();
+	}
+
+	/**
+	 * Trains like {@link #train(RLAgent)}, but every episode learns: the testing episodes for each block of learning
+	 * episodes are played by a {@link SnapshotEvaluator} on its own threads, from the same map, while learning
+	 * continues. Returns once every evaluation has been handed back to the agent.
+	 *
+	 * @param evaluationThreads Number of snapshots to evaluate at once
+	 */
+	public Result train(RLAgent agent, int evaluationThreads) throws InterruptedException {
+		SnapshotEvaluator evaluator = new SnapshotEvaluator(stateCreator, evaluationThreads, seed + 1);
+		agent.setSnapshotEvaluator(evaluator);
+		try {
+			return train(agent);
+		} finally {
+			evaluator.close();
+			agent.setSnapshotEvaluator(null);
+		}
+	}
+
+	/**
+	 * Plays the agent's session on the calling thread. The caller should be a daemon thread, see {@link #train}.
+	 */
+	Result runSession(RLAgent agent) throws InterruptedException {
+		agent.setExitOnCompletion(false);
+		Environment environment = createEnvironment(agent);
+
+		int episodes = 0;
+		long turns = 0;
+		long start = System.nanoTime();
+		while (!agent.isSessionComplete()) {
+			environment.runEpisode();
+			episodes++;
+			turns += environment.getStepNumber();
+		}
+		long elapsedNanos = System.nanoTime() - start;
+
+		return new Result(agent.weights.clone(), episodes, turns, elapsedNanos);
+	}
+
+	/**
+	 * Builds a SEPIA model of the map and an environment in which the agent plays the combat agent.
+	 */
+	private Environment createEnvironment(Agent agent) {
+		SimpleModel model = new SimpleModel(stateCreator.createState(), seed, stateCreator, modelConfiguration());
+		Agent[] agents = new Agent[] { agent, createEnemyAgent(RLAgent.ENEMY_PLAYERNUM) };
+		return new Environment(agents, model, seed);
+	}
+
+	/**
+	 * The outcome of a training session.
+	 */
+	public static class Result {
+		public final double[] weights;
+		public final int episodes;
+		public final long turns;
+		public final long elapsedNanos;
+
+		public Result(double[] weights, int episodes, long turns, long elapsedNanos) {
+			this.weights = weights;
+			this.episodes = episodes;
+			this.turns = turns;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public double episodesPerSecond() {
+			return episodes / (elapsedNanos / 1e9);
+		}
+
+		public double turnsPerSecond() {
+			return turns / (elapsedNanos / 1e9);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d episodes, %d turns in %.2f s (%.1f episodes/s, %.0f turns/s)",
+					episodes, turns, elapsedNanos / 1e9, episodesPerSecond(), turnsPerSecond());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mapFilename = args.length >= 1 ? args[0] : DEFAULT_MAP;
+		String numEpisodes = args.length >= 2 ? args[1] : "150";
+		String loadWeights = args.length >= 3 ? args[2] : "false";
+		int seed = args.length >= 4 ? Integer.parseInt(args[3]) : 6;
+		int evaluationThreads = args.length >= 5 ? Integer.parseInt(args[4]) : 0;
+		String trajectoryLog = args.length >= 6 ? args[5] : null;
+
+		RLAgent agent = new RLAgent(0, new String[] { numEpisodes, loadWeights });
+		agent.setEpisodeLogging(false);
+
+		TrajectoryRecorder recorder = null;
+		if (trajectoryLog != null) {
+			recorder = new TrajectoryRecorder(Paths.get(trajectoryLog), agent.getFeatureNames());
+			agent.setTrajectoryRecorder(recorder);
+		}
+
+		HeadlessTrainer trainer = new HeadlessTrainer(mapFilename, seed);
+		Result result;
+		try {
+			result = evaluationThreads > 0 ? trainer.train(agent, evaluationThreads) : trainer.train(agent);
+		} finally {
+			if (recorder != null) {
+				recorder.close();
+			}
+		}
+		System.out.println(result);
+		System.out.println("Weights: " + Arrays.toString(result.weights));
+		System.out.print(agent.getMetrics().getReport());
+	}
+}
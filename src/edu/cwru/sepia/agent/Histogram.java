@@ -0,0 +1,99 @@
+package edu.cwru.sepia.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of non-negative long values, such as latencies in nanoseconds, with log-linear buckets:
+ * every power of two is split into 8 equal buckets, so quantiles are accurate to within 12.5% over the whole
+ * range of a long. Recording is lock-free and allocation-free, and may happen on several threads while another
+ * thread reads.
+ */
+class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucketIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	long count() {
+		return count.get();
+	}
+
+	double mean() {
+		long n = count.get();
+		return n == 0 ? 0.0 : (double) sum.get() / n;
+	}
+
+	long max() {
+		return max.get();
+	}
+
+	/**
+	 * @param quantile Between 0 and 1, e.g. 0.99
+	 * @return The midpoint of the bucket holding the given quantile, or 0 if nothing was recorded.
+	 */
+	long quantile(double quantile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * n));
+		long seen = 0;
+		for (int index = 0; index < NUM_BUCKETS; index++) {
+			seen += counts.get(index);
+			if (seen >= rank) {
+				// Never report more than the largest value actually seen
+				return Math.min(bucketLowerBound(index) + bucketWidth(index) / 2, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Values below 8 get a bucket each; above that, the top 3 bits after the leading one pick the bucket within
+	 * the value's power of two.
+	 */
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	static long bucketLowerBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+	}
+
+	static long bucketWidth(int index) {
+		if (index < SUB_BUCKETS) {
+			return 1;
+		}
+		return 1L << (index / SUB_BUCKETS - 1);
+	}
+}
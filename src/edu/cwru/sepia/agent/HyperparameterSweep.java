@@ -0,0 +1,434 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Searches for good values of RLAgent's gamma, lambda, learning rate and epsilon, and of its learning and testing
+ * block sizes, by training one agent per configuration and comparing the average cumulative rewards of their testing
+ * blocks.
+ *
+ * Every configuration runs on its own thread with its own RLAgent, SEPIA model and combat agent, exactly as a
+ * HeadlessTrainer session would; nothing but the read-only map is shared. All configurations use the same seed
+ * for their initial weights, exploration and model, so they differ only in their hyperparameters.
+ *
+ * Configurations that are clearly losing are stopped early with the median stopping rule: after its first few
+ * testing blocks, a configuration is stopped when even its best testing block so far is below the median of the
+ * running averages of the other configurations that have learned at least as many episodes.
+ *
+ * Usage: HyperparameterSweep [map file] [learning episodes per configuration] [threads] [grid | random:N]
+ *        [gammas] [learning rates] [epsilons] [learning blocks] [testing blocks] [seed] [results file] [lambdas]
+ *
+ * Value lists are comma-separated. A grid search tries every combination of them; a random search draws N
+ * configurations, taking gamma, lambda and epsilon uniformly and the learning rate log-uniformly from between the smallest
+ * and largest values given, and the block sizes from the values given.
+ */
+public class HyperparameterSweep {
+
+	public static final String DEFAULT_RESULTS_PATH = "agent_weights/sweep.tsv";
+
+	private final StateCreator stateCreator;
+	private final int numThreads;
+	private final int seed;
+
+	// Number of testing blocks every configuration plays before it may be stopped
+	private int graceBlocks = 3;
+	// Number of other configurations a configuration is compared against before it may be stopped
+	private int minComparisons = 3;
+
+	/**
+	 * @param stateCreator Creates the starting state of every episode. Calls to it are serialized across threads.
+	 * @param numThreads Number of configurations to train at once, normally the number of cores
+	 * @param seed Seed for every configuration's initial weights, exploration and model
+	 */
+	public HyperparameterSweep(StateCreator stateCreator, int numThreads, int seed) {
+		this.stateCreator = new ParallelTrainer.SerializedStateCreator(stateCreator);
+		this.numThreads = numThreads;
+		this.seed = seed;
+	}
+
+	/**
+	 * @param graceBlocks Number of testing blocks every configuration plays before it may be stopped early
+	 * @param minComparisons Number of other configurations that must have reported before one may be stopped.
+	 *                       Values larger than the sweep turn early stopping off.
+	 */
+	public void setEarlyStopping(int graceBlocks, int minComparisons) {
+		if (graceBlocks < 1 || minComparisons < 1) {
+			throw new IllegalArgumentException("Grace blocks and comparisons must be positive");
+		}
+		this.graceBlocks = graceBlocks;
+		this.minComparisons = minComparisons;
+	}
+
+	/**
+	 * Trains every configuration and waits for all of them.
+	 *
+	 * @param configs The configurations to try
+	 * @param learningEpisodes Number of learning episodes each configuration plays, rounded up to whole blocks.
+	 *                         Each learning block is followed by its testing block.
+	 * @return One outcome per configuration, in the order given
+	 */
+	public List<Outcome> run(List<Config> configs, int learningEpisodes) throws InterruptedException {
+		final MedianStoppingRule stoppingRule = new MedianStoppingRule(graceBlocks, minComparisons);
+
+		List<Callable<Outcome>> trials = new ArrayList<Callable<Outcome>>();
+		for (int index = 0; index < configs.size(); index++) {
+			final int trial = index;
+			final Config config = configs.get(index);
+			int blocks = (learningEpisodes + config.learningEpisodes - 1) / config.learningEpisodes;
+			// The session ends once more than numEpisodes episodes have been played, right after the last test
+			int numEpisodes = blocks * (config.learningEpisodes + config.testingEpisodes) - 1;
+
+			final RLAgent agent = new RLAgent(0, new String[] { Integer.toString(numEpisodes), "false" }, seed) {
+				private static final long serialVersionUID = 1L;
+				private double bestAverage = Double.NEGATIVE_INFINITY;
+				private int blocksTested = 0;
+
+				@Override
+				void testBlockEvaluated(double averageCumulativeReward) {
+					super.testBlockEvaluated(averageCumulativeReward);
+					blocksTested++;
+					bestAverage = Math.max(bestAverage, averageCumulativeReward);
+					if (stoppingRule.shouldStop(trial, blocksTested, blocksTested * config.learningEpisodes,
+							averageCumulativeReward, bestAverage)) {
+						stopSession();
+					}
+				}
+			};
+			agent.setHyperparameters(config.gamma, config.lambda, config.learningRate, config.epsilon);
+			agent.setEpisodeBlocks(config.learningEpisodes, config.testingEpisodes);
+			agent.setEpisodeLogging(false);
+			agent.setTestReporting(false);
+			agent.setWeightSaving(false);
+
+			trials.add(new Callable<Outcome>() {
+				@Override
+				public Outcome call() throws Exception {
+					HeadlessTrainer.Result result = new HeadlessTrainer(stateCreator, seed).runSession(agent);
+					List<Double> averages = agent.getAverageCumulativeRewards();
+					return new Outcome(trial, config, averages, result, stoppingRule.wasStopped(trial));
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads, ParallelTrainer.daemonThreads("hyperparameter-sweep"));
+		try {
+			List<Outcome> outcomes = new ArrayList<Outcome>();
+			for (Future<Outcome> trial : executor.invokeAll(trials)) {
+				outcomes.add(trial.get());
+			}
+			return outcomes;
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("A sweep configuration failed", ex.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return Every combination of the given values
+	 */
+	public static List<Config> grid(double[] gammas, double[] lambdas, double[] learningRates, double[] epsilons,
+			int[] learningBlocks, int[] testingBlocks) {
+		List<Config> configs = new ArrayList<Config>();
+		for (double gamma : gammas) {
+			for (double lambda : lambdas) {
+				for (double learningRate : learningRates) {
+					for (double epsilon : epsilons) {
+						for (int learningEpisodes : learningBlocks) {
+							for (int testingEpisodes : testingBlocks) {
+								configs.add(new Config(gamma, lambda, learningRate, epsilon, learningEpisodes, testingEpisodes));
+							}
+						}
+					}
+				}
+			}
+		}
+		return configs;
+	}
+
+	/**
+	 * Draws configurations from the ranges spanned by the given values: gamma, lambda and epsilon uniformly, the
+	 * learning rate log-uniformly, and the block sizes from the values themselves.
+	 */
+	public static List<Config> random(int count, double[] gammas, double[] lambdas, double[] learningRates, double[] epsilons,
+			int[] learningBlocks, int[] testingBlocks, Random random) {
+		List<Config> configs = new ArrayList<Config>();
+		for (int i = 0; i < count; i++) {
+			double gamma = uniform(gammas, random);
+			double lambda = uniform(lambdas, random);
+			double learningRate = Math.exp(uniform(logs(learningRates), random));
+			double epsilon = uniform(epsilons, random);
+			int learningEpisodes = learningBlocks[random.nextInt(learningBlocks.length)];
+			int testingEpisodes = testingBlocks[random.nextInt(testingBlocks.length)];
+			configs.add(new Config(gamma, lambda, learningRate, epsilon, learningEpisodes, testingEpisodes));
+		}
+		return configs;
+	}
+
+	private static double uniform(double[] values, Random random) {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (double value : values) {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		return min + random.nextDouble() * (max - min);
+	}
+
+	private static double[] logs(double[] values) {
+		double[] logs = new double[values.length];
+		for (int i = 0; i < values.length; i++) {
+			logs[i] = Math.log(values[i]);
+		}
+		return logs;
+	}
+
+	/**
+	 * Formats the outcomes as a tab-separated table, best final score first.
+	 */
+	public static String table(List<Outcome> outcomes) {
+		List<Outcome> ranked = new ArrayList<Outcome>(outcomes);
+		Collections.sort(ranked, new Comparator<Outcome>() {
+			@Override
+			public int compare(Outcome a, Outcome b) {
+				return Double.compare(b.finalScore(), a.finalScore());
+			}
+		});
+
+		StringWriter table = new StringWriter();
+		PrintWriter out = new PrintWriter(table);
+		out.println("rank\tconfig\tgamma\tlambda\tlearningRate\tepsilon\tlearningBlock\ttestingBlock\tblocks\tepisodes"
+				+ "\tfinalScore\tbestAverage\tstoppedEarly\tseconds\taverages");
+		for (int rank = 0; rank < ranked.size(); rank++) {
+			Outcome outcome = ranked.get(rank);
+			Config config = outcome.config;
+			StringBuilder averages = new StringBuilder();
+			for (double average : outcome.averageCumulativeRewards) {
+				averages.append(averages.length() == 0 ? "" : ",").append(String.format("%.2f", average));
+			}
+			out.println(String.format("%d\t%d\t%.4f\t%.4f\t%.6g\t%.4f\t%d\t%d\t%d\t%d\t%.2f\t%.2f\t%b\t%.1f\t%s",
+					rank + 1, outcome.index, config.gamma, config.lambda, config.learningRate, config.epsilon,
+					config.learningEpisodes, config.testingEpisodes, outcome.averageCumulativeRewards.size(),
+					outcome.result.episodes, outcome.finalScore(), outcome.bestAverage(), outcome.stoppedEarly,
+					outcome.result.elapsedNanos / 1e9, averages));
+		}
+		out.flush();
+		return table.toString();
+	}
+
+	/**
+	 * One set of hyperparameters to try.
+	 */
+	public static class Config {
+		public final double gamma;
+		public final double lambda;
+		public final double learningRate;
+		public final double epsilon;
+		public final int learningEpisodes;
+		public final int testingEpisodes;
+
+		public Config(double gamma, double lambda, double learningRate, double epsilon, int learningEpisodes, int testingEpisodes) {
+			this.gamma = gamma;
+			this.lambda = lambda;
+			this.learningRate = learningRate;
+			this.epsilon = epsilon;
+			this.learningEpisodes = learningEpisodes;
+			this.testingEpisodes = testingEpisodes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("gamma %.4f, lambda %.4f, learning rate %.6g, epsilon %.4f, blocks %d/%d",
+					gamma, lambda, learningRate, epsilon, learningEpisodes, testingEpisodes);
+		}
+	}
+
+	/**
+	 * How one configuration did.
+	 */
+	public static class Outcome {
+		public final int index;
+		public final Config config;
+		public final List<Double> averageCumulativeRewards;
+		public final HeadlessTrainer.Result result;
+		public final boolean stoppedEarly;
+
+		Outcome(int index, Config config, List<Double> averageCumulativeRewards, HeadlessTrainer.Result result, boolean stoppedEarly) {
+			this.index = index;
+			this.config = config;
+			this.averageCumulativeRewards = averageCumulativeRewards;
+			this.result = result;
+			this.stoppedEarly = stoppedEarly;
+		}
+
+		/**
+		 * @return The mean of the last three testing blocks, which is less noisy than the last one alone
+		 */
+		public double finalScore() {
+			int size = averageCumulativeRewards.size();
+			if (size == 0) {
+				return Double.NEGATIVE_INFINITY;
+			}
+			double sum = 0;
+			for (int i = Math.max(0, size - 3); i < size; i++) {
+				sum += averageCumulativeRewards.get(i);
+			}
+			return sum / Math.min(3, size);
+		}
+
+		public double bestAverage() {
+			return averageCumulativeRewards.isEmpty() ? Double.NEGATIVE_INFINITY : Collections.max(averageCumulativeRewards);
+		}
+	}
+
+	/**
+	 * Decides which configurations to stop. Configurations are compared at equal numbers of learning episodes, so
+	 * ones with different learning block sizes can be compared; a configuration that has not yet learned as many
+	 * episodes as the one being judged is left out of the comparison.
+	 */
+	static class MedianStoppingRule {
+		private final int graceBlocks;
+		private final int minComparisons;
+
+		// Per configuration: running average of its testing blocks by the number of learning episodes played
+		private final Map<Integer, TreeMap<Integer, Double>> runningAverages = new TreeMap<Integer, TreeMap<Integer, Double>>();
+		private final Map<Integer, Double> sums = new TreeMap<Integer, Double>();
+		private final List<Integer> stopped = new ArrayList<Integer>();
+
+		MedianStoppingRule(int graceBlocks, int minComparisons) {
+			this.graceBlocks = graceBlocks;
+			this.minComparisons = minComparisons;
+		}
+
+		/**
+		 * Records a finished testing block and decides whether the configuration should stop.
+		 *
+		 * @param blocks Number of testing blocks the configuration has finished, including this one
+		 * @param learningEpisodes Number of learning episodes the configuration has played
+		 * @param averageCumulativeReward The block's average cumulative reward
+		 * @param bestAverage The configuration's best block so far
+		 */
+		synchronized boolean shouldStop(int trial, int blocks, int learningEpisodes, double averageCumulativeReward, double bestAverage) {
+			TreeMap<Integer, Double> history = runningAverages.get(trial);
+			if (history == null) {
+				history = new TreeMap<Integer, Double>();
+				runningAverages.put(trial, history);
+				sums.put(trial, 0.0);
+			}
+			double sum = sums.get(trial) + averageCumulativeReward;
+			sums.put(trial, sum);
+			history.put(learningEpisodes, sum / blocks);
+
+			if (blocks < graceBlocks) {
+				return false;
+			}
+			List<Double> others = new ArrayList<Double>();
+			for (Map.Entry<Integer, TreeMap<Integer, Double>> other : runningAverages.entrySet()) {
+				TreeMap<Integer, Double> otherHistory = other.getValue();
+				if (other.getKey() == trial || otherHistory.lastKey() < learningEpisodes) {
+					continue;
+				}
+				Map.Entry<Integer, Double> reached = otherHistory.floorEntry(learningEpisodes);
+				if (reached != null) {
+					others.add(reached.getValue());
+				}
+			}
+			if (others.size() < minComparisons) {
+				return false;
+			}
+			Collections.sort(others);
+			int middle = others.size() / 2;
+			double median = others.size() % 2 == 1 ? others.get(middle) : (others.get(middle - 1) + others.get(middle)) / 2;
+			if (bestAverage < median) {
+				stopped.add(trial);
+				return true;
+			}
+			return false;
+		}
+
+		synchronized boolean wasStopped(int trial) {
+			return stopped.contains(trial);
+		}
+	}
+
+	private static double[] parseDoubles(String values) {
+		String[] parts = values.split(",");
+		double[] parsed = new double[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			parsed[i] = Double.parseDouble(parts[i].trim());
+		}
+		return parsed;
+	}
+
+	private static int[] parseInts(String values) {
+		String[] parts = values.split(",");
+		int[] parsed = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			parsed[i] = Integer.parseInt(parts[i].trim());
+		}
+		return parsed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mapFilename = args.length >= 1 ? args[0] : HeadlessTrainer.DEFAULT_MAP;
+		int learningEpisodes = args.length >= 2 ? Integer.parseInt(args[1]) : 100;
+		int numThreads = args.length >= 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		String search = args.length >= 4 ? args[3] : "grid";
+		double[] gammas = parseDoubles(args.length >= 5 ? args[4] : "0.8,0.9,0.99");
+		double[] learningRates = parseDoubles(args.length >= 6 ? args[5] : "0.00001,0.0001,0.001");
+		double[] epsilons = parseDoubles(args.length >= 7 ? args[6] : "0.01,0.02,0.05");
+		int[] learningBlocks = parseInts(args.length >= 8 ? args[7] : "10");
+		int[] testingBlocks = parseInts(args.length >= 9 ? args[8] : "5");
+		int seed = args.length >= 10 ? Integer.parseInt(args[9]) : 6;
+		Path resultsFile = Paths.get(args.length >= 11 ? args[10] : DEFAULT_RESULTS_PATH);
+		double[] lambdas = parseDoubles(args.length >= 12 ? args[11] : "0");
+
+		List<Config> configs;
+		if (search.startsWith("random:")) {
+			int count = Integer.parseInt(search.substring("random:".length()));
+			configs = random(count, gammas, lambdas, learningRates, epsilons, learningBlocks, testingBlocks, new Random(seed));
+		} else if (search.equals("grid")) {
+			configs = grid(gammas, lambdas, learningRates, epsilons, learningBlocks, testingBlocks);
+		} else {
+			throw new IllegalArgumentException("Unknown search " + search + "; use grid or random:N");
+		}
+		System.out.println("Sweeping " + configs.size() + " configurations on " + numThreads + " threads, "
+				+ learningEpisodes + " learning episodes each");
+
+		long start = System.nanoTime();
+		List<Outcome> outcomes = new HyperparameterSweep(HeadlessTrainer.loadMap(mapFilename), numThreads, seed)
+				.run(configs, learningEpisodes);
+		String table = table(outcomes);
+
+		try {
+			Path parent = resultsFile.toAbsolutePath().getParent();
+			Files.createDirectories(parent);
+			Files.write(resultsFile, table.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException ex) {
+			System.err.println("Failed to write the sweep results. Reason: " + ex.getMessage());
+		}
+		System.out.print(table);
+		System.out.println(String.format("Swept %d configurations in %.1f s; results in %s",
+				configs.size(), (System.nanoTime() - start) / 1e9, resultsFile));
+	}
+}
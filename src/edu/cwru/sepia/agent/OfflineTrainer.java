@@ -0,0 +1,292 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fits weights to the decisions recorded by a {@link TrajectoryRecorder} without running the game, by replaying
+ * the logged transitions through the same update RLAgent.updateWeights makes: the target is the recorded reward
+ * plus gamma times the best Q-value among the recorded next candidates, both under the current weights.
+ *
+ * The logs are memory-mapped and indexed once. Every epoch the records are split into contiguous shards, one per
+ * thread, and each shard is replayed in its own shuffled order into a {@link SharedWeights} vector, as the
+ * parallel trainer's workers do. Shard s of epoch e is shuffled with seed + e * shards + s, so a single-threaded
+ * run is reproducible.
+ *
+ * The fitted weights are written to {@link #DEFAULT_OUTPUT} unless another checkpoint is named. To have RLAgent
+ * load them, name its checkpoint, agent_weights/weights.bin, explicitly.
+ *
+ * Usage: OfflineTrainer [log file,...] [epochs] [learning rate] [gamma] [threads] [seed] [output checkpoint]
+ */
+public class OfflineTrainer {
+
+	public static final String DEFAULT_OUTPUT = "agent_weights/offline.bin";
+
+	private final List<TrajectoryLog> logs = new ArrayList<TrajectoryLog>();
+	private final String[] featureNames;
+	private final int numFeatures;
+
+	// Every record of every log: which log it is in and where it starts
+	private final int[] recordLog;
+	private final int[] recordOffset;
+
+	/**
+	 * Maps and indexes the logs.
+	 *
+	 * @throws IOException If a log cannot be read, or the logs were recorded with different features
+	 */
+	public OfflineTrainer(List<Path> logFiles) throws IOException {
+		int numRecords = 0;
+		for (Path logFile : logFiles) {
+			TrajectoryLog log = TrajectoryLog.open(logFile);
+			if (!logs.isEmpty() && !Arrays.equals(log.featureNames, logs.get(0).featureNames)) {
+				throw new IOException(logFile + " was recorded with features " + Arrays.toString(log.featureNames)
+						+ ", not " + Arrays.toString(logs.get(0).featureNames));
+			}
+			logs.add(log);
+			numRecords += log.offsets.length;
+		}
+		if (logs.isEmpty()) {
+			throw new IllegalArgumentException("No trajectory logs given");
+		}
+		featureNames = logs.get(0).featureNames;
+		numFeatures = featureNames.length;
+
+		recordLog = new int[numRecords];
+		recordOffset = new int[numRecords];
+		int record = 0;
+		for (int log = 0; log < logs.size(); log++) {
+			for (int offset : logs.get(log).offsets) {
+				recordLog[record] = log;
+				recordOffset[record] = offset;
+				record++;
+			}
+		}
+	}
+
+	public int records() {
+		return recordLog.length;
+	}
+
+	/**
+	 * @return The names of the features the logs were recorded with, in weight order.
+	 */
+	public String[] featureNames() {
+		return featureNames.clone();
+	}
+
+	/**
+	 * Replays every record once per epoch.
+	 *
+	 * @param initialWeights Starting weights, one per feature
+	 * @param epochs Number of passes over the logs
+	 * @param learningRate Step size, as RLAgent.learningRate
+	 * @param gamma Discount of the next Q-value, as RLAgent.gamma
+	 * @param numShards Number of shards replayed at once, normally the number of cores
+	 * @param seed Base seed for the shuffles
+	 * @return The fitted weights
+	 */
+	public double[] train(double[] initialWeights, int epochs, final double learningRate, final double gamma,
+			int numShards, long seed) throws InterruptedException {
+		if (initialWeights.length != numFeatures) {
+			throw new IllegalArgumentException(initialWeights.length + " weights for " + numFeatures + " features");
+		}
+		final SharedWeights sharedWeights = new SharedWeights(initialWeights);
+		ExecutorService executor = Executors.newFixedThreadPool(numShards, ParallelTrainer.daemonThreads("offline-trainer"));
+		try {
+			for (int epoch = 0; epoch < epochs; epoch++) {
+				long start = System.nanoTime();
+				List<Callable<Double>> shards = new ArrayList<Callable<Double>>();
+				for (int shard = 0; shard < numShards; shard++) {
+					final int first = (int) ((long) records() * shard / numShards);
+					final int last = (int) ((long) records() * (shard + 1) / numShards);
+					final long shardSeed = seed + (long) epoch * numShards + shard;
+					shards.add(new Callable<Double>() {
+						@Override
+						public Double call() {
+							return replayShard(sharedWeights, first, last, learningRate, gamma, new Random(shardSeed));
+						}
+					});
+				}
+
+				double squaredError = 0;
+				for (Future<Double> shard : executor.invokeAll(shards)) {
+					squaredError += shard.get();
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.println(String.format("Epoch %d: %d updates, mean squared TD error %.4f, %.0f updates/s",
+						epoch + 1, records(), squaredError / Math.max(1, records()), records() / seconds));
+			}
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("A training shard failed", ex.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return sharedWeights.snapshot();
+	}
+
+	/**
+	 * Replays records first (inclusive) to last (exclusive) in a random order.
+	 *
+	 * @return The sum of the squared TD errors
+	 */
+	private double replayShard(SharedWeights sharedWeights, int first, int last, double learningRate, double gamma, Random random) {
+		int[] order = new int[last - first];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = first + i;
+		}
+		for (int i = order.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+
+		// Each shard reads through its own view of the mapped logs
+		ByteBuffer[] views = new ByteBuffer[logs.size()];
+		for (int log = 0; log < views.length; log++) {
+			views[log] = logs.get(log).buffer.duplicate();
+		}
+		double[] weights = new double[numFeatures];
+		double[] features = new double[numFeatures];
+
+		double squaredError = 0;
+		for (int record : order) {
+			ByteBuffer view = views[recordLog[record]];
+			int offset = recordOffset[record];
+			float reward = view.getFloat(offset + 8);
+			int numNext = view.getInt(offset + 12);
+			int position = offset + 16;
+
+			sharedWeights.copyInto(weights);
+			double currentQVal = 0;
+			for (int i = 0; i < numFeatures; i++, position += 4) {
+				features[i] = view.getFloat(position);
+				currentQVal += weights[i] * features[i];
+			}
+			// With nothing left to attack there is no future value
+			double maxQVal = numNext == 0 ? 0.0 : Double.NEGATIVE_INFINITY;
+			for (int next = 0; next < numNext; next++) {
+				double qValue = 0;
+				for (int i = 0; i < numFeatures; i++, position += 4) {
+					qValue += weights[i] * view.getFloat(position);
+				}
+				maxQVal = Math.max(maxQVal, qValue);
+			}
+
+			double error = reward + gamma * maxQVal - currentQVal;
+			squaredError += error * error;
+			sharedWeights.addScaled(features, learningRate * error);
+		}
+		return squaredError;
+	}
+
+	/**
+	 * A memory-mapped trajectory log and the offset of every complete record in it.
+	 */
+	static class TrajectoryLog {
+		final MappedByteBuffer buffer;
+		final String[] featureNames;
+		final int[] offsets;
+
+		private TrajectoryLog(MappedByteBuffer buffer, String[] featureNames, int[] offsets) {
+			this.buffer = buffer;
+			this.featureNames = featureNames;
+			this.offsets = offsets;
+		}
+
+		static TrajectoryLog open(Path path) throws IOException {
+			MappedByteBuffer buffer;
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				if (channel.size() > Integer.MAX_VALUE) {
+					throw new IOException(path + " is larger than 2 GB; record to several logs instead");
+				}
+				// The mapping stays valid after the channel is closed
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				channel.close();
+			}
+
+			if (buffer.remaining() < 12 || buffer.getInt() != TrajectoryRecorder.MAGIC) {
+				throw new IOException(path + " is not a trajectory log");
+			}
+			int version = buffer.getInt();
+			if (version != TrajectoryRecorder.VERSION) {
+				throw new IOException(path + " has unsupported trajectory log version " + version);
+			}
+			int numFeatures = buffer.getInt();
+			String[] featureNames = new String[numFeatures];
+			for (int i = 0; i < numFeatures; i++) {
+				byte[] name = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(name);
+				featureNames[i] = new String(name, StandardCharsets.UTF_8);
+			}
+
+			// Walk the records; a record cut short at the end of the file is left out
+			int[] offsets = new int[1024];
+			int count = 0;
+			int position = buffer.position();
+			int limit = buffer.limit();
+			while (limit - position >= 16) {
+				int numNext = buffer.getInt(position + 12);
+				if (numNext < 0) {
+					throw new IOException(path + " is corrupt at byte " + position);
+				}
+				long length = 16 + 4L * numFeatures * (1 + (long) numNext);
+				if (position + length > limit) {
+					break;
+				}
+				if (count == offsets.length) {
+					offsets = Arrays.copyOf(offsets, count * 2);
+				}
+				offsets[count++] = position;
+				position += (int) length;
+			}
+			return new TrajectoryLog(buffer, featureNames, Arrays.copyOf(offsets, count));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<Path> logFiles = new ArrayList<Path>();
+		for (String logFile : (args.length >= 1 ? args[0] : "agent_weights/trajectories.bin").split(",")) {
+			logFiles.add(Paths.get(logFile));
+		}
+		int epochs = args.length >= 2 ? Integer.parseInt(args[1]) : 10;
+		double learningRate = args.length >= 3 ? Double.parseDouble(args[2]) : .0001;
+		double gamma = args.length >= 4 ? Double.parseDouble(args[3]) : 0.9;
+		int numShards = args.length >= 5 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+		long seed = args.length >= 6 ? Long.parseLong(args[5]) : 6;
+		Path output = Paths.get(args.length >= 7 ? args[6] : DEFAULT_OUTPUT);
+
+		OfflineTrainer trainer = new OfflineTrainer(logFiles);
+		System.out.println("Replaying " + trainer.records() + " records of features " + Arrays.toString(trainer.featureNames()));
+
+		// initialize weights to random values between -1 and 1
+		Random random = new Random(seed);
+		double[] initialWeights = new double[trainer.featureNames().length];
+		for (int i = 0; i < initialWeights.length; i++) {
+			initialWeights[i] = random.nextDouble() * 2 - 1;
+		}
+
+		double[] weights = trainer.train(initialWeights, epochs, learningRate, gamma, numShards, seed);
+		WeightCheckpointer.write(output, weights, trainer.featureNames(), 0);
+		System.out.println("Weights: " + Arrays.toString(weights));
+		System.out.println("Saved to " + output);
+	}
+}
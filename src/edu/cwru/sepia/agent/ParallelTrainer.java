@@ -0,0 +1,162 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+import javax.xml.bind.JAXBException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Trains one weight vector with several independent SEPIA environments at once. Every worker thread runs its own
+ * model, its own combat agent opponent and its own RLAgent; the agents all read from and add their updates to a
+ * single {@link SharedWeights} vector without locking.
+ *
+ * Worker i seeds its exploration random number generator and its SEPIA model with seed + i, so each worker's
+ * stream of random choices is reproducible for a given seed. The order in which workers' updates interleave is
+ * up to the scheduler, so the final weights are only reproducible when running a single worker.
+ *
+ * Worker 0 prints the test data and checkpoints the shared weights as a lone agent would; the other workers are
+ * silent. Once every worker has finished, the shared weights are checkpointed and exported to the weights file
+ * again, so the files hold the weights train returns.
+ *
+ * Usage: ParallelTrainer [map file] [workers] [episodes per worker] [seed]
+ */
+public class ParallelTrainer {
+
+	private final StateCreator stateCreator;
+	private final int numWorkers;
+	private final int seed;
+
+	public ParallelTrainer(String mapFilename, int numWorkers, int seed) throws JAXBException {
+		this(HeadlessTrainer.loadMap(mapFilename), numWorkers, seed);
+	}
+
+	/**
+	 * @param stateCreator Creates the starting state of every episode. Calls to it are serialized across workers.
+	 * @param numWorkers Number of environments to run at once, normally the number of cores
+	 * @param seed Base seed for the workers' models and exploration
+	 */
+	public ParallelTrainer(StateCreator stateCreator, int numWorkers, int seed) {
+		this.stateCreator = new SerializedStateCreator(stateCreator);
+		this.numWorkers = numWorkers;
+		this.seed = seed;
+	}
+
+	/**
+	 * Runs every worker's session to completion.
+	 *
+	 * @param initialWeights Starting weights, shared by all workers
+	 * @param episodesPerWorker Number of episodes each worker's agent should run, as in RLAgent's first argument
+	 * @return The shared weights at the end and the combined throughput of all workers
+	 */
+	public HeadlessTrainer.Result train(double[] initialWeights, int episodesPerWorker) throws InterruptedException {
+		final SharedWeights sharedWeights = new SharedWeights(initialWeights);
+
+		List<Callable<HeadlessTrainer.Result>> sessions = new ArrayList<Callable<HeadlessTrainer.Result>>();
+		RLAgent firstAgent = null;
+		for (int worker = 0; worker < numWorkers; worker++) {
+			final int workerSeed = seed + worker;
+			final RLAgent agent = new RLAgent(0, new String[] { Integer.toString(episodesPerWorker), "false" }, workerSeed);
+			agent.setSharedWeights(sharedWeights);
+			agent.setEpisodeLogging(false);
+			agent.setTestReporting(worker == 0);
+			agent.setWeightSaving(worker == 0);
+			if (worker == 0) {
+				firstAgent = agent;
+			}
+
+			sessions.add(new Callable<HeadlessTrainer.Result>() {
+				@Override
+				public HeadlessTrainer.Result call() throws Exception {
+					return new HeadlessTrainer(stateCreator, workerSeed).runSession(agent);
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numWorkers, daemonThreads("parallel-trainer"));
+		try {
+			long start = System.nanoTime();
+			int episodes = 0;
+			long turns = 0;
+			for (Future<HeadlessTrainer.Result> session : executor.invokeAll(sessions)) {
+				HeadlessTrainer.Result result = session.get();
+				episodes += result.episodes;
+				turns += result.turns;
+			}
+			long elapsedNanos = System.nanoTime() - start;
+
+			// Worker 0 finished before the others stopped adding to the weights
+			double[] weights = sharedWeights.snapshot();
+			if (firstAgent != null) {
+				firstAgent.exportWeights(weights, episodes);
+			}
+			return new HeadlessTrainer.Result(weights, episodes, turns, elapsedNanos);
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("A training worker failed", ex.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Worker threads must be daemons so the agent threads SEPIA starts from them are too, see HeadlessTrainer.
+	 */
+	static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Lets workers share one state creator, which is only called once per episode. Also used by SnapshotEvaluator.
+	 */
+	static class SerializedStateCreator implements StateCreator {
+		private static final long serialVersionUID = 1L;
+
+		private final StateCreator stateCreator;
+
+		SerializedStateCreator(StateCreator stateCreator) {
+			this.stateCreator = stateCreator;
+		}
+
+		@Override
+		public synchronized State createState() {
+			return stateCreator.createState();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mapFilename = args.length >= 1 ? args[0] : HeadlessTrainer.DEFAULT_MAP;
+		int numWorkers = args.length >= 2 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int episodesPerWorker = args.length >= 3 ? Integer.parseInt(args[2]) : 150;
+		int seed = args.length >= 4 ? Integer.parseInt(args[3]) : 6;
+
+		// initialize weights to random values between -1 and 1
+		Random random = new Random(seed);
+		double[] initialWeights = new double[RLAgent.NUM_FEATURES];
+		for (int i = 0; i < initialWeights.length; i++) {
+			initialWeights[i] = random.nextDouble() * 2 - 1;
+		}
+
+		HeadlessTrainer.Result result = new ParallelTrainer(mapFilename, numWorkers, seed).train(initialWeights, episodesPerWorker);
+		System.out.println(numWorkers + " workers: " + result);
+		System.out.println("Weights: " + Arrays.toString(result.weights));
+		System.out.print(AgentMetrics.shared().getReport());
+	}
+}
@@ -0,0 +1,255 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Plays a trained policy without learning. The weights are loaded once into an immutable {@link Policy} that any
+ * number of agents, and so any number of matches in one JVM, share. Each turn only does what choosing targets
+ * needs: the snapshot of the living units, the targeting index the features read, and for every footman an event
+ * occurred for, its features against every enemy and the argmax of their Q-values. There are no rewards, no
+ * weight updates, no exploration and no episode schedule.
+ *
+ * For the XML runner the arguments are the weight checkpoint to play, WeightCheckpointer.DEFAULT_PATH by default.
+ *
+ * Usage: PolicyAgent [map file] [weight checkpoint] [matches] [seed]
+ */
+public class PolicyAgent extends Agent {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final ConcurrentHashMap<Path, Policy> loaded = new ConcurrentHashMap<Path, Policy>();
+
+	private final Policy policy;
+	private final int numFeatures;
+
+	private final BattleSnapshot snapshot = new BattleSnapshot();
+	private final DistanceRankTable distanceRanks = new DistanceRankTable();
+	private final TargetingIndex targetingIndex;
+	private final TurnInputs turnInputs;
+	private final double[] features;
+
+	private AgentMetrics metrics = AgentMetrics.shared();
+
+	private int matches;
+	private int wins;
+
+	/**
+	 * @param args The weight checkpoint to play, see {@link #policy(Path)}
+	 */
+	public PolicyAgent(int playernum, String[] args) throws IOException {
+		this(playernum, policy(Paths.get(args.length >= 1 ? args[0] : WeightCheckpointer.DEFAULT_PATH)));
+	}
+
+	public PolicyAgent(int playernum, Policy policy) {
+		super(playernum);
+		this.policy = policy;
+		this.numFeatures = policy.registry.size();
+		this.features = new double[numFeatures];
+		this.targetingIndex = new TargetingIndex(playernum, RLAgent.ENEMY_PLAYERNUM);
+		this.turnInputs = new TurnInputs(snapshot, new SpatialGrid(), targetingIndex, distanceRanks);
+		this.turnInputs.rankTableInUse = true;
+	}
+
+	/**
+	 * Loads a weight checkpoint for the built-in features, or returns the policy already loaded from that path.
+	 *
+	 * @throws IOException If the checkpoint cannot be read, or lacks a weight for one of the features
+	 */
+	public static Policy policy(Path checkpoint) throws IOException {
+		Path key = checkpoint.toAbsolutePath().normalize();
+		Policy policy = loaded.get(key);
+		if (policy == null) {
+			WeightCheckpointer.Checkpoint saved = WeightCheckpointer.load(key);
+			policy = new Policy(Features.defaults(), saved.weights, saved.featureNames);
+			Policy raced = loaded.putIfAbsent(key, policy);
+			if (raced != null) {
+				policy = raced;
+			}
+		}
+		return policy;
+	}
+
+	/**
+	 * @param metrics Where to record middle step latencies, e.g. a private instance per match
+	 */
+	public void setMetrics(AgentMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return Number of matches played and won by this agent
+	 */
+	public int getMatches() {
+		return matches;
+	}
+
+	public int getWins() {
+		return wins;
+	}
+
+	@Override
+	public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+		targetingIndex.clear();
+		return middleStep(stateView, historyView);
+	}
+
+	@Override
+	public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+		long startNanos = metrics.startTimer();
+		int turnNumber = stateView.getTurnNumber();
+		if (turnNumber > 0) {
+			targetingIndex.applyTurn(historyView, turnNumber - 1);
+		}
+		snapshot.rebuild(stateView, stateView.getUnitIds(playernum), stateView.getUnitIds(RLAgent.ENEMY_PLAYERNUM));
+		distanceRanks.resize(snapshot);
+
+		Map<Integer, ActionResult> actionResults = turnNumber > 0
+				? historyView.getCommandFeedback(playernum, turnNumber - 1) : null;
+		Map<Integer, Action> actions = new HashMap<Integer, Action>();
+		int featureEvaluations = 0;
+		for (int allySlot = 0; allySlot < snapshot.numAllies && snapshot.numEnemies > 0; allySlot++) {
+			int footmanId = snapshot.allyIds[allySlot];
+			int targetId = targetingIndex.targetOf(footmanId);
+
+			// Same events as RLAgent: the action completed or failed, or the target is gone
+			ActionResult actionResult = actionResults == null ? null : actionResults.get(footmanId);
+			boolean ended = turnNumber == 0
+					|| (actionResult != null && !actionResult.getFeedback().equals(ActionFeedback.INCOMPLETE));
+			boolean targetGone = snapshot.enemySlot(targetId) < 0;
+			if (!ended && !targetGone) {
+				continue;
+			}
+
+			distanceRanks.rebuildRow(snapshot, allySlot);
+			int defenderId = snapshot.enemyIds[bestDefenderSlot(allySlot)];
+			featureEvaluations += snapshot.numEnemies;
+			actions.put(footmanId, Action.createCompoundAttack(footmanId, defenderId));
+		}
+
+		if (!actions.isEmpty()) {
+			metrics.recordEvent();
+		}
+		metrics.recordMiddleStep(startNanos, featureEvaluations);
+		return actions;
+	}
+
+	/**
+	 * @return The enemy slot with the highest Q-value for the footman, ties going to the lowest slot as in RLAgent
+	 */
+	private int bestDefenderSlot(int attackerSlot) {
+		double[] weights = policy.weights;
+		int bestSlot = 0;
+		double bestQValue = Double.NEGATIVE_INFINITY;
+		for (int defenderSlot = 0; defenderSlot < snapshot.numEnemies; defenderSlot++) {
+			policy.registry.evaluate(turnInputs, attackerSlot, defenderSlot, features, 0);
+			double qValue = 0.0;
+			for (int i = 0; i < numFeatures; i++) {
+				qValue += weights[i] * features[i];
+			}
+			if (qValue > bestQValue) {
+				bestQValue = qValue;
+				bestSlot = defenderSlot;
+			}
+		}
+		return bestSlot;
+	}
+
+	@Override
+	public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+		matches++;
+		metrics.recordEpisode();
+		if (stateView.getUnitIds(RLAgent.ENEMY_PLAYERNUM).isEmpty() && !stateView.getUnitIds(playernum).isEmpty()) {
+			wins++;
+		}
+	}
+
+	@Override
+	public void savePlayerData(OutputStream outputStream) {
+
+	}
+
+	@Override
+	public void loadPlayerData(InputStream inputStream) {
+
+	}
+
+	/**
+	 * Frozen weights aligned with the features they are played with. Immutable, so agents on any thread share it.
+	 */
+	public static final class Policy {
+		final FeatureRegistry registry;
+		final double[] weights;
+
+		/**
+		 * @param savedNames Feature name of each saved weight, or null if the weights are already in registry order
+		 * @throws IOException If a feature has no saved weight
+		 */
+		Policy(FeatureRegistry registry, double[] savedWeights, String[] savedNames) throws IOException {
+			this.registry = registry;
+			if (savedNames == null) {
+				if (savedWeights.length != registry.size()) {
+					throw new IOException("Saved weights have " + savedWeights.length + " features, expected " + registry.size());
+				}
+				this.weights = savedWeights.clone();
+				return;
+			}
+			this.weights = new double[registry.size()];
+			boolean[] found = new boolean[registry.size()];
+			for (int i = 0; i < savedNames.length; i++) {
+				int index = registry.indexOf(savedNames[i]);
+				if (index >= 0) {
+					weights[index] = savedWeights[i];
+					found[index] = true;
+				}
+			}
+			for (int i = 0; i < found.length; i++) {
+				if (!found[i]) {
+					throw new IOException("No saved weight for feature " + registry.names()[i]);
+				}
+			}
+		}
+
+		/**
+		 * A policy for the built-in features from weights in their order, e.g. the weights of a training Result.
+		 */
+		public static Policy of(double[] weights) {
+			try {
+				return new Policy(Features.defaults(), weights, null);
+			} catch (IOException ex) {
+				throw new IllegalArgumentException(ex.getMessage());
+			}
+		}
+
+		public double[] getWeights() {
+			return weights.clone();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mapFilename = args.length >= 1 ? args[0] : HeadlessTrainer.DEFAULT_MAP;
+		Path checkpoint = Paths.get(args.length >= 2 ? args[1] : WeightCheckpointer.DEFAULT_PATH);
+		int matches = args.length >= 3 ? Integer.parseInt(args[2]) : 100;
+		int seed = args.length >= 4 ? Integer.parseInt(args[3]) : 6;
+
+		PolicyAgent agent = new PolicyAgent(0, policy(checkpoint));
+		HeadlessTrainer.Result result = new HeadlessTrainer(mapFilename, seed).play(agent, matches);
+		System.out.println(result);
+		System.out.println(String.format("Won %d of %d matches with weights %s", agent.getWins(), agent.getMatches(),
+				Arrays.toString(agent.policy.weights)));
+		System.out.print(agent.metrics.getReport());
+	}
+}
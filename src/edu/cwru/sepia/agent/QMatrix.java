@@ -0,0 +1,154 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * The features and Q-values of every (attacker, defender) pair for one decision turn.
+ *
+ * The feature tensor is filled once per turn, laid out pair by pair so each pair's features are contiguous:
+ * features[(attackerSlot * numEnemies + defenderSlot) * numFeatures + i]. The Q-matrix is then one dot product
+ * per pair over that flat array, with the row maximum and argmax tracked in the same loop.
+ *
+ * Rows are stamped with the weight generation they were evaluated with. Calling {@link #invalidate()} after the
+ * weights change marks every row stale, and {@link #ensureRow(int, double[])} only re-evaluates the row that is
+ * about to be read, which keeps the sequential learning loop equivalent to evaluating each footman against the
+ * most recent weights.
+ *
+ * When the agent prunes each footman's targets to a few candidates, the columns of a row are that footman's
+ * candidates rather than every enemy, and "defender slot" below means the column.
+ *
+ * A row may be cut short with {@link #truncateRow(int, int)} when there was no time to fill all of its features;
+ * only its leading columns are then evaluated and read.
+ */
+class QMatrix {
+
+	private final int numFeatures;
+
+	private int numEnemies;
+
+	private double[] features = new double[0];
+	private double[] qValues = new double[0];
+	private double[] rowMax = new double[0];
+	private int[] rowBest = new int[0];
+	// Number of leading columns of each row that were filled
+	private int[] rowLength = new int[0];
+
+	// Weight generation each row was last evaluated with
+	private int[] rowStamp = new int[0];
+	private int stamp = 1;
+
+	QMatrix(int numFeatures) {
+		this.numFeatures = numFeatures;
+	}
+
+	/**
+	 * Sizes the matrix for this turn. Buffers only grow, so this does not allocate once the largest armies have
+	 * been seen. All rows become stale.
+	 */
+	void resize(int numAllies, int numEnemies) {
+		this.numEnemies = numEnemies;
+
+		int pairs = numAllies * numEnemies;
+		if (qValues.length < pairs) {
+			qValues = new double[pairs];
+			features = new double[pairs * numFeatures];
+		}
+		if (rowMax.length < numAllies) {
+			rowMax = new double[numAllies];
+			rowBest = new int[numAllies];
+			rowStamp = new int[numAllies];
+			rowLength = new int[numAllies];
+		}
+		Arrays.fill(rowLength, 0, numAllies, numEnemies);
+		invalidate();
+	}
+
+	/**
+	 * @return The feature tensor. Pair (a, d) starts at {@link #featureOffset(int, int)}.
+	 */
+	double[] features() {
+		return features;
+	}
+
+	int featureOffset(int attackerSlot, int defenderSlot) {
+		return (attackerSlot * numEnemies + defenderSlot) * numFeatures;
+	}
+
+	/**
+	 * Re-evaluates the attacker's row if the weights have changed since it was last evaluated.
+	 */
+	void ensureRow(int attackerSlot, double[] weights) {
+		if (rowStamp[attackerSlot] != stamp) {
+			evaluateRow(attackerSlot, weights);
+		}
+	}
+
+	/**
+	 * Limits the attacker's row to its first length columns for this turn, and marks it stale.
+	 */
+	void truncateRow(int attackerSlot, int length) {
+		rowLength[attackerSlot] = length;
+		rowStamp[attackerSlot] = 0;
+	}
+
+	/**
+	 * @return The number of columns of the attacker's row that may be read this turn.
+	 */
+	int rowLength(int attackerSlot) {
+		return rowLength[attackerSlot];
+	}
+
+	/**
+	 * Marks every row as evaluated with out of date weights.
+	 */
+	void invalidate() {
+		stamp++;
+	}
+
+	double qValue(int attackerSlot, int defenderSlot) {
+		return qValues[attackerSlot * numEnemies + defenderSlot];
+	}
+
+	/**
+	 * @return The highest Q-value in the attacker's row, or 0 if there are no enemies left.
+	 */
+	double maxQValue(int attackerSlot) {
+		return rowMax[attackerSlot];
+	}
+
+	/**
+	 * @return The enemy slot with the highest Q-value in the attacker's row, or -1 if there are no enemies left.
+	 */
+	int bestDefenderSlot(int attackerSlot) {
+		return rowBest[attackerSlot];
+	}
+
+	private void evaluateRow(int attackerSlot, double[] weights) {
+		final int k = numFeatures;
+		final double[] features = this.features;
+		final double[] qValues = this.qValues;
+
+		int cell = attackerSlot * numEnemies;
+		int end = cell + rowLength[attackerSlot];
+		int offset = cell * k;
+
+		double maxQValue = Double.NEGATIVE_INFINITY;
+		int bestSlot = -1;
+		for (int defenderSlot = 0; cell < end; cell++, defenderSlot++, offset += k) {
+			double qValue = 0.0;
+			for (int i = 0; i < k; i++) {
+				qValue += weights[i] * features[offset + i];
+			}
+			qValues[cell] = qValue;
+			if (qValue > maxQValue) {
+				maxQValue = qValue;
+				bestSlot = defenderSlot;
+			}
+		}
+
+		// With nobody left to attack there is no future value
+		rowMax[attackerSlot] = bestSlot < 0 ? 0.0 : maxQValue;
+		rowBest[attackerSlot] = bestSlot;
+		rowStamp[attackerSlot] = stamp;
+	}
+}
@@ -3,16 +3,18 @@ package edu.cwru.sepia.agent;
 import edu.cwru.sepia.action.Action;
 import edu.cwru.sepia.action.ActionFeedback;
 import edu.cwru.sepia.action.ActionResult;
-import edu.cwru.sepia.action.TargetedAction;
-import edu.cwru.sepia.environment.model.history.DamageLog;
 import edu.cwru.sepia.environment.model.history.DeathLog;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.environment.model.state.Unit;
-import edu.cwru.sepia.environment.model.state.Unit.UnitView;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 public class RLAgent extends Agent {
@@ -31,26 +33,80 @@ public class RLAgent extends Agent {
     /**
      * This is the number of learning episodes to run, set to 10 as was given by assignment
      */
-    private final int numLearningEpisodes = 10;
+    private int numLearningEpisodes = 10;
     /**
      * This is the number of testing (evaluation) episodes to run, set to 5 as was given by assignment
      */
-    private final int numTestingEpisodes = 5;
+    private int numTestingEpisodes = 5;
     /**
      * Total number of episodes played so far
      */
     private int episodesPlayed = 0;
+    /**
+     * Whether to call System.exit once numEpisodes have been played. The XML runner never stops on its own, so
+     * this is on by default; drivers that embed the agent turn it off and check isSessionComplete instead.
+     */
+    private boolean exitOnCompletion = true;
+    /**
+     * Whether to print the win/loss and episode type lines at the end of every episode
+     */
+    private boolean episodeLogging = true;
+    /**
+     * Whether to print the test data after every set of testing episodes
+     */
+    private boolean testReporting = true;
+    /**
+     * Whether to checkpoint the weights while learning and write the weights file at the end of the session
+     */
+    private boolean weightSaving = true;
+    /**
+     * Set by stopSession to end the session after the current episode, e.g. when a sweep gives up on a configuration
+     */
+    private volatile boolean stopRequested = false;
+    /**
+     * Writes binary weight checkpoints in the background every checkpointEpisodes episodes or
+     * checkpointSeconds seconds. Created on first use.
+     */
+    private WeightCheckpointer checkpointer;
+    private int checkpointEpisodes = 10;
+    private double checkpointSeconds = 60;
+    /**
+     * Hot-path counters and latency histograms, shared by every agent in the JVM unless replaced
+     */
+    private AgentMetrics metrics = AgentMetrics.shared();
+    // Feature vectors computed during the current middle step
+    private int featureEvaluations;
     
     private enum Mode{
     	LEARNING,
     	TESTING;
     }
     
+    /**
+     * Which episodes learn and which test. The XML runner interleaves them; with a snapshot evaluator every episode
+     * learns and the testing episodes are played elsewhere, and the agents doing that testing only ever test.
+     */
+    private enum Schedule{
+    	INTERLEAVED,
+    	LEARNING_ONLY,
+    	TESTING_ONLY;
+    }
+    private Schedule schedule = Schedule.INTERLEAVED;
+    /**
+     * Evaluates a snapshot of the weights after every block of learning episodes in LEARNING_ONLY. Null otherwise.
+     */
+    private SnapshotEvaluator snapshotEvaluator;
+    
     /**
      * This returns whether the current episode is learning or testing the weights
      * @return The current episode mode, LEARNING or TESTING.
      */
     private Mode currentMode(){
+    	if(this.schedule == Schedule.LEARNING_ONLY)
+    		return Mode.LEARNING;
+    	if(this.schedule == Schedule.TESTING_ONLY)
+    		return Mode.TESTING;
+    	
     	// Learing happens between the number of learning episodes and after the number of testing episodes
     	// (e.g. with 10 learning: 0 - 9, 15 - 24, ...)
     	// Testing happens between the number of testing episodes and after the number of learning episodes
@@ -67,18 +123,97 @@ public class RLAgent extends Agent {
     		return Mode.TESTING;
     }
     
-    // Stores the cumulative reward for each test episode during testing
-    private List<Double> testingRewards;
-    // Stores the average cumulative reward for each set of testing episodes
-    private List<Double> averageCumulativeRewards;
-    // Maps each footman ID with its associated cummulative reward
-    private Map<Integer, Double> footmenRewards;
+    // Sum of the cumulative rewards of the current set of test episodes, and how many of them have been played
+    private double testingRewardSum;
+    private int testingRewardCount;
+    // Stores the average cumulative reward for each set of testing episodes, or the most recent ones in long-run mode
+    private RewardStatistics averageCumulativeRewards = new RewardStatistics(0);
+    // Whether test data is reported one line per set of testing episodes instead of with printTestData
+    private boolean longRunMode;
+    // Accumulates each footman's reward from the turn logs in a single pass per turn
+    private final RewardAccumulator footmenRewards;
     /**
      * List of your footmen and your enemies footmen
      */
     private List<Integer> myFootmen;
     private List<Integer> enemyFootmen;
-    private Set<Integer> eliminatedEnemyFootmen;
+    private final Set<Integer> eliminatedEnemyFootmen = new HashSet<Integer>();
+    /**
+     * Flat copy of unit positions and health, rebuilt once at the start of every middle step
+     */
+    private final BattleSnapshot snapshot = new BattleSnapshot();
+    /**
+     * Per-attacker distance ranks of every enemy, rebuilt from the snapshot whenever an event occurs
+     */
+    private final DistanceRankTable distanceRanks = new DistanceRankTable();
+    /**
+     * Enemy positions bucketed on a uniform grid, moved as enemies move and emptied as they die
+     */
+    private final SpatialGrid enemyGrid = new SpatialGrid();
+    /**
+     * How many of its nearest enemies each footman considers attacking, besides its current target.
+     * 0 considers every enemy.
+     */
+    private int targetCandidates = 0;
+    // Enemy slot of each column of the Q-matrix, row-major by ally slot, when candidates are pruned or ordered
+    private int numCandidates;
+    private boolean candidatesListed;
+    private int[] candidateSlots = new int[0];
+    private long[] distanceOrder = new long[0];
+    private int[] nearestIds = new int[0];
+    private int[] nearestDistances = new int[0];
+    /**
+     * By ally slot, whether an event occurred for the footman this turn so it must choose a target again, and
+     * whether its previous action is over so it needs a new command even if it picks the same target
+     */
+    private boolean[] decisionPending = new boolean[0];
+    private boolean[] actionEnded = new boolean[0];
+    /**
+     * Chooses the greedy targets of the footmen with a decision pending jointly, with a limit on how many footmen
+     * attack one enemy. Null when every footman takes its own best target.
+     */
+    private TargetAssignment targetAssignment;
+    // Enemy slot each footman is attacking, or -1, and which footmen bid, for the assignment
+    private int[] currentTargetSlots = new int[0];
+    private boolean[] biddingFootmen = new boolean[0];
+    /**
+     * By ally slot, the column of an epsilon pick drawn before the turn's targets were chosen, or -1 for a greedy
+     * choice. Only valid while explorationDrawn is set: the draws are taken ahead of selectAction when the joint
+     * assignment or the parallel decisions need to know who explores.
+     */
+    private int[] exploreColumns = new int[0];
+    private boolean explorationDrawn;
+    /**
+     * Time a middle step may spend evaluating candidates, in nanoseconds. 0 means no limit.
+     */
+    private long decisionBudgetNanos = 0;
+    // Footman whose row is filled first on the next deadline turn, so the same footmen are not always left out
+    private int nextFirstFootman;
+    // Whether this turn's filling was cut short by the deadline, and how many pairs were filled out of how many
+    private boolean turnCutShort;
+    private int pairsFilled;
+    private int pairsPending;
+    /**
+     * Fills the rows of the footmen with a decision pending and chooses their targets in parallel, against the
+     * weights at the start of the turn. Null decides for one footman after another, see setParallelDecisions.
+     */
+    private ForkJoinPool decisionPool;
+    // Footmen handled by one task of a parallel turn. Fixed, so the tasks and their merge order do not depend on the pool.
+    private static final int DECISIONS_PER_TASK = 8;
+    // Per task: the sum of its footmen's weight updates, a scratch trace, the feature vectors it computed and a scratch row for the rank table
+    private double[][] taskGradients = new double[0][];
+    // The sum of the tasks' weight updates
+    private final double[] turnGradient;
+    private double[][] taskTraces = new double[0][];
+    private int[] taskEvaluations = new int[0];
+    private int[][] taskRankRows = new int[0][];
+    // By ally slot, for a parallel turn: the column it chose
+    private int[] chosenColumns = new int[0];
+    private boolean parallelLearning;
+    /**
+     * Who is targeting whom on both sides, kept up to date from each turn's issued commands and deaths
+     */
+    private final TargetingIndex targetingIndex;
 
     /**
      * Convenience variable specifying enemy agent number. Use this whenever referring
@@ -87,39 +222,105 @@ public class RLAgent extends Agent {
     public static final int ENEMY_PLAYERNUM = 1;
 
     /**
-     * Set this to whatever size your feature vector is.
+     * The size of the feature vector of the built-in features, see Features.defaults(). An agent constructed with
+     * another feature registry sizes its weights from that registry instead.
      */
     public static final int NUM_FEATURES = 5;
 
+    /**
+     * The features that make up the feature vector, in weight order, and the per-turn inputs they read
+     */
+    private final FeatureRegistry featureRegistry;
+    private final int numFeatures;
+    private final TurnInputs turnInputs;
+
     /** Use this random number generator for your epsilon exploration. When you submit we will
      * change this seed so make sure that your agent works for more than the default seed.
      */
-    public final Random random = new Random(12345);
+    public final Random random;
+
+    /**
+     * Your Q-function weights. These are updated in place.
+     */
+    public double[] weights;
+
+    /**
+     * When several learners train in parallel they all read from and add their updates to this vector.
+     * The local weights are refreshed from it at the start of every decision turn. Null when training alone.
+     */
+    private SharedWeights sharedWeights;
+
+    /**
+     * Experience replay. Every update's transition is kept in the buffer, and after every replayFrequency updates a
+     * minibatch of replayBatchSize stored transitions is replayed. Null when replay is off.
+     */
+    private ReplayBuffer replayBuffer;
+    private int replayBatchSize;
+    private int replayFrequency;
+    private int updatesSinceReplay;
+    private final double[] replayGradient;
+    // Next candidates kept with each replayed transition when none are given, see setExperienceReplay
+    private static final int DEFAULT_REPLAY_CANDIDATES = 8;
+    // The strongest candidates of the row being stored: their feature offsets, by descending Q-value
+    private int[] replayNextOffsets = new int[0];
+    private double[] replayNextQValues = new double[0];
+
+    /**
+     * Logs every weight update's transition for offline training. Null when not recording.
+     */
+    private TrajectoryRecorder trajectoryRecorder;
+
+    /**
+     * Features and Q-values of every (footman, enemy) pair for this turn. The feature tensor is filled once when an
+     * event occurs; selectAction and updateWeights both read their rows from it.
+     */
+    private final QMatrix qMatrix;
+    // Slot of the enemy selectAction last picked, a copy of that pair's features, and whether it was an exploratory pick
+    private int chosenDefenderSlot = -1;
+    private final double[] chosenFeatures;
+    private boolean chosenExploratory;
+    // Scratch vector for calcQValue
+    private final double[] scratchFeatures;
 
     /**
-     * Your Q-function weights.
+     * Eligibility trace of every footman for Watkins' Q(lambda), numFeatures entries per SEPIA unit ID. Only used
+     * when lambda is above 0.
      */
-    public Double[] weights;
+    private double[] traces = new double[0];
+    private final double[] traceScratch;
 
     /**
      * These variables are set for you according to the assignment definition. You can change them,
      * but it is not recommended. If you do change them please let us know and explain your reasoning for
      * changing them.
+     *
+     * A hyperparameter sweep changes them per agent with setHyperparameters before the session starts.
+     *
+     * lambda is the decay of the eligibility traces. 0 is the one-step Q-learning the assignment asks for; above 0
+     * every update also credits each footman's earlier choices, see updateWeights.
      */
-    public final double gamma = 0.9;
-    public final double learningRate = .0001;
-    public final double epsilon = .02;
+    public double gamma = 0.9;
+    public double lambda = 0.0;
+    public double learningRate = .0001;
+    public double epsilon = .02;
 
     public RLAgent(int playernum, String[] args) {
-        super(playernum);
+        this(playernum, args, 12345);
+    }
 
-        if (args.length >= 1) {
-            numEpisodes = Integer.parseInt(args[0]);
-            System.out.println("Running " + numEpisodes + " episodes.");
-        } else {
-            numEpisodes = 10;
-            System.out.println("Warning! Number of episodes not specified. Defaulting to 10 episodes.");
-        }
+    /**
+     * @param seed Seed for the exploration random number generator, so parallel learners each get their own stream
+     */
+    public RLAgent(int playernum, String[] args, long seed) {
+        this(playernum, args, seed, Features.defaults());
+    }
+
+    /**
+     * @param seed Seed for the exploration random number generator
+     * @param featureRegistry The features to learn weights for
+     */
+    RLAgent(int playernum, String[] args, long seed, FeatureRegistry featureRegistry) {
+        this(playernum, numEpisodesArgument(args), null, seed, featureRegistry);
 
         boolean loadWeights = false;
         if (args.length >= 2) {
@@ -129,16 +330,49 @@ public class RLAgent extends Agent {
         }
 
         if (loadWeights) {
-            weights = loadWeights();
-        } else {
+            weights = loadSavedWeights();
+        }
+        if (weights == null) {
             // initialize weights to random values between -1 and 1
-            weights = new Double[NUM_FEATURES];
+            weights = new double[numFeatures];
             for (int i = 0; i < weights.length; i++) {
                 weights[i] = random.nextDouble() * 2 - 1;
             }
         }
-    	testingRewards = new LinkedList<Double>();
-    	averageCumulativeRewards = new LinkedList<Double>();
+    }
+
+    /**
+     * An agent that starts from the given weights without reading arguments, loading weights or printing anything,
+     * e.g. to evaluate a snapshot of another agent's weights.
+     *
+     * @param weights The starting weights, used as they are. Null only for the constructor above, which fills them in.
+     */
+    RLAgent(int playernum, int numEpisodes, double[] weights, long seed, FeatureRegistry featureRegistry) {
+        super(playernum);
+        random = new Random(seed);
+        this.featureRegistry = featureRegistry;
+        this.numFeatures = featureRegistry.size();
+        this.qMatrix = new QMatrix(numFeatures);
+        this.chosenFeatures = new double[numFeatures];
+        this.scratchFeatures = new double[numFeatures];
+        this.replayGradient = new double[numFeatures];
+        this.traceScratch = new double[numFeatures];
+        this.turnGradient = new double[numFeatures];
+        this.numEpisodes = numEpisodes;
+        this.weights = weights;
+    	targetingIndex = new TargetingIndex(playernum, ENEMY_PLAYERNUM);
+    	turnInputs = new TurnInputs(snapshot, enemyGrid, targetingIndex, distanceRanks);
+    	footmenRewards = new RewardAccumulator(playernum, ENEMY_PLAYERNUM);
+    }
+
+    private static int numEpisodesArgument(String[] args) {
+        if (args.length >= 1) {
+            int numEpisodes = Integer.parseInt(args[0]);
+            System.out.println("Running " + numEpisodes + " episodes.");
+            return numEpisodes;
+        }
+        System.out.println("Warning! Number of episodes not specified. Defaulting to 10 episodes.");
+        return 10;
     }
 
     /**
@@ -150,9 +384,17 @@ public class RLAgent extends Agent {
         // You will need to add code to check if you are in a testing or learning episode
     	// This is handled with the method defined at the top of this file - currentMode()
     	
-    	eliminatedEnemyFootmen = new HashSet<Integer>();
-    	footmenRewards = new HashMap<Integer, Double>();
+    	startEpisode(stateView);
+        return middleStep(stateView, historyView);
+    }
 
+    /**
+     * Forgets the last episode: the rosters, rewards, traces, orders and enemy positions are taken afresh from the
+     * given state. Weights and the episode schedule are kept.
+     */
+    void startEpisode(State.StateView stateView) {
+    	eliminatedEnemyFootmen.clear();
+    	targetingIndex.clear();
     	
         // Find all of your units
         myFootmen = new LinkedList<>();
@@ -162,12 +404,15 @@ public class RLAgent extends Agent {
             String unitName = unit.getTemplateView().getName().toLowerCase();
             if (unitName.equals("footman")) {
                 myFootmen.add(unitId);
-                footmenRewards.put(unitId, 0.0);
             } else {
                 System.err.println("Unknown unit type: " + unitName);
             }
         }
 
+        footmenRewards.reset(myFootmen);
+        resetTraces();
+        enemyGrid.reset(stateView.getXExtent(), stateView.getYExtent(), stateView.getUnitIds(ENEMY_PLAYERNUM).size());
+
         // Find all of the enemy units
         enemyFootmen = new LinkedList<>();
         for (Integer unitId : stateView.getUnitIds(ENEMY_PLAYERNUM)) {
@@ -180,8 +425,6 @@ public class RLAgent extends Agent {
                 System.err.println("Unknown unit type: " + unitName);
             }
         }
-
-        return middleStep(stateView, historyView);
     }
 
     /**
@@ -212,55 +455,129 @@ public class RLAgent extends Agent {
      */
     @Override
     public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+    	long startNanos = this.metrics.startTimer();
+    	this.featureEvaluations = 0;
+    	
     	updateFootmenRewards(stateView, historyView);
     	removeDeadUnits(stateView, historyView);
+    	if(stateView.getTurnNumber() > 0){
+    		this.targetingIndex.applyTurn(historyView, stateView.getTurnNumber() - 1);
+    	}
+    	this.snapshot.rebuild(stateView, this.myFootmen, this.enemyFootmen);
+    	// Rows of the rank table are only rebuilt for footmen that decide this turn
+    	this.distanceRanks.resize(this.snapshot);
+    	for(int enemySlot = 0; enemySlot < this.snapshot.numEnemies; enemySlot++){
+    		// Only enemies that crossed into another cell are relinked
+    		this.enemyGrid.update(this.snapshot.enemyIds[enemySlot], this.snapshot.enemyX[enemySlot], this.snapshot.enemyY[enemySlot]);
+    	}
     	
     	Map<Integer, Action> actions = new HashMap<Integer, Action>();
     	
     	if(eventOccured(stateView, historyView)){
-    		for(int attackerId : this.myFootmen){
-    			int defenderId = selectAction(stateView, historyView, attackerId);
-    			
-    			if(currentMode().equals(Mode.LEARNING)){
-    				Double[] oldWeights = this.weights;
-    				double[] oldFeatures = this.calculateFeatureVector(stateView, historyView, attackerId, defenderId);
-    				double totalReward = this.footmenRewards.get(attackerId);
-    				this.weights = this.updateWeights(oldWeights, oldFeatures, totalReward, stateView, historyView, attackerId);
+    		this.metrics.recordEvent();
+    		if(this.sharedWeights != null){
+    			this.sharedWeights.copyInto(this.weights);
+    		}
+    		// Only the rows of footmen an event occurred for are filled; the Q-values are evaluated as they are read
+    		long deadline = this.decisionBudgetNanos > 0 ? System.nanoTime() + this.decisionBudgetNanos : 0L;
+    		fillFeatureTensor(deadline);
+    		boolean learning = currentMode().equals(Mode.LEARNING);
+    		boolean assigning = this.targetAssignment != null && !this.turnCutShort;
+    		// Exploring footmen are known before the assignment, so they do not take part in it
+    		this.explorationDrawn = learning && (assigning || this.decisionPool != null);
+    		if(this.explorationDrawn){
+    			drawExplorations();
+    		}
+    		if(assigning){
+    			assignTargets();
+    		}
+    		
+    		if(this.decisionPool != null){
+    			decideInParallel(learning);
+    		}
+    		for(int allySlot = 0; allySlot < this.snapshot.numAllies; allySlot++){
+    			int attackerId = this.snapshot.allyIds[allySlot];
+    			if(!this.decisionPending[allySlot]){
+    				// Out of time before this footman's row was reached: it carries on with its last order
+    				int targetId = this.targetingIndex.targetOf(attackerId);
+    				if(this.actionEnded[allySlot] && this.snapshot.enemySlot(targetId) >= 0){
+    					actions.put(attackerId, Action.createCompoundAttack(attackerId, targetId));
+    				}
+    				continue;
+    			}
+    			int defenderId;
+    			if(this.decisionPool != null){
+    				// Chosen and learned from by decideInParallel
+    				int column = this.chosenColumns[allySlot];
+    				defenderId = column < 0 ? -1 : this.snapshot.enemyIds[candidateSlot(allySlot, column)];
+    			}
+    			else{
+    				defenderId = selectAction(stateView, historyView, attackerId);
+    				
+    				if(learning){
+    					// selectAction left the chosen pair's features in chosenFeatures
+    					double totalReward = this.footmenRewards.cumulativeReward(attackerId);
+    					this.weights = this.updateWeights(this.weights, this.chosenFeatures, totalReward, stateView, historyView, attackerId);
+    				}
     			}
     			
-    			actions.put(attackerId, Action.createCompoundAttack(attackerId, defenderId));
+    			// A footman still attacking the chosen enemy keeps its action, so SEPIA does not plan its path again
+    			if(defenderId >= 0 && (this.actionEnded[allySlot] || this.targetingIndex.targetOf(attackerId) != defenderId)){
+    				actions.put(attackerId, Action.createCompoundAttack(attackerId, defenderId));
+    			}
+    		}
+    		if(deadline != 0L){
+    			boolean missed = this.turnCutShort || System.nanoTime() > deadline;
+    			this.metrics.recordDeadline(missed, this.pairsPending == 0 ? 100 : (int) (100L * this.pairsFilled / this.pairsPending));
     		}
     	}
     	
+    	this.metrics.recordMiddleStep(startNanos, this.featureEvaluations);
         return actions;
     }
     
     /**
-     * Determines if an event has occurred.
+     * Determines if an event has occurred, and for which footmen. An event occurs for a footman when its action
+     * completed or failed on the last turn, when the enemy it was attacking died, or when it has no attack order
+     * at all, e.g. at the start of the episode. Only those footmen are marked in decisionPending, and those whose
+     * action is no longer running are marked in actionEnded.
      * @param stateView
      * @param historyView
-     * @return
+     * @return Whether an event occurred for any footman
      */
     private boolean eventOccured(State.StateView stateView, History.HistoryView historyView){
-    	if(stateView.getTurnNumber() == 0)
+    	int numAllies = this.snapshot.numAllies;
+    	if(this.decisionPending.length < numAllies){
+    		this.decisionPending = new boolean[numAllies];
+    		this.actionEnded = new boolean[numAllies];
+    	}
+    	
+    	if(stateView.getTurnNumber() == 0){
         	// The episode begins
-    		return true;
+    		Arrays.fill(this.decisionPending, 0, numAllies, true);
+    		Arrays.fill(this.actionEnded, 0, numAllies, true);
+    		return numAllies > 0;
+    	}
     	
     	int lastTurnNumber = stateView.getTurnNumber() - 1;
-    	
-    	List<DeathLog> deathLogs = historyView.getDeathLogs(lastTurnNumber);
-    	if(deathLogs.size() > 0)
-        	// If a death occurs...
-    		return true;
-    	
     	Map<Integer, ActionResult> actionResults = historyView.getCommandFeedback(this.playernum, lastTurnNumber);
-    	for(ActionResult actionResult : actionResults.values()){
-    		if(!actionResult.getFeedback().equals(ActionFeedback.INCOMPLETE))
-        		// Either the action was completed or it failed if it isn't incomplete
-    			return true;
+    	
+    	boolean eventOccured = false;
+    	for(int allySlot = 0; allySlot < numAllies; allySlot++){
+    		int footmanId = this.snapshot.allyIds[allySlot];
+    		
+    		// Either the action was completed or it failed if it isn't incomplete
+    		ActionResult actionResult = actionResults.get(footmanId);
+    		boolean ended = actionResult != null && !actionResult.getFeedback().equals(ActionFeedback.INCOMPLETE);
+    		// The target is gone if it died, or there never was one
+    		boolean targetGone = this.snapshot.enemySlot(this.targetingIndex.targetOf(footmanId)) < 0;
+    		
+    		this.actionEnded[allySlot] = ended || targetGone;
+    		this.decisionPending[allySlot] = ended || targetGone;
+    		eventOccured |= this.decisionPending[allySlot];
     	}
     	
-    	return false;
+    	return eventOccured;
     }
 
     /**
@@ -274,250 +591,1207 @@ public class RLAgent extends Agent {
     	updateFootmenRewards(stateView, historyView);
     	removeDeadUnits(stateView, historyView);
 
-		if (myFootmen.size() == 0) {
-			System.out.println("You Lose. Enemy has " + enemyFootmen.size() + " footmen remaining");
-		}
-		else if (enemyFootmen.size() == 0) {
-			System.out.println("You Win. You have " + myFootmen.size() + " footmen remaining");
-		}
-		else {
-			System.err.println("ERROR: Winner unknown");
+		if (episodeLogging) {
+			if (myFootmen.size() == 0) {
+				System.out.println("You Lose. Enemy has " + enemyFootmen.size() + " footmen remaining");
+			}
+			else if (enemyFootmen.size() == 0) {
+				System.out.println("You Win. You have " + myFootmen.size() + " footmen remaining");
+			}
+			else {
+				System.err.println("ERROR: Winner unknown");
+			}
 		}
 		
     	switch(currentMode()){
 	    	case LEARNING:
-	    		System.out.println("Finished Learning Episode");
+	    		if (episodeLogging)
+	    			System.out.println("Finished Learning Episode");
 	    		
+	    		// At the end of each learning block, test a copy of the weights while learning carries on
+	    		if (this.snapshotEvaluator != null && (this.episodesPlayed + 1) % this.numLearningEpisodes == 0)
+	    			this.snapshotEvaluator.submit(this.weights.clone(), this.numTestingEpisodes, this);
 	    		break;
 	    	case TESTING:
-	    		System.out.println("Finished Testing Episode");
-	    		Double sum = 0.0;
-	    		for(Double reward : this.footmenRewards.values()){
-	    			sum += reward;
-	    		}
-	    		this.testingRewards.add(sum);
+	    		if (episodeLogging)
+	    			System.out.println("Finished Testing Episode");
+	    		this.testingRewardSum += this.footmenRewards.totalReward();
+	    		this.testingRewardCount++;
 	    		
 	            // MAKE SURE YOU CALL printTestData after you finish a set of test episodes.
-	    		if(this.testingRewards.size() == this.numTestingEpisodes){
-	    			Double averageCumulativeReward = 0.0;
-	    			for(Double cumulativeReward : testingRewards){
-	    				averageCumulativeReward += cumulativeReward;
-	    			}
-	    			averageCumulativeReward /= (double)this.testingRewards.size();
-	    			testingRewards = new LinkedList<Double>();
-	    			averageCumulativeRewards.add(averageCumulativeReward);
-		    		printTestData(averageCumulativeRewards);
+	    		if(this.testingRewardCount == this.numTestingEpisodes){
+	    			double averageCumulativeReward = this.testingRewardSum / this.testingRewardCount;
+	    			this.testingRewardSum = 0;
+	    			this.testingRewardCount = 0;
+	    			// Records the average and prints the test data
+	    			testBlockEvaluated(averageCumulativeReward);
 	    		}
 	    		break;
     		default:
     			break;
     	}
     	this.episodesPlayed++;
+    	this.metrics.recordEpisode();
     	
-    	if (this.episodesPlayed > numEpisodes){
-    		System.out.println("Session Complete");
-    		System.exit(0);
+    	if (isSessionComplete()){
+    		if (testReporting && longRunMode)
+    			printRewardSummary();
+    		if (testReporting)
+    			System.out.println("Session Complete");
+    		if (weightSaving)
+    			exportWeights(weightsToSave(), episodesPlayed);
+    		if (exitOnCompletion)
+    			System.exit(0);
+    		return;
     	}
     	
-        // Save your weights
-        saveWeights(weights);
+        // Save your weights. Checkpoints are written in the background every few episodes.
+        if (weightSaving)
+        	checkpointer().episodeFinished(weightsToSave(), episodesPlayed);
 
     }
     
-    private void removeDeadUnits(State.StateView stateView, History.HistoryView historyView){
-    	if(stateView.getTurnNumber() > 0){
-    		int lastTurnNumber = stateView.getTurnNumber() - 1;
-        	for(DeathLog deathLog : historyView.getDeathLogs(lastTurnNumber)) {
-    			Integer unitId = new Integer(deathLog.getDeadUnitID());
-        		if(deathLog.getController() == this.playernum){
-        			this.myFootmen.remove(unitId);
-        		}
-        		else if(deathLog.getController() == this.ENEMY_PLAYERNUM){
-        			this.enemyFootmen.remove(unitId);
-        		}
-        		else{
-        			System.out.println("Phantom player?");
-        		}
-        	}
-    	}
+    /**
+     * @return Whether all numEpisodes episodes have been played, or the session was stopped.
+     */
+    public boolean isSessionComplete() {
+    	return this.episodesPlayed > numEpisodes || this.stopRequested;
     }
 
     /**
-     * Calculate the updated weights for this agent. 
-     * @param oldWeights Weights prior to update
-     * @param oldFeatures Features from (s,a)
-     * @param totalReward Cumulative discounted reward for this footman.
-     * @param stateView Current state of the game.
-     * @param historyView History of the game up until this point
-     * @param footmanId The footman we are updating the weights for
-     * @return The updated weight vector.
+     * Ends the session at the end of the current episode, as if all numEpisodes episodes had been played.
+     * May be called from any thread.
      */
-    public Double[] updateWeights(Double[] oldWeights, double[] oldFeatures, double totalReward, State.StateView stateView, History.HistoryView historyView, int footmanId) {
-    	Double[] updatedWeightVector = new Double[oldWeights.length];
-
-		double currentQVal = 0;
-		for (int j = 0; j < oldFeatures.length; j++) {
-			currentQVal += oldFeatures[j] * oldWeights[j];
-		}
+    public void stopSession() {
+    	this.stopRequested = true;
+    }
 
-		double maxQVal = Double.NEGATIVE_INFINITY;
-		for (Integer enemyFootmanId : enemyFootmen) {
-			double qVal = calcQValue(stateView, historyView, footmanId, enemyFootmanId);
-			if (qVal > maxQVal) {
-				maxQVal = qVal;
-			}
-		}
-		
-		for (int i = 0; i < oldWeights.length; i++) {
-			double targetQVal = totalReward + gamma * maxQVal;
-			double dldw = -1 * (targetQVal - currentQVal) * oldFeatures[i];
-			updatedWeightVector[i] = oldWeights[i] - learningRate * (dldw);
-		}
-		return updatedWeightVector;
+    /**
+     * Replaces the assignment's learning parameters, keeping lambda. Must be called before the first episode.
+     *
+     * @param gamma Discount of the next Q-value, in [0, 1]
+     * @param learningRate Step size of the weight updates, positive
+     * @param epsilon Probability of exploring a random target while learning, in [0, 1]
+     */
+    public void setHyperparameters(double gamma, double learningRate, double epsilon) {
+    	setHyperparameters(gamma, this.lambda, learningRate, epsilon);
     }
 
     /**
-     * Given a footman and the current state and history of the game select the enemy that this unit should
-     * attack. This is where you would do the epsilon-greedy action selection.
+     * Replaces the learning parameters, including the eligibility trace decay. Must be called before the first episode.
      *
-     * @param stateView Current state of the game
-     * @param historyView The entire history of this episode
-     * @param attackerId The footman that will be attacking
-     * @return The enemy footman ID this unit should attack
+     * @param lambda Decay of the eligibility traces, in [0, 1]. 0 learns one step at a time.
      */
-    public int selectAction(State.StateView stateView, History.HistoryView historyView, int attackerId) {
-    	int defenderId = -1;
-    	
-    	switch(this.currentMode()){
-	    	case LEARNING:
-	    		// Execute a random action with probability epsilon
-	    		if(random.nextDouble() < epsilon){
-					int index = (int) random.nextDouble() * enemyFootmen.size();
-					defenderId = this.enemyFootmen.get(index);
-	    			break;
-	    		}
-	    		// Otherwise follow the action recommended by the current policy
-	    	case TESTING:
-	    		double currQValue;
-		    	double maxQValue = Double.MIN_VALUE;
-		    	for(int possibleDefenderId : this.enemyFootmen){
-		    		currQValue = calcQValue(stateView, historyView, attackerId, possibleDefenderId);
-		    		if(currQValue > maxQValue){
-		    			maxQValue = currQValue;
-		    			defenderId = possibleDefenderId;
-		    		}
-		    	}
-				break;
-    		default:
-    			System.out.println("No enemies left to attack");
-    			break;
+    public void setHyperparameters(double gamma, double lambda, double learningRate, double epsilon) {
+    	if (this.episodesPlayed > 0) {
+    		throw new IllegalStateException("Hyperparameters can only be changed before the first episode");
     	}
-    	
-    	return defenderId;
+    	if (gamma < 0 || gamma > 1 || lambda < 0 || lambda > 1 || learningRate <= 0 || epsilon < 0 || epsilon > 1) {
+    		throw new IllegalArgumentException("Invalid hyperparameters: gamma " + gamma + ", lambda " + lambda
+    				+ ", learning rate " + learningRate + ", epsilon " + epsilon);
+    	}
+    	this.gamma = gamma;
+    	this.lambda = lambda;
+    	this.learningRate = learningRate;
+    	this.epsilon = epsilon;
     }
-    
+
     /**
-     * Updates the rewards for each footman.
-     * @param stateView
-     * @param historyView
+     * Replaces the assignment's 10 learning and 5 testing episodes per block. Must be called before the first
+     * episode. The episode counts printed by printTestData still assume blocks of 10.
      */
-    private void updateFootmenRewards(State.StateView stateView, History.HistoryView historyView){
-    	if(stateView.getTurnNumber() > 0){
-    		Iterator<Integer> iter = this.myFootmen.iterator();
-    		Integer footmanId;
-    		while(iter.hasNext()){
-    			footmanId = iter.next();
-
-	    		double currentReward = calculateReward(stateView, historyView, footmanId);
-	    		double oldCumulativeReward = this.footmenRewards.get(footmanId);
-	    		double newCumulativeReward = oldCumulativeReward + currentReward;
-	    		this.footmenRewards.put(footmanId, newCumulativeReward);
-	    		
-    		}
+    public void setEpisodeBlocks(int numLearningEpisodes, int numTestingEpisodes) {
+    	if (this.episodesPlayed > 0) {
+    		throw new IllegalStateException("Episode blocks can only be changed before the first episode");
     	}
+    	if (numLearningEpisodes <= 0 || numTestingEpisodes <= 0) {
+    		throw new IllegalArgumentException("Episode blocks must be positive: " + numLearningEpisodes
+    				+ " learning, " + numTestingEpisodes + " testing");
+    	}
+    	this.numLearningEpisodes = numLearningEpisodes;
+    	this.numTestingEpisodes = numTestingEpisodes;
     }
 
     /**
-     * Given the current state and the footman in question calculate the reward received on the last turn.
-     * This is where you will check for things like Did this footman take or give damage? Did this footman die
-     * or kill its enemy. Did this footman start an action on the last turn? See the assignment description
-     * for the full list of rewards.
-     *
-     * Remember that you will need to discount this reward based on the timestep it is received on. See
-     * the assignment description for more details.
-     *
-     * As part of the reward you will need to calculate if any of the units have taken damage. You can use
-     * the history view to get a list of damages dealt in the previous turn. Use something like the following.
-     *
-     * for(DamageLog damageLogs : historyView.getDamageLogs(lastTurnNumber)) {
-     *     System.out.println("Defending player: " + damageLog.getDefenderController() + " defending unit: " + \
-     *     damageLog.getDefenderID() + " attacking player: " + damageLog.getAttackerController() + \
-     *     "attacking unit: " + damageLog.getAttackerID());
-     * }
-     *
-     * You will do something similar for the deaths. See the middle step documentation for a snippet
-     * showing how to use the deathLogs.
-     *
-     * To see if a command was issued you can check the commands issued log.
-     *
-     * Map<Integer, Action> commandsIssued = historyView.getCommandsIssued(playernum, lastTurnNumber);
-     * for (Map.Entry<Integer, Action> commandEntry : commandsIssued.entrySet()) {
-     *     System.out.println("Unit " + commandEntry.getKey() + " was command to " + commandEntry.getValue().toString);
-     * }
+     * @param exitOnCompletion Whether terminalStep should call System.exit once the session is complete
+     */
+    public void setExitOnCompletion(boolean exitOnCompletion) {
+    	this.exitOnCompletion = exitOnCompletion;
+    }
+
+    /**
+     * @param episodeLogging Whether to print a line for the result and type of every episode
+     */
+    public void setEpisodeLogging(boolean episodeLogging) {
+    	this.episodeLogging = episodeLogging;
+    }
+    
+    /**
+     * @param episodes Take a weight checkpoint after this many episodes
+     * @param seconds Or after this many seconds since the last one, whichever comes first
+     */
+    public void setCheckpointInterval(int episodes, double seconds) {
+    	this.checkpointEpisodes = episodes;
+    	this.checkpointSeconds = seconds;
+    }
+
+    /**
+     * @param metrics Where to record hot-path metrics instead of the shared instance,
+     *                e.g. new AgentMetrics(false) to record nothing
+     */
+    public void setMetrics(AgentMetrics metrics) {
+    	this.metrics = metrics;
+    }
+
+    /**
+     * @return The metrics this agent records into
+     */
+    public AgentMetrics getMetrics() {
+    	return this.metrics;
+    }
+
+    /**
+     * Makes sure the given weights are the last checkpoint on disk, and exports them as text.
      *
-     * @param stateView The current state of the game.
-     * @param historyView History of the episode up until this turn.
-     * @param footmanId The footman ID you are looking for the reward from.
-     * @return The current reward
+     * @param episodes Episodes the weights were trained for
      */
-    public double calculateReward(State.StateView stateView, History.HistoryView historyView, int footmanId) {
-    	double reward = 0.0;
-    	
-    	int lastTurnNumber = stateView.getTurnNumber() - 1;
+    void exportWeights(double[] weights, long episodes) {
+    	checkpointer().checkpoint(weights, episodes);
+    	checkpointer().close();
+    	// A closed checkpointer cannot write again, so the next session creates a new one
+    	checkpointer = null;
+    	saveWeights(toBoxed(weights));
+    }
 
-    	for(DamageLog damageLog : historyView.getDamageLogs(lastTurnNumber)) {
-    		if(damageLog.getAttackerID() == footmanId){
-    			reward += damageLog.getDamage();
-    		}
-    		if(damageLog.getDefenderID() == footmanId){
-    			reward -= damageLog.getDamage();
+    /**
+     * @return The weights to save: the shared vector when learning into one, as this agent's copy lags behind it
+     */
+    private double[] weightsToSave() {
+    	return this.sharedWeights != null ? this.sharedWeights.snapshot() : this.weights;
+    }
+
+    private WeightCheckpointer checkpointer() {
+    	if (checkpointer == null) {
+    		checkpointer = new WeightCheckpointer(Paths.get(WeightCheckpointer.DEFAULT_PATH), featureRegistry.names(),
+    				checkpointEpisodes, checkpointSeconds);
+    	}
+    	return checkpointer;
+    }
+
+    /**
+     * Loads the exact weights of the binary checkpoint, unless the text weights file holds other weights and was
+     * written after it, e.g. because it was replaced by hand. A session ends by writing both, and the text file
+     * is then only the checkpoint's weights rounded to 6 decimals, so the checkpoint is loaded. It is also loaded
+     * when the last session was stopped before it could export its weights. Checkpoint weights are matched to
+     * this agent's features by name, and features the checkpoint does not have start out random as they would
+     * without loading. The text file has no names, so it must have exactly one weight per feature.
+     * @return The saved weights, or null if none could be loaded
+     */
+    private double[] loadSavedWeights() {
+    	double[] savedWeights = null;
+    	String[] savedNames = null;
+    	Path checkpoint = Paths.get(WeightCheckpointer.DEFAULT_PATH);
+    	File textWeights = new File("agent_weights/weights.txt");
+    	double[] exportedWeights = textWeights.exists() ? toPrimitive(loadWeights()) : null;
+    	if (Files.exists(checkpoint)) {
+    		try {
+    			WeightCheckpointer.Checkpoint saved = WeightCheckpointer.load(checkpoint);
+    			if (exportedWeights == null || isExportOf(exportedWeights, saved.weights)
+    					|| checkpoint.toFile().lastModified() > textWeights.lastModified()) {
+    				savedWeights = saved.weights;
+    				savedNames = saved.featureNames;
+    				System.out.println("Loaded weights from " + checkpoint + " after " + saved.episodesPlayed + " episodes");
+    			}
+    		} catch (IOException ex) {
+    			System.err.println("Failed to load weight checkpoint. Reason: " + ex.getMessage());
     		}
     	}
-    	
-    	for(DeathLog deathLog : historyView.getDeathLogs(lastTurnNumber)) {
-    		// If this footman has died, 
-    		if(deathLog.getDeadUnitID() == footmanId){
-    			reward -= 100;
+    	if (savedWeights == null) {
+    		// Without a text file, loadWeights reports that it does not exist
+    		savedWeights = textWeights.exists() ? exportedWeights : toPrimitive(loadWeights());
+    		if (savedWeights != null)
+    			System.out.println("Loaded weights from " + textWeights.getPath());
+    	}
+    	if (savedWeights != null && savedNames != null) {
+    		double[] alignedWeights = new double[numFeatures];
+    		boolean[] loaded = new boolean[numFeatures];
+    		for (int i = 0; i < savedNames.length; i++) {
+    			int index = featureRegistry.indexOf(savedNames[i]);
+    			if (index >= 0) {
+    				alignedWeights[index] = savedWeights[i];
+    				loaded[index] = true;
+    			}
     		}
-    		// If the reward for killing it's targeted enemy is already claimed, this footman cannot claim it.
-    		if(deathLog.getController() == this.ENEMY_PLAYERNUM){
-    			Map<Integer, ActionResult> actionResults = historyView.getCommandFeedback(this.playernum, lastTurnNumber);
-    			if(actionResults.containsKey(new Integer(footmanId))){
-    				TargetedAction action = (TargetedAction) actionResults.get(footmanId).getAction();
-    				Integer defenderId = action.getTargetId();
-            		if(	!this.eliminatedEnemyFootmen.contains(new Integer(defenderId)) &&
-            				deathLog.getDeadUnitID() == defenderId) {
-                			this.eliminatedEnemyFootmen.add(new Integer(defenderId));
-                			reward += 100;
-            		}
+    		for (int i = 0; i < numFeatures; i++) {
+    			if (!loaded[i]) {
+    				alignedWeights[i] = random.nextDouble() * 2 - 1;
     			}
     		}
+    		return alignedWeights;
     	}
-
-    	// If a command was issued last turn, check if the same command was issued the turn before (an attack targeting the same target)
-    	Map<Integer, Action> commandsIssued = historyView.getCommandsIssued(playernum, lastTurnNumber);
-    	Map<Integer, Action> commandsIssuedBeforeLast = historyView.getCommandsIssued(playernum, lastTurnNumber - 1);
-    	if(commandsIssued.containsKey(footmanId) && commandsIssuedBeforeLast.containsKey(footmanId)){
-    		TargetedAction commandIssued = (TargetedAction) commandsIssued.get(footmanId);
-    		int enemyFootmanId = commandIssued.getTargetId();
-    		TargetedAction commandIssuedBeforeLast = (TargetedAction) commandsIssued.get(footmanId);
-    		int enemyFootmanIdBeforeLast = commandIssuedBeforeLast.getTargetId();
+    	if (savedWeights != null && savedWeights.length != numFeatures) {
+    		System.err.println("Saved weights have " + savedWeights.length + " features, expected " + numFeatures);
+    		return null;
+    	}
+    	return savedWeights;
+    }
+
+    /**
+     * @param testReporting Whether to print the test data after every set of testing episodes
+     */
+    public void setTestReporting(boolean testReporting) {
+    	this.testReporting = testReporting;
+    }
+
+    /**
+     * @param weightSaving Whether to checkpoint the weights while learning and write the weights file at the end
+     */
+    public void setWeightSaving(boolean weightSaving) {
+    	this.weightSaving = weightSaving;
+    }
+
+    /**
+     * Makes this agent learn into a weight vector shared with other agents. The agent's own weights are replaced
+     * by the shared ones.
+     */
+    public void setSharedWeights(SharedWeights sharedWeights) {
+    	this.sharedWeights = sharedWeights;
+    	if (sharedWeights != null) {
+    		this.weights = sharedWeights.snapshot();
+    	}
+    }
+
+    /**
+     * Turns on experience replay for learning episodes, keeping the DEFAULT_REPLAY_CANDIDATES strongest next
+     * candidates of each transition.
+     *
+     * @param capacity Number of transitions kept; the oldest are overwritten. 0 turns replay off.
+     * @param batchSize Number of transitions replayed per minibatch
+     * @param updateFrequency Number of weight updates between minibatches
+     */
+    public void setExperienceReplay(int capacity, int batchSize, int updateFrequency) {
+    	setExperienceReplay(capacity, batchSize, updateFrequency, DEFAULT_REPLAY_CANDIDATES);
+    }
+
+    /**
+     * Turns on experience replay for learning episodes. Each transition keeps the features of the nextCandidates
+     * enemies with the highest Q-values when it was stored, and a replay takes the max over those under the current
+     * weights. The buffer's size is fixed by capacity * (nextCandidates + 1), whatever the size of the battle.
+     *
+     * @param nextCandidates Next candidates kept per transition. 1 keeps only the best one.
+     */
+    public void setExperienceReplay(int capacity, int batchSize, int updateFrequency, int nextCandidates) {
+    	if (capacity == 0) {
+    		this.replayBuffer = null;
+    		return;
+    	}
+    	if (batchSize <= 0 || updateFrequency <= 0) {
+    		throw new IllegalArgumentException("Replay batch size and update frequency must be positive");
+    	}
+    	this.replayBuffer = new ReplayBuffer(capacity, numFeatures, nextCandidates);
+    	this.replayNextOffsets = new int[nextCandidates];
+    	this.replayNextQValues = new double[nextCandidates];
+    	this.replayBatchSize = batchSize;
+    	this.replayFrequency = updateFrequency;
+    	this.updatesSinceReplay = 0;
+    }
+
+    /**
+     * Limits the enemies each footman considers attacking to its nearest few and its current target, found on the
+     * spatial grid, so a turn costs O(F * k) feature evaluations instead of O(F * E) on large battles.
+     *
+     * @param candidates Number of nearest enemies to consider. 0 considers every enemy.
+     */
+    public void setTargetCandidates(int candidates) {
+    	if (candidates < 0) {
+    		throw new IllegalArgumentException("Number of target candidates must not be negative: " + candidates);
+    	}
+    	this.targetCandidates = candidates;
+    }
+
+    /**
+     * Makes the greedy choices of each turn one joint assignment of footmen to enemies, the one with the highest
+     * total Q-value that puts at most focusFireCapacity footmen on any enemy, instead of every footman taking its own
+     * best target. Exploration and the weight updates are unchanged: footmen that explore draw first and sit out the
+     * assignment, and the enemies they picked count against its capacity.
+     *
+     * @param focusFireCapacity Most footmen on one enemy, raised when there are too few enemies left. 0 turns the joint assignment off.
+     * @param budgetNanos Time the solver may take per turn before settling for the best assignment it has
+     */
+    public void setJointAssignment(int focusFireCapacity, long budgetNanos) {
+    	if (focusFireCapacity < 0) {
+    		throw new IllegalArgumentException("Focus fire capacity must not be negative: " + focusFireCapacity);
+    	}
+    	this.targetAssignment = focusFireCapacity == 0 ? null : new TargetAssignment(focusFireCapacity, budgetNanos);
+    }
+
+    /**
+     * Bounds the time a middle step spends evaluating candidate targets. Each footman's candidates are evaluated
+     * nearest first, and when the time is up the footmen choose among the candidates evaluated so far; those not
+     * reached keep their previous order. Missed deadlines and how much of each turn was evaluated are recorded in
+     * the metrics. Choosing targets and updating the weights for the evaluated candidates is not cut short.
+     *
+     * @param budgetNanos Time allowed per middle step. 0 removes the limit.
+     */
+    public void setDecisionDeadline(long budgetNanos) {
+    	if (budgetNanos < 0) {
+    		throw new IllegalArgumentException("Decision budget must not be negative: " + budgetNanos);
+    	}
+    	this.decisionBudgetNanos = budgetNanos;
+    }
+
+    /**
+     * Fills the footmen's rows of the Q-matrix and chooses their targets in parallel on the given pool, for large
+     * armies. Every footman deciding in a turn is evaluated against the same weights, those at the start of the
+     * turn, and the turn's weight updates are summed and applied together after it, rather than each footman
+     * seeing the updates of the footmen before it. Turns are reproducible whatever the size of the pool.
+     *
+     * With a decision deadline the rows are still filled one footman after another, since the deadline decides
+     * which of them are reached; only the choices are made in parallel.
+     *
+     * @param pool The pool to run on, e.g. ForkJoinPool.commonPool() or one shared by several agents. Null decides
+     *             for one footman after another again.
+     */
+    public void setParallelDecisions(ForkJoinPool pool) {
+    	this.decisionPool = pool;
+    }
+
+    /**
+     * Plays every episode as a learning episode and hands a snapshot of the weights to the evaluator after each
+     * block of learning episodes, instead of stopping for the testing episodes. The test data is still recorded and
+     * printed, in order, as the evaluations finish. Null goes back to interleaving learning and testing.
+     */
+    public void setSnapshotEvaluator(SnapshotEvaluator snapshotEvaluator) {
+    	this.snapshotEvaluator = snapshotEvaluator;
+    	this.schedule = snapshotEvaluator != null ? Schedule.LEARNING_ONLY : Schedule.INTERLEAVED;
+    }
+
+    /**
+     * @param frozenTesting Whether every episode is a testing episode, so the weights are never updated
+     */
+    public void setFrozenTesting(boolean frozenTesting) {
+    	this.snapshotEvaluator = null;
+    	this.schedule = frozenTesting ? Schedule.TESTING_ONLY : Schedule.INTERLEAVED;
+    }
+
+    /**
+     * Records the average cumulative reward of a completed set of testing episodes and prints the test data.
+     * Called from the snapshot evaluator's threads when testing asynchronously.
+     */
+    void testBlockEvaluated(double averageCumulativeReward) {
+    	synchronized (averageCumulativeRewards) {
+    		averageCumulativeRewards.add(averageCumulativeReward);
+    		if (testReporting && longRunMode)
+    			printTestBlock();
+    		else if (testReporting)
+    			printTestData(averageCumulativeRewards.toList());
+    	}
+    }
+
+    /**
+     * Prints one line for the set of testing episodes just recorded: its average and the running statistics.
+     */
+    private void printTestBlock() {
+    	RewardStatistics statistics = this.averageCumulativeRewards;
+    	System.out.println(String.format("%-18d%.2f   (mean %.2f, sd %.2f, last %d mean %.2f, best %.2f)",
+    			(statistics.count() - 1) * this.numLearningEpisodes, statistics.last(), statistics.mean(),
+    			statistics.standardDeviation(), statistics.retained(), statistics.windowMean(), statistics.best()));
+    }
+
+    private void printRewardSummary() {
+    	synchronized (averageCumulativeRewards) {
+    		RewardStatistics statistics = this.averageCumulativeRewards;
+    		System.out.println(String.format("%d sets of testing episodes: mean %.2f, sd %.2f, last %d mean %.2f, best %.2f",
+    				statistics.count(), statistics.mean(), statistics.standardDeviation(), statistics.retained(),
+    				statistics.windowMean(), statistics.best()));
+    	}
+    }
+
+    /**
+     * Records the transition of every weight update to the given log, see OfflineTrainer. The caller closes the
+     * recorder once the session is over. Null stops recording.
+     */
+    public void setTrajectoryRecorder(TrajectoryRecorder trajectoryRecorder) {
+    	this.trajectoryRecorder = trajectoryRecorder;
+    }
+
+    /**
+     * @return The names of the features this agent learns weights for, in weight order
+     */
+    public String[] getFeatureNames() {
+    	return this.featureRegistry.names();
+    }
+
+    /**
+     * @return The features this agent learns weights for
+     */
+    FeatureRegistry getFeatureRegistry() {
+    	return this.featureRegistry;
+    }
+
+    /**
+     * @return The averages of every completed set of testing episodes so far, or of the most recent ones in long-run mode
+     */
+    public List<Double> getAverageCumulativeRewards() {
+    	synchronized (averageCumulativeRewards) {
+    		return Collections.unmodifiableList(averageCumulativeRewards.toList());
+    	}
+    }
+
+    /**
+     * Keeps memory and reporting cost flat over sessions of any length. Only the most recent window averages are
+     * kept, next to running statistics of all of them, and each set of testing episodes prints a single line with
+     * its average, the running mean and standard deviation, the mean of the window and the best average, instead
+     * of reprinting the whole table with printTestData. Must be called before the first episode.
+     *
+     * @param window Number of recent averages to keep, positive
+     */
+    public void setLongRunMode(int window) {
+    	if (this.episodesPlayed > 0) {
+    		throw new IllegalStateException("Long-run mode can only be turned on before the first episode");
+    	}
+    	if (window <= 0) {
+    		throw new IllegalArgumentException("Window must be positive: " + window);
+    	}
+    	synchronized (averageCumulativeRewards) {
+    		this.averageCumulativeRewards = new RewardStatistics(window);
+    		this.longRunMode = true;
+    	}
+    }
+    
+    private void removeDeadUnits(State.StateView stateView, History.HistoryView historyView){
+    	if(stateView.getTurnNumber() > 0){
+    		int lastTurnNumber = stateView.getTurnNumber() - 1;
+        	for(DeathLog deathLog : historyView.getDeathLogs(lastTurnNumber)) {
+    			Integer unitId = Integer.valueOf(deathLog.getDeadUnitID());
+        		if(deathLog.getController() == this.playernum){
+        			this.myFootmen.remove(unitId);
+        			clearTrace(unitId);
+        		}
+        		else if(deathLog.getController() == ENEMY_PLAYERNUM){
+        			this.enemyFootmen.remove(unitId);
+        			this.enemyGrid.remove(unitId);
+        		}
+        		else{
+        			System.out.println("Phantom player?");
+        		}
+        	}
+    	}
+    }
+
+    /**
+     * Calculate the updated weights for this agent. The weights are updated in place.
+     * @param oldWeights Weights prior to update
+     * @param oldFeatures Features from (s,a)
+     * @param totalReward Cumulative discounted reward for this footman.
+     * @param stateView Current state of the game.
+     * @param historyView History of the game up until this point
+     * @param footmanId The footman we are updating the weights for
+     * @return The updated weight vector.
+     */
+    public double[] updateWeights(double[] oldWeights, double[] oldFeatures, double totalReward, State.StateView stateView, History.HistoryView historyView, int footmanId) {
+		double currentQVal = 0;
+		for (int j = 0; j < oldFeatures.length; j++) {
+			currentQVal += oldFeatures[j] * oldWeights[j];
+		}
+
+		// The footman's row of the Q-matrix is still current unless different weights were passed in
+		int footmanSlot = this.snapshot.allySlot(footmanId);
+		if (oldWeights != this.weights) {
+			this.qMatrix.invalidate();
+		}
+		this.qMatrix.ensureRow(footmanSlot, oldWeights);
+		double maxQVal = this.qMatrix.maxQValue(footmanSlot);
+		
+		double targetQVal = totalReward + gamma * maxQVal;
+		double step = learningRate * (targetQVal - currentQVal);
+		// With traces the TD error is applied along the footman's decayed history of features
+		double[] direction = oldFeatures;
+		if (this.lambda > 0 && oldWeights == this.weights) {
+			direction = accumulateTrace(footmanId, oldFeatures, 0, this.chosenExploratory, this.traceScratch);
+		}
+		for (int i = 0; i < oldWeights.length; i++) {
+			oldWeights[i] += step * direction[i];
+		}
+		this.metrics.recordWeightUpdate();
+		if (this.sharedWeights != null && oldWeights == this.weights) {
+			this.sharedWeights.addScaled(direction, step);
+		}
+		if (oldWeights == this.weights) {
+			recordTransition(footmanId, footmanSlot, oldFeatures, totalReward);
+		}
+		// Every row of the Q-matrix was computed with the old weights
+		this.qMatrix.invalidate();
+		return oldWeights;
+    }
+
+    /**
+     * Hands an update's transition to the trajectory log and the replay buffer, when they are in use.
+     */
+    private void recordTransition(int footmanId, int footmanSlot, double[] features, double totalReward) {
+    	if (this.trajectoryRecorder != null) {
+    		recordTrajectory(footmanId, footmanSlot, features, totalReward);
+    	}
+    	if (this.replayBuffer != null) {
+    		// The strongest candidates are kept, so the max over next actions can be taken again under later weights
+    		int numNext = strongestCandidates(footmanSlot);
+    		this.replayBuffer.add(features, totalReward, this.qMatrix.features(), this.replayNextOffsets, numNext);
+    		if (++this.updatesSinceReplay >= this.replayFrequency) {
+    			this.updatesSinceReplay = 0;
+    			replayMinibatch();
+    		}
+    	}
+    }
+
+    /**
+     * Finds the columns of the footman's row with the highest Q-values, as last evaluated, and leaves their feature
+     * offsets in replayNextOffsets, best first.
+     *
+     * @return The number of candidates found, at most the replay buffer's maxNext
+     */
+    private int strongestCandidates(int footmanSlot) {
+    	int[] offsets = this.replayNextOffsets;
+    	double[] qValues = this.replayNextQValues;
+    	int kept = 0;
+    	for(int column = 0; column < this.qMatrix.rowLength(footmanSlot); column++){
+    		double qValue = this.qMatrix.qValue(footmanSlot, column);
+    		if(kept == offsets.length && qValue <= qValues[kept - 1]){
+    			continue;
+    		}
+    		// Insertion into the kept candidates, dropping the weakest when they are full
+    		int position = kept < offsets.length ? kept++ : kept - 1;
+    		while(position > 0 && qValues[position - 1] < qValue){
+    			qValues[position] = qValues[position - 1];
+    			offsets[position] = offsets[position - 1];
+    			position--;
+    		}
+    		qValues[position] = qValue;
+    		offsets[position] = this.qMatrix.featureOffset(footmanSlot, column);
+    	}
+    	return kept;
+    }
+
+    /**
+     * Decays the footman's eligibility trace by gamma * lambda and adds the chosen pair's features to it, as in
+     * Watkins' Q(lambda). An exploratory choice, or an enemy the joint assignment gave the footman instead of its
+     * own best, does not follow the greedy policy the Q-values are learned for, so it cuts the trace first and only
+     * the chosen pair itself is credited.
+     *
+     * @param features Holds the chosen pair's features from the given offset
+     * @param out Receives a copy of the footman's updated trace
+     * @return out
+     */
+    double[] accumulateTrace(int footmanId, double[] features, int offset, boolean exploratory, double[] out) {
+    	ensureTraceCapacity(footmanId);
+    	int traceOffset = footmanId * this.numFeatures;
+    	double decay = exploratory ? 0.0 : this.gamma * this.lambda;
+    	for (int i = 0; i < this.numFeatures; i++) {
+    		double trace = decay * this.traces[traceOffset + i] + features[offset + i];
+    		this.traces[traceOffset + i] = trace;
+    		out[i] = trace;
+    	}
+    	return out;
+    }
+
+    private void ensureTraceCapacity(int footmanId) {
+    	int end = (footmanId + 1) * this.numFeatures;
+    	if (end > this.traces.length) {
+    		this.traces = Arrays.copyOf(this.traces, Math.max(end, this.traces.length * 2));
+    	}
+    }
+
+    /**
+     * Forgets a footman's eligibility trace, e.g. when it dies.
+     */
+    private void clearTrace(int footmanId) {
+    	int offset = footmanId * this.numFeatures;
+    	if (offset + this.numFeatures <= this.traces.length) {
+    		Arrays.fill(this.traces, offset, offset + this.numFeatures, 0.0);
+    	}
+    }
+
+    /**
+     * Forgets every eligibility trace at the start of an episode.
+     */
+    private void resetTraces() {
+    	Arrays.fill(this.traces, 0.0);
+    }
+
+    /**
+     * Appends the update's transition to the trajectory log: the chosen pair, the reward and the footman's whole
+     * row of candidates. Recording stops if the log cannot be written.
+     */
+    private void recordTrajectory(int footmanId, int footmanSlot, double[] features, double totalReward) {
+    	int defenderId = this.chosenDefenderSlot >= 0 ? this.snapshot.enemyIds[this.chosenDefenderSlot] : -1;
+    	try {
+    		this.trajectoryRecorder.record(footmanId, defenderId, features, totalReward,
+    				this.qMatrix.features(), this.qMatrix.featureOffset(footmanSlot, 0), this.qMatrix.rowLength(footmanSlot));
+    	} catch (IOException ex) {
+    		System.err.println("Failed to record trajectory. Reason: " + ex.getMessage());
+    		this.trajectoryRecorder = null;
+    	}
+    }
+
+    /**
+     * Replays a minibatch of stored transitions against the current weights, taking the max over each transition's
+     * stored next candidates under them. The gradients of the whole minibatch are summed and applied in one step.
+     */
+    private void replayMinibatch() {
+    	double[] gradient = this.replayGradient;
+    	Arrays.fill(gradient, 0.0);
+    	
+    	double[] features = this.replayBuffer.features();
+    	double[] nextFeatures = this.replayBuffer.nextFeatures();
+    	for (int sample = 0; sample < this.replayBatchSize; sample++) {
+    		int index = this.replayBuffer.sample(this.random);
+    		int offset = this.replayBuffer.featureOffset(index);
     		
-    		if(enemyFootmanId != enemyFootmanIdBeforeLast)
-    			reward -= 0.1;
+    		double currentQVal = 0;
+    		for (int i = 0; i < this.numFeatures; i++) {
+    			currentQVal += this.weights[i] * features[offset + i];
+    		}
+    		// With nothing left to attack there is no future value
+    		int numNext = this.replayBuffer.nextCount(index);
+    		int nextOffset = this.replayBuffer.nextOffset(index);
+    		double nextQVal = numNext == 0 ? 0.0 : Double.NEGATIVE_INFINITY;
+    		for (int next = 0; next < numNext; next++) {
+    			double qValue = 0;
+    			for (int i = 0; i < this.numFeatures; i++, nextOffset++) {
+    				qValue += this.weights[i] * nextFeatures[nextOffset];
+    			}
+    			nextQVal = Math.max(nextQVal, qValue);
+    		}
+    		double error = this.replayBuffer.reward(index) + gamma * nextQVal - currentQVal;
+    		for (int i = 0; i < this.numFeatures; i++) {
+    			gradient[i] += error * features[offset + i];
+    		}
     	}
     	
-        return reward;
+    	for (int i = 0; i < this.numFeatures; i++) {
+    		this.weights[i] += learningRate * gradient[i];
+    	}
+    	if (this.sharedWeights != null) {
+    		this.sharedWeights.addScaled(gradient, learningRate);
+    	}
+    }
+
+    /**
+     * Given a footman and the current state and history of the game select the enemy that this unit should
+     * attack. This is where you would do the epsilon-greedy action selection.
+     *
+     * @param stateView Current state of the game
+     * @param historyView The entire history of this episode
+     * @param attackerId The footman that will be attacking
+     * @return The enemy footman ID this unit should attack
+     */
+    public int selectAction(State.StateView stateView, History.HistoryView historyView, int attackerId) {
+    	// The chosen column of the footman's Q-matrix row, see candidateSlot
+    	int column = -1;
+    	this.chosenExploratory = false;
+    	
+    	// The row is only re-evaluated if the weights changed since the matrix was computed;
+    	// updateWeights reuses it for the max over next actions
+    	int attackerSlot = this.snapshot.allySlot(attackerId);
+    	this.qMatrix.ensureRow(attackerSlot, this.weights);
+    	
+    	if(this.snapshot.numEnemies == 0){
+    		System.out.println("No enemies left to attack");
+    	}
+    	else{
+	    	if(this.currentMode() == Mode.LEARNING){
+	    		// Execute a random action with probability epsilon
+	    		column = this.explorationDrawn ? this.exploreColumns[attackerSlot] : drawExploration(attackerSlot);
+	    		// Every epsilon pick is exploration, as it was before Q-values were reused, even one that lands on the best column
+	    		this.chosenExploratory = column >= 0;
+	    	}
+	    	if(column < 0){
+	    		// Otherwise follow the action recommended by the current policy
+	    		if(this.targetAssignment != null && !this.turnCutShort){
+	    			column = this.targetAssignment.columnOf(attackerSlot);
+	    			// The joint assignment may hand the footman another enemy than its own best
+	    			this.chosenExploratory = !isGreedyColumn(attackerSlot, column);
+	    		}
+	    		else{
+	    			column = this.qMatrix.bestDefenderSlot(attackerSlot);
+	    		}
+	    	}
+    	}
+    	
+    	if(column < 0){
+    		this.chosenDefenderSlot = -1;
+    		return -1;
+    	}
+    	this.chosenDefenderSlot = candidateSlot(attackerSlot, column);
+    	System.arraycopy(this.qMatrix.features(), this.qMatrix.featureOffset(attackerSlot, column), this.chosenFeatures, 0, this.numFeatures);
+    	return this.snapshot.enemyIds[this.chosenDefenderSlot];
+    }
+    
+    /**
+     * Draws the epsilon-greedy coin for one footman, and the enemy column if it explores.
+     * @return A random column of the footman's Q-matrix row with probability epsilon, otherwise -1
+     */
+    private int drawExploration(int attackerSlot){
+    	if(random.nextDouble() < epsilon){
+    		return random.nextInt(this.qMatrix.rowLength(attackerSlot));
+    	}
+    	return -1;
+    }
+    
+    /**
+     * Draws the epsilon-greedy choices of every footman with a decision pending into exploreColumns, in slot order.
+     */
+    private void drawExplorations(){
+    	int numAllies = this.snapshot.numAllies;
+    	if(this.exploreColumns.length < numAllies){
+    		this.exploreColumns = new int[numAllies];
+    	}
+    	for(int allySlot = 0; allySlot < numAllies; allySlot++){
+    		boolean drawn = this.decisionPending[allySlot] && this.snapshot.numEnemies > 0;
+    		this.exploreColumns[allySlot] = drawn ? drawExploration(allySlot) : -1;
+    	}
+    }
+    
+    /**
+     * Fills the Q-matrix's feature tensor with the features of every candidate (footman, enemy) pair in this turn's
+     * snapshot, for the footmen that have a decision pending. The other rows are left stale and are not read this
+     * turn. Without pruning or a deadline every enemy is a candidate and column i of each row is enemy slot i.
+     *
+     * With a deadline each row lists its candidates nearest first, and filling stops when the deadline passes: the
+     * row being filled is cut short after its last filled column, and footmen whose rows were not reached have their
+     * decision dropped for this turn. The footmen take turns being filled first.
+     *
+     * @param deadline System.nanoTime() by which filling must stop, or 0 for no deadline
+     */
+    private void fillFeatureTensor(long deadline){
+    	int numAllies = this.snapshot.numAllies;
+    	int numEnemies = this.snapshot.numEnemies;
+    	boolean anytime = deadline != 0L;
+    	
+    	// The sorted rank table only pays off when every pair is evaluated and a feature needs ranks
+    	this.candidatesListed = this.targetCandidates > 0 || anytime;
+    	this.turnInputs.rankTableInUse = !this.candidatesListed && this.featureRegistry.requires(FeatureInput.DISTANCES);
+    	if(this.targetCandidates > 0){
+    		this.numCandidates = Math.min(this.targetCandidates + 1, numEnemies);
+    		pruneCandidates();
+    	}
+    	else{
+    		this.numCandidates = numEnemies;
+    		if(anytime && this.candidateSlots.length < numAllies * numEnemies){
+    			this.candidateSlots = new int[numAllies * numEnemies];
+    		}
+    	}
+    	this.qMatrix.resize(numAllies, this.numCandidates);
+    	this.turnCutShort = false;
+    	this.pairsFilled = 0;
+    	this.pairsPending = 0;
+    	if(this.decisionPool != null && !anytime){
+    		// The pool rebuilds the rank rows and fills the rows of the tensor, see fillRow
+    		runDecisionTasks(true);
+    		return;
+    	}
+    	if(this.turnInputs.rankTableInUse){
+    		for(int attackerSlot = 0; attackerSlot < numAllies; attackerSlot++){
+    			if(this.decisionPending[attackerSlot]){
+    				this.distanceRanks.rebuildRow(this.snapshot, attackerSlot);
+    			}
+    		}
+    	}
+    	
+    	double[] features = this.qMatrix.features();
+    	int first = 0;
+    	if(anytime && numAllies > 0){
+    		first = this.nextFirstFootman % numAllies;
+    		this.nextFirstFootman = first + 1;
+    	}
+    	for(int i = 0; i < numAllies; i++){
+    		int attackerSlot = (first + i) % numAllies;
+    		if(!this.decisionPending[attackerSlot]){
+    			continue;
+    		}
+    		this.pairsPending += this.numCandidates;
+    		if(this.turnCutShort){
+    			this.decisionPending[attackerSlot] = false;
+    			continue;
+    		}
+    		if(anytime && this.targetCandidates == 0){
+    			orderByDistance(attackerSlot);
+    		}
+    		int column = 0;
+    		for(; column < this.numCandidates; column++){
+    			if(anytime && System.nanoTime() > deadline){
+    				this.turnCutShort = true;
+    				break;
+    			}
+    			fillFeatureVector(attackerSlot, candidateSlot(attackerSlot, column), features, this.qMatrix.featureOffset(attackerSlot, column));
+    		}
+    		this.pairsFilled += column;
+    		if(column == 0 && this.numCandidates > 0){
+    			this.decisionPending[attackerSlot] = false;
+    		}
+    		else if(column < this.numCandidates){
+    			this.qMatrix.truncateRow(attackerSlot, column);
+    		}
+    	}
+    }
+    
+    /**
+     * Chooses the targets of every footman with a decision pending at once, on the decision pool, and applies the
+     * turn's weight updates together. See setParallelDecisions.
+     *
+     * The exploration choices are drawn beforehand in slot order, every footman's TD error is computed against the
+     * weights at the start of the turn, and each task sums the updates of its own fixed range of footmen. The sums
+     * are then added to the weights in task order, and the trajectory log and the replay buffer are fed in slot
+     * order, so a turn's outcome does not depend on the number of threads or on how the tasks were scheduled.
+     */
+    private void decideInParallel(boolean learning){
+    	int numAllies = this.snapshot.numAllies;
+    	if(this.chosenColumns.length < numAllies){
+    		this.chosenColumns = new int[numAllies];
+    	}
+    	this.parallelLearning = learning;
+    	for(int allySlot = 0; allySlot < numAllies; allySlot++){
+    		if(learning && this.decisionPending[allySlot]){
+    			// Traces only grow here, never on the pool
+    			ensureTraceCapacity(this.snapshot.allyIds[allySlot]);
+    		}
+    	}
+    	if(this.snapshot.numEnemies == 0){
+    		System.out.println("No enemies left to attack");
+    	}
+    	
+    	int numTasks = runDecisionTasks(false);
+    	if(!learning){
+    		return;
+    	}
+    	
+    	double[] gradient = this.turnGradient;
+    	Arrays.fill(gradient, 0.0);
+    	for(int task = 0; task < numTasks; task++){
+    		for(int i = 0; i < this.numFeatures; i++){
+    			gradient[i] += this.taskGradients[task][i];
+    		}
+    	}
+    	for(int i = 0; i < this.numFeatures; i++){
+    		this.weights[i] += gradient[i];
+    	}
+    	if(this.sharedWeights != null){
+    		this.sharedWeights.addScaled(gradient, 1.0);
+    	}
+    	
+    	for(int allySlot = 0; allySlot < numAllies; allySlot++){
+    		int column = this.chosenColumns[allySlot];
+    		if(!this.decisionPending[allySlot] || column < 0){
+    			continue;
+    		}
+    		this.metrics.recordWeightUpdate();
+    		if(this.trajectoryRecorder != null || this.replayBuffer != null){
+    			int footmanId = this.snapshot.allyIds[allySlot];
+    			this.chosenDefenderSlot = candidateSlot(allySlot, column);
+    			System.arraycopy(this.qMatrix.features(), this.qMatrix.featureOffset(allySlot, column), this.chosenFeatures, 0, this.numFeatures);
+    			recordTransition(footmanId, allySlot, this.chosenFeatures, this.footmenRewards.cumulativeReward(footmanId));
+    		}
+    	}
+    	// Every row of the Q-matrix was computed with the old weights
+    	this.qMatrix.invalidate();
+    }
+    
+    /**
+     * Runs one phase of a parallel turn on the decision pool, DECISIONS_PER_TASK footmen per task.
+     *
+     * @param filling Whether to fill the footmen's rows, see fillRow, or to choose their targets, see decide
+     * @return The number of tasks
+     */
+    private int runDecisionTasks(boolean filling){
+    	int numTasks = (this.snapshot.numAllies + DECISIONS_PER_TASK - 1) / DECISIONS_PER_TASK;
+    	if(this.taskGradients.length < numTasks){
+    		this.taskGradients = new double[numTasks][this.numFeatures];
+    		this.taskTraces = new double[numTasks][this.numFeatures];
+    		this.taskEvaluations = new int[numTasks];
+    		this.taskRankRows = new int[numTasks][0];
+    	}
+    	for(int task = 0; task < numTasks; task++){
+    		Arrays.fill(this.taskGradients[task], 0.0);
+    		this.taskEvaluations[task] = 0;
+    		if(this.taskRankRows[task].length < this.snapshot.numEnemies){
+    			this.taskRankRows[task] = new int[this.snapshot.numEnemies];
+    		}
+    	}
+    	int pending = 0;
+    	for(int allySlot = 0; allySlot < this.snapshot.numAllies; allySlot++){
+    		pending += this.decisionPending[allySlot] ? 1 : 0;
+    	}
+    	if(pending > DECISIONS_PER_TASK){
+    		this.decisionPool.invoke(new DecisionTask(filling, 0, numTasks));
+    	}
+    	else{
+    		// Most turns only a few footmen decide, and handing them to the pool costs more than it saves.
+    		// The tasks are the same either way, so this does not change the outcome.
+    		for(int task = 0; task < numTasks; task++){
+    			runDecisionTask(filling, task);
+    		}
+    	}
+    	for(int task = 0; task < numTasks; task++){
+    		this.featureEvaluations += this.taskEvaluations[task];
+    	}
+    	return numTasks;
+    }
+    
+    /**
+     * Rebuilds the footman's rank row if the features read it, fills its row of the feature tensor and evaluates
+     * its Q-values. Only the footman's own rows are written, so footmen can be filled in parallel.
+     */
+    private void fillRow(int attackerSlot, int task){
+    	if(this.turnInputs.rankTableInUse){
+    		this.distanceRanks.rebuildRow(this.snapshot, attackerSlot, this.taskRankRows[task]);
+    	}
+    	double[] features = this.qMatrix.features();
+    	for(int column = 0; column < this.numCandidates; column++){
+    		this.featureRegistry.evaluate(this.turnInputs, attackerSlot, candidateSlot(attackerSlot, column), features, this.qMatrix.featureOffset(attackerSlot, column));
+    	}
+    	this.taskEvaluations[task] += this.numCandidates;
+    	this.qMatrix.ensureRow(attackerSlot, this.weights);
+    }
+    
+    /**
+     * @return Whether the column has the highest Q-value of the footman's row, tied or not, so choosing it follows
+     *         the greedy policy
+     */
+    private boolean isGreedyColumn(int attackerSlot, int column){
+    	return this.qMatrix.qValue(attackerSlot, column) >= this.qMatrix.maxQValue(attackerSlot);
+    }
+
+    /**
+     * The epsilon-greedy choice of selectAction, made with the footman's drawn exploration choice. In a learning
+     * episode the footman's weight update is added to its task's sum instead of to the weights.
+     */
+    private void decide(int attackerSlot, int task){
+    	int column = -1;
+    	boolean exploratory = false;
+    	if(this.snapshot.numEnemies > 0){
+    		this.qMatrix.ensureRow(attackerSlot, this.weights);
+    		if(this.parallelLearning && this.exploreColumns[attackerSlot] >= 0){
+    			column = this.exploreColumns[attackerSlot];
+    			exploratory = true;
+    		}
+    		else if(this.targetAssignment != null && !this.turnCutShort){
+    			column = this.targetAssignment.columnOf(attackerSlot);
+    			exploratory = !isGreedyColumn(attackerSlot, column);
+    		}
+    		else{
+    			column = this.qMatrix.bestDefenderSlot(attackerSlot);
+    		}
+    	}
+    	this.chosenColumns[attackerSlot] = column;
+    	if(!this.parallelLearning || column < 0){
+    		return;
+    	}
+    	
+    	int footmanId = this.snapshot.allyIds[attackerSlot];
+    	double[] features = this.qMatrix.features();
+    	int offset = this.qMatrix.featureOffset(attackerSlot, column);
+    	double targetQVal = this.footmenRewards.cumulativeReward(footmanId) + gamma * this.qMatrix.maxQValue(attackerSlot);
+    	double step = learningRate * (targetQVal - this.qMatrix.qValue(attackerSlot, column));
+    	double[] direction = features;
+    	if(this.lambda > 0){
+    		direction = accumulateTrace(footmanId, features, offset, exploratory, this.taskTraces[task]);
+    		offset = 0;
+    	}
+    	double[] gradient = this.taskGradients[task];
+    	for(int i = 0; i < this.numFeatures; i++){
+    		gradient[i] += step * direction[offset + i];
+    	}
+    }
+    
+    /**
+     * Fills or decides for a range of tasks, splitting it in halves down to single tasks. Task t covers the footmen
+     * in slots t * DECISIONS_PER_TASK up to (t + 1) * DECISIONS_PER_TASK.
+     */
+    private final class DecisionTask extends RecursiveAction {
+    	private static final long serialVersionUID = 1L;
+    	
+    	private final boolean filling;
+    	private final int firstTask;
+    	private final int endTask;
+    	
+    	DecisionTask(boolean filling, int firstTask, int endTask){
+    		this.filling = filling;
+    		this.firstTask = firstTask;
+    		this.endTask = endTask;
+    	}
+    	
+    	@Override
+    	protected void compute(){
+    		if(this.endTask - this.firstTask > 1){
+    			int middle = (this.firstTask + this.endTask) >>> 1;
+    			invokeAll(new DecisionTask(this.filling, this.firstTask, middle), new DecisionTask(this.filling, middle, this.endTask));
+    			return;
+    		}
+    		runDecisionTask(this.filling, this.firstTask);
+    	}
+    }
+    
+    /**
+     * Fills or decides for the footmen of one task that have a decision pending.
+     */
+    private void runDecisionTask(boolean filling, int task){
+    	int end = Math.min((task + 1) * DECISIONS_PER_TASK, this.snapshot.numAllies);
+    	for(int allySlot = task * DECISIONS_PER_TASK; allySlot < end; allySlot++){
+    		if(!this.decisionPending[allySlot]){
+    			continue;
+    		}
+    		if(filling){
+    			fillRow(allySlot, task);
+    		}
+    		else{
+    			decide(allySlot, task);
+    		}
+    	}
+    }
+    
+    /**
+     * Lists every enemy as a candidate of the footman, nearest first, with ties in slot order.
+     */
+    private void orderByDistance(int attackerSlot){
+    	int numEnemies = this.snapshot.numEnemies;
+    	if(this.distanceOrder.length < numEnemies){
+    		this.distanceOrder = new long[numEnemies];
+    	}
+    	int x = this.snapshot.allyX[attackerSlot];
+    	int y = this.snapshot.allyY[attackerSlot];
+    	for(int enemySlot = 0; enemySlot < numEnemies; enemySlot++){
+    		long distance = DistanceRankTable.chebyshevDistance(x, y, this.snapshot.enemyX[enemySlot], this.snapshot.enemyY[enemySlot]);
+    		this.distanceOrder[enemySlot] = (distance << 32) | enemySlot;
+    	}
+    	Arrays.sort(this.distanceOrder, 0, numEnemies);
+    	int row = attackerSlot * numEnemies;
+    	for(int column = 0; column < numEnemies; column++){
+    		this.candidateSlots[row + column] = (int) this.distanceOrder[column];
+    	}
+    }
+    
+    /**
+     * Picks the candidate targets of each footman with a decision pending from the grid: its nearest enemies, with the farthest of them swapped
+     * for its current target if that is still alive and not already among them, so a footman can always keep
+     * attacking what it is attacking.
+     */
+    private void pruneCandidates(){
+    	int numAllies = this.snapshot.numAllies;
+    	int columns = this.numCandidates;
+    	if(this.candidateSlots.length < numAllies * columns){
+    		this.candidateSlots = new int[numAllies * columns];
+    	}
+    	if(this.nearestIds.length < columns){
+    		this.nearestIds = new int[columns];
+    		this.nearestDistances = new int[columns];
+    	}
+    	
+    	for(int attackerSlot = 0; attackerSlot < numAllies; attackerSlot++){
+    		if(!this.decisionPending[attackerSlot]){
+    			continue;
+    		}
+    		int found = this.enemyGrid.nearest(this.snapshot.allyX[attackerSlot], this.snapshot.allyY[attackerSlot], columns, this.nearestIds, this.nearestDistances);
+    		
+    		int targetId = this.targetingIndex.targetOf(this.snapshot.allyIds[attackerSlot]);
+    		if(found < this.snapshot.numEnemies && this.snapshot.enemySlot(targetId) >= 0){
+    			boolean listed = false;
+    			for(int i = 0; i < found; i++){
+    				listed |= this.nearestIds[i] == targetId;
+    			}
+    			if(!listed){
+    				this.nearestIds[found - 1] = targetId;
+    			}
+    		}
+    		
+    		int row = attackerSlot * columns;
+    		for(int column = 0; column < found; column++){
+    			this.candidateSlots[row + column] = this.snapshot.enemySlot(this.nearestIds[column]);
+    		}
+    	}
+    }
+    
+    /**
+     * Solves the joint assignment for the footmen with a decision pending that do not explore this turn, against the
+     * weights at the start of the turn. Footmen that keep their action count against the capacity of the enemy they
+     * are attacking, and exploring footmen against the enemy they picked.
+     */
+    private void assignTargets(){
+    	int numAllies = this.snapshot.numAllies;
+    	if(this.currentTargetSlots.length < numAllies){
+    		this.currentTargetSlots = new int[numAllies];
+    		this.biddingFootmen = new boolean[numAllies];
+    	}
+    	for(int allySlot = 0; allySlot < numAllies; allySlot++){
+    		boolean exploring = this.explorationDrawn && this.exploreColumns[allySlot] >= 0;
+    		this.biddingFootmen[allySlot] = this.decisionPending[allySlot] && !exploring;
+    		if(this.biddingFootmen[allySlot]){
+    			this.qMatrix.ensureRow(allySlot, this.weights);
+    		}
+    		this.currentTargetSlots[allySlot] = exploring ? candidateSlot(allySlot, this.exploreColumns[allySlot])
+    				: this.snapshot.enemySlot(this.targetingIndex.targetOf(this.snapshot.allyIds[allySlot]));
+    	}
+    	this.targetAssignment.solve(this.qMatrix, numAllies, this.snapshot.numEnemies, this.numCandidates,
+    			this.candidatesListed ? this.candidateSlots : null, this.biddingFootmen, this.currentTargetSlots);
+    }
+    
+    /**
+     * @return The enemy slot of the given column of the attacker's Q-matrix row.
+     */
+    private int candidateSlot(int attackerSlot, int column){
+    	return this.candidatesListed ? this.candidateSlots[attackerSlot * this.numCandidates + column] : column;
+    }
+    
+    /**
+     * Updates the rewards for each footman.
+     * @param stateView
+     * @param historyView
+     */
+    private void updateFootmenRewards(State.StateView stateView, History.HistoryView historyView){
+    	if(stateView.getTurnNumber() > 0){
+    		// One pass over last turn's logs credits every footman at once
+    		long startNanos = this.metrics.startTimer();
+    		this.footmenRewards.accumulate(historyView, stateView.getTurnNumber() - 1, this.eliminatedEnemyFootmen);
+    		this.metrics.recordReward(startNanos);
+    	}
+    }
+
+    /**
+     * Given the current state and the footman in question calculate the reward received on the last turn.
+     * This is where you will check for things like Did this footman take or give damage? Did this footman die
+     * or kill its enemy. Did this footman start an action on the last turn? See the assignment description
+     * for the full list of rewards.
+     *
+     * Remember that you will need to discount this reward based on the timestep it is received on. See
+     * the assignment description for more details.
+     *
+     * As part of the reward you will need to calculate if any of the units have taken damage. You can use
+     * the history view to get a list of damages dealt in the previous turn. Use something like the following.
+     *
+     * for(DamageLog damageLogs : historyView.getDamageLogs(lastTurnNumber)) {
+     *     System.out.println("Defending player: " + damageLog.getDefenderController() + " defending unit: " + \
+     *     damageLog.getDefenderID() + " attacking player: " + damageLog.getAttackerController() + \
+     *     "attacking unit: " + damageLog.getAttackerID());
+     * }
+     *
+     * You will do something similar for the deaths. See the middle step documentation for a snippet
+     * showing how to use the deathLogs.
+     *
+     * To see if a command was issued you can check the commands issued log.
+     *
+     * Map<Integer, Action> commandsIssued = historyView.getCommandsIssued(playernum, lastTurnNumber);
+     * for (Map.Entry<Integer, Action> commandEntry : commandsIssued.entrySet()) {
+     *     System.out.println("Unit " + commandEntry.getKey() + " was command to " + commandEntry.getValue().toString);
+     * }
+     *
+     * @param stateView The current state of the game.
+     * @param historyView History of the episode up until this turn.
+     * @param footmanId The footman ID you are looking for the reward from.
+     * @return The current reward
+     */
+    public double calculateReward(State.StateView stateView, History.HistoryView historyView, int footmanId) {
+    	// The rewards for every footman are computed together, see RewardAccumulator
+    	updateFootmenRewards(stateView, historyView);
+    	
+        return this.footmenRewards.turnReward(footmanId);
     }
 
     /**
@@ -539,7 +1813,8 @@ public class RLAgent extends Agent {
                              int attackerId,
                              int defenderId) {
     	double qValue = 0.0;
-    	double[] featureVector = calculateFeatureVector(stateView, historyView, attackerId, defenderId);
+    	double[] featureVector = this.scratchFeatures;
+    	fillFeatureVector(this.snapshot.allySlot(attackerId), this.snapshot.enemySlot(defenderId), featureVector, 0);
     	
     	for(int i = 0; i < featureVector.length; i++){
     		qValue += this.weights[i] * featureVector[i];
@@ -569,142 +1844,24 @@ public class RLAgent extends Agent {
                                            History.HistoryView historyView,
                                            int attackerId,
                                            int defenderId) {
-    	double[] featureVector = new double[RLAgent.NUM_FEATURES];
-    	
-    	double constant = 0.0;
-    	featureVector[0] = constant;
-    	
-    	double distanceFeature = calculateDistanceFeature(stateView, historyView, attackerId, defenderId);
-    	featureVector[1] = distanceFeature;
-    	double healthFeature = calculateHealthFeature(stateView, historyView, attackerId, defenderId);
-    	featureVector[2] = healthFeature;
-    	double numbersFeature = calculateNumbersFeature(stateView, historyView, attackerId, defenderId);
-    	featureVector[3] = numbersFeature;
-    	double isAttackingSelfFeature = calculateIsAttackingSelfFeature(stateView, historyView, attackerId, defenderId);
-    	featureVector[4] = isAttackingSelfFeature;
-    	
+    	double[] featureVector = new double[this.numFeatures];
+    	fillFeatureVector(this.snapshot.allySlot(attackerId), this.snapshot.enemySlot(defenderId), featureVector, 0);
     	
     	return featureVector;
     }
     
     /**
-     * This returns the feature representing the Chebyshev Distance between the ally footman and the enemy footman.
+     * Writes the features of a pair into the given buffer without allocating. The registered features are
+     * evaluated in one pass, all reading this turn's inputs; see Features for the built-in ones.
      * 
-     * @param stateView Current state of the SEPIA game
-     * @param historyView History of the game up until this turn
-     * @param attackerId Your footman. The one doing the attacking.
-     * @param defenderId An enemy footman. The one you are considering attacking.
-     * @return The distance feature to be used in calculating the Q-Value.
+     * @param attackerSlot Your footman's slot in this turn's snapshot
+     * @param defenderSlot An enemy footman's slot in this turn's snapshot
+     * @param featureVector Buffer to write into
+     * @param offset Index of the first feature in the buffer
      */
-    private double calculateDistanceFeature(State.StateView stateView,
-                                           History.HistoryView historyView,
-                                           int attackerId,
-                                           int defenderId) {
-    	double distanceFeature = 0.0;
-    	
-    	UnitView attacker = stateView.getUnit(attackerId);
-    	UnitView defender = stateView.getUnit(defenderId);
-    	
-    	int targetDistance = chebyshevDistance(attacker.getXPosition(), attacker.getYPosition(), defender.getXPosition(), defender.getYPosition());
-
-		int numberOfEnemiesCloser = 0;
-		for (int enemyID : enemyFootmen) {
-			UnitView enemy = stateView.getUnit(enemyID);
-			int distance = chebyshevDistance(attacker.getXPosition(),
-					attacker.getYPosition(), enemy.getXPosition(), enemy.getYPosition());
-			if (distance < targetDistance) {
-				numberOfEnemiesCloser++;
-			}
-		}
-		distanceFeature = enemyFootmen.size() - numberOfEnemiesCloser;
-		
-    	return distanceFeature;
-    }
-    
-    private int chebyshevDistance(int x1, int y1, int x2, int y2){
-    	return Math.max(Math.abs(x1 - x2), Math.abs(y1 - y2));
-    }
-    
-    /**
-     * This returns the feature representing the health ratio between the ally footman and the enemy footman.
-     * 
-     * @param stateView Current state of the SEPIA game
-     * @param historyView History of the game up until this turn
-     * @param attackerId Your footman. The one doing the attacking.
-     * @param defenderId An enemy footman. The one you are considering attacking.
-     * @return The health feature to be used in calculating the Q-Value.
-     */
-    private double calculateHealthFeature(State.StateView stateView,
-                                           History.HistoryView historyView,
-                                           int attackerId,
-                                           int defenderId) {
-    	double healthFeature = 0.0;
-    	
-    	UnitView attacker = stateView.getUnit(attackerId);
-    	UnitView defender = stateView.getUnit(defenderId);
-    	
-    	healthFeature = ((double)attacker.getHP()) / ((double)defender.getHP());
-    	
-    	return healthFeature;
-    }
-    
-    /**
-     * This returns the feature representing the number of ally footmen currently attacking your footman's desginated target enemy footman
-     * in ratio to your remaining footmen.
-     * 
-     * @param stateView Current state of the SEPIA game
-     * @param historyView History of the game up until this turn
-     * @param attackerId Your footman. The one doing the attacking.
-     * @param defenderId An enemy footman. The one you are considering attacking.
-     * @return The numbers feature to be used in calculating the Q-Value.
-     */
-    private double calculateNumbersFeature(State.StateView stateView,
-                                           History.HistoryView historyView,
-                                           int attackerId,
-                                           int defenderId) {
-    	double numbersFeature = 0.0;
-
-    	int lastTurnNumber = stateView.getTurnNumber() - 1;
-    	Map<Integer, Action> commandsIssued = historyView.getCommandsIssued(RLAgent.ENEMY_PLAYERNUM, lastTurnNumber);
-    	
-    	for(Integer myFootman:this.myFootmen){
-    		if(commandsIssued.containsKey(myFootman)){
-    			TargetedAction action = (TargetedAction) commandsIssued.get(myFootman);
-    			if(action.getTargetId() == defenderId){
-    				numbersFeature += 1.0;
-    			}
-    		}
-    	}
-    	
-    	numbersFeature /= this.myFootmen.size();
-    	
-    	return numbersFeature;
-    }
-    
-    /**
-     * This returns the feature representing whether or not your footman's designated target enemy footman is currently attacking your footman.
-     * 
-     * @param stateView Current state of the SEPIA game
-     * @param historyView History of the game up until this turn
-     * @param attackerId Your footman. The one doing the attacking.
-     * @param defenderId An enemy footman. The one you are considering attacking.
-     * @return The feature, representing whether or not the target enemy is targeting your ally, to be used in calculating the Q-Value.
-     */
-    private double calculateIsAttackingSelfFeature(State.StateView stateView,
-                                           History.HistoryView historyView,
-                                           int attackerId,
-                                           int defenderId) {
-    	double isAttackingSelfFeature = 0.0;
-
-    	int lastTurnNumber = stateView.getTurnNumber() - 1;
-    	Map<Integer, Action> commandsIssued = historyView.getCommandsIssued(RLAgent.ENEMY_PLAYERNUM, lastTurnNumber);
-    	if(commandsIssued.containsKey(defenderId)){
-        	TargetedAction defenderAction = (TargetedAction) commandsIssued.get(defenderId);
-        	if(defenderAction.getTargetId() == attackerId)
-        		isAttackingSelfFeature = 1.0;
-    	}
-    	
-    	return isAttackingSelfFeature;
+    private void fillFeatureVector(int attackerSlot, int defenderSlot, double[] featureVector, int offset) {
+    	this.featureEvaluations++;
+    	this.featureRegistry.evaluate(this.turnInputs, attackerSlot, defenderSlot, featureVector, offset);
     }
 
     /**
@@ -794,6 +1951,40 @@ public class RLAgent extends Agent {
         return null;
     }
 
+    /**
+     * @return Whether the text weights are what saveWeights writes for the given weights
+     */
+    private static boolean isExportOf(double[] exportedWeights, double[] weights) {
+    	if (exportedWeights.length != weights.length) {
+    		return false;
+    	}
+    	for (int i = 0; i < weights.length; i++) {
+    		if (!String.format("%f", weights[i]).equals(String.format("%f", exportedWeights[i]))) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
+    private static double[] toPrimitive(Double[] boxedWeights) {
+    	if (boxedWeights == null) {
+    		return null;
+    	}
+    	double[] weights = new double[boxedWeights.length];
+    	for (int i = 0; i < weights.length; i++) {
+    		weights[i] = boxedWeights[i];
+    	}
+    	return weights;
+    }
+
+    private static Double[] toBoxed(double[] weights) {
+    	Double[] boxedWeights = new Double[weights.length];
+    	for (int i = 0; i < weights.length; i++) {
+    		boxedWeights[i] = weights[i];
+    	}
+    	return boxedWeights;
+    }
+
     @Override
     public void savePlayerData(OutputStream outputStream) {
 
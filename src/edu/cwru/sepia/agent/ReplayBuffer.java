@@ -0,0 +1,131 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Random;
+
+/**
+ * Fixed-capacity ring buffer of learning transitions, stored column-wise in primitive arrays. Each transition is
+ * the features of the (footman, enemy) pair that was chosen, the footman's reward, and the features of up to
+ * maxNext candidate pairs available to it in the state the update was made from. When the transition is replayed
+ * the max over next actions is taken over those candidates under the current weights. Once full, the oldest
+ * transition is overwritten.
+ *
+ * All memory is allocated at construction, so it does not grow with the size of the battle.
+ */
+class ReplayBuffer {
+
+	private final int capacity;
+	private final int numFeatures;
+
+	private final double[] features;
+	private final double[] rewards;
+	private final double[] nextFeatures;
+	private final int[] nextCounts;
+	// Candidates each transition has room for
+	private final int maxNext;
+
+	// Index the next transition is written to, and how many transitions are stored
+	private int head;
+	private int size;
+
+	/**
+	 * @param maxNext Most next candidates kept with each transition
+	 */
+	ReplayBuffer(int capacity, int numFeatures, int maxNext) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Replay capacity must be positive: " + capacity);
+		}
+		if (maxNext <= 0) {
+			throw new IllegalArgumentException("Replay next candidates must be positive: " + maxNext);
+		}
+		this.capacity = capacity;
+		this.numFeatures = numFeatures;
+		this.features = new double[capacity * numFeatures];
+		this.rewards = new double[capacity];
+		this.nextCounts = new int[capacity];
+		this.maxNext = maxNext;
+		this.nextFeatures = new double[capacity * maxNext * numFeatures];
+	}
+
+	/**
+	 * Copies a transition into the buffer.
+	 *
+	 * @param stateFeatures Features of the chosen pair
+	 * @param reward The reward used as the target for the chosen pair
+	 * @param nextStateFeatures Buffer holding the features of the next candidate pairs
+	 * @param nextOffsets Index of each candidate's first feature in nextStateFeatures
+	 * @param numNext Number of candidates, at most maxNext. 0 if there is nothing left to attack.
+	 */
+	void add(double[] stateFeatures, double reward, double[] nextStateFeatures, int[] nextOffsets, int numNext) {
+		if (numNext > maxNext) {
+			throw new IllegalArgumentException(numNext + " next candidates, room for " + maxNext);
+		}
+		System.arraycopy(stateFeatures, 0, features, head * numFeatures, numFeatures);
+		rewards[head] = reward;
+		int offset = nextOffset(head);
+		for (int next = 0; next < numNext; next++, offset += numFeatures) {
+			System.arraycopy(nextStateFeatures, nextOffsets[next], nextFeatures, offset, numFeatures);
+		}
+		nextCounts[head] = numNext;
+
+		head = (head + 1) % capacity;
+		if (size < capacity) {
+			size++;
+		}
+	}
+
+	/**
+	 * @return The index of a uniformly random stored transition.
+	 */
+	int sample(Random random) {
+		return random.nextInt(size);
+	}
+
+	/**
+	 * @return Most next candidates kept with each transition.
+	 */
+	int maxNext() {
+		return maxNext;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		head = 0;
+		size = 0;
+	}
+
+	/**
+	 * @return Index into {@link #features()} of the given transition's first feature.
+	 */
+	int featureOffset(int index) {
+		return index * numFeatures;
+	}
+
+	/**
+	 * @return Index into {@link #nextFeatures()} of the first feature of the given transition's first candidate.
+	 */
+	int nextOffset(int index) {
+		return index * maxNext * numFeatures;
+	}
+
+	/**
+	 * @return Number of next candidates stored with the given transition.
+	 */
+	int nextCount(int index) {
+		return nextCounts[index];
+	}
+
+	double[] features() {
+		return features;
+	}
+
+	double[] nextFeatures() {
+		return nextFeatures;
+	}
+
+	double reward(int index) {
+		return rewards[index];
+	}
+}
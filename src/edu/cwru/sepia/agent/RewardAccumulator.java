@@ -0,0 +1,223 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Credits every footman with the reward it received on a turn by walking each of the turn's logs exactly once.
+ * The rewards are the same as the per-footman scan this replaces:
+ *
+ * - +damage dealt and -damage taken, from the damage logs
+ * - -100 when the footman dies
+ * - +100 for the first footman (in roster order) whose action was targeting an enemy that died, unless the kill
+ *   has already been claimed. The scan visited the footmen in that order and let the first one take the kill.
+ *
+ * The scan also meant to charge -0.1 when a footman was ordered onto a different target than the turn before, but
+ * it compared the last turn's command with itself, so the penalty never applied. It is left out here so the
+ * rewards stay the same.
+ *
+ * Rewards are kept in primitive arrays indexed by SEPIA unit ID.
+ */
+class RewardAccumulator {
+
+	private static final int NOT_IN_ROSTER = -1;
+
+	private final int playernum;
+	private final int enemyPlayernum;
+
+	// Position of each footman in the roster given at the start of the episode, or NOT_IN_ROSTER
+	private int[] rosterIndexById = new int[0];
+	// Footman IDs in roster order
+	private int[] roster = new int[0];
+	private int rosterSize;
+
+	// Reward received on the last accumulated turn and the running total for the episode
+	private double[] turnRewardById = new double[0];
+	private double[] cumulativeRewardById = new double[0];
+	private int accumulatedTurn;
+
+	// For the turn being accumulated, the earliest footman in roster order whose action targets each unit.
+	// Only the entries listed in claimedTargets are set; they are reset before the next turn.
+	private int[] claimantById = new int[0];
+	private int[] claimedTargets = new int[0];
+	private int numClaimedTargets;
+
+	RewardAccumulator(int playernum, int enemyPlayernum) {
+		this.playernum = playernum;
+		this.enemyPlayernum = enemyPlayernum;
+	}
+
+	/**
+	 * Starts a new episode with the given footmen and zero reward for each.
+	 *
+	 * @param footmen Your footmen at the start of the episode, in the order they should claim kills
+	 */
+	void reset(List<Integer> footmen) {
+		for (int i = 0; i < rosterSize; i++) {
+			int footmanId = roster[i];
+			rosterIndexById[footmanId] = NOT_IN_ROSTER;
+			turnRewardById[footmanId] = 0.0;
+			cumulativeRewardById[footmanId] = 0.0;
+		}
+
+		rosterSize = 0;
+		if (roster.length < footmen.size()) {
+			roster = new int[footmen.size()];
+		}
+		for (int footmanId : footmen) {
+			ensureCapacity(footmanId);
+			rosterIndexById[footmanId] = rosterSize;
+			roster[rosterSize++] = footmanId;
+		}
+		accumulatedTurn = -1;
+	}
+
+	/**
+	 * Computes the reward every footman received on the given turn and adds it to their totals. Calling this
+	 * more than once for the same turn has no further effect.
+	 *
+	 * @param historyView History of the episode up until this turn
+	 * @param turnNumber The turn to credit, normally the last one
+	 * @param eliminatedEnemyFootmen Enemies whose kill reward has already been claimed. Newly claimed kills are added.
+	 */
+	void accumulate(History.HistoryView historyView, int turnNumber, Set<Integer> eliminatedEnemyFootmen) {
+		if (turnNumber == accumulatedTurn) {
+			return;
+		}
+		accumulatedTurn = turnNumber;
+
+		for (int i = 0; i < rosterSize; i++) {
+			turnRewardById[roster[i]] = 0.0;
+		}
+
+		for (DamageLog damageLog : historyView.getDamageLogs(turnNumber)) {
+			if (inRoster(damageLog.getAttackerID())) {
+				turnRewardById[damageLog.getAttackerID()] += damageLog.getDamage();
+			}
+			if (inRoster(damageLog.getDefenderID())) {
+				turnRewardById[damageLog.getDefenderID()] -= damageLog.getDamage();
+			}
+		}
+
+		List<DeathLog> deathLogs = historyView.getDeathLogs(turnNumber);
+		if (!deathLogs.isEmpty()) {
+			indexClaimants(historyView.getCommandFeedback(this.playernum, turnNumber));
+
+			for (DeathLog deathLog : deathLogs) {
+				int deadUnitId = deathLog.getDeadUnitID();
+				// If this footman has died
+				if (inRoster(deadUnitId)) {
+					turnRewardById[deadUnitId] -= 100;
+				}
+				// If the reward for killing this enemy is already claimed, no footman can claim it.
+				if (deathLog.getController() == this.enemyPlayernum && deadUnitId < claimantById.length) {
+					int claimantId = claimantById[deadUnitId];
+					if (claimantId != NOT_IN_ROSTER && eliminatedEnemyFootmen.add(deadUnitId)) {
+						turnRewardById[claimantId] += 100;
+					}
+				}
+			}
+
+			clearClaimants();
+		}
+
+		for (int i = 0; i < rosterSize; i++) {
+			int footmanId = roster[i];
+			cumulativeRewardById[footmanId] += turnRewardById[footmanId];
+		}
+	}
+
+	/**
+	 * @return The reward the footman received on the last accumulated turn.
+	 */
+	double turnReward(int footmanId) {
+		return inRoster(footmanId) ? turnRewardById[footmanId] : 0.0;
+	}
+
+	/**
+	 * @return The footman's total reward so far this episode.
+	 */
+	double cumulativeReward(int footmanId) {
+		return inRoster(footmanId) ? cumulativeRewardById[footmanId] : 0.0;
+	}
+
+	/**
+	 * @return The sum of every footman's total reward this episode, including footmen that have died.
+	 */
+	double totalReward() {
+		double sum = 0.0;
+		for (int i = 0; i < rosterSize; i++) {
+			sum += cumulativeRewardById[roster[i]];
+		}
+		return sum;
+	}
+
+	private boolean inRoster(int unitId) {
+		return unitId >= 0 && unitId < rosterIndexById.length && rosterIndexById[unitId] != NOT_IN_ROSTER;
+	}
+
+	/**
+	 * Records, for every unit targeted by one of the footmen's actions, the footman earliest in the roster.
+	 */
+	private void indexClaimants(Map<Integer, ActionResult> actionResults) {
+		for (Map.Entry<Integer, ActionResult> resultEntry : actionResults.entrySet()) {
+			int footmanId = resultEntry.getKey();
+			int targetId = targetOf(resultEntry.getValue().getAction());
+			if (!inRoster(footmanId) || targetId < 0) {
+				continue;
+			}
+
+			ensureClaimantCapacity(targetId);
+			int claimantId = claimantById[targetId];
+			if (claimantId == NOT_IN_ROSTER) {
+				if (numClaimedTargets == claimedTargets.length) {
+					claimedTargets = Arrays.copyOf(claimedTargets, Math.max(8, numClaimedTargets * 2));
+				}
+				claimedTargets[numClaimedTargets++] = targetId;
+				claimantById[targetId] = footmanId;
+			} else if (rosterIndexById[footmanId] < rosterIndexById[claimantId]) {
+				claimantById[targetId] = footmanId;
+			}
+		}
+	}
+
+	private void clearClaimants() {
+		for (int i = 0; i < numClaimedTargets; i++) {
+			claimantById[claimedTargets[i]] = NOT_IN_ROSTER;
+		}
+		numClaimedTargets = 0;
+	}
+
+	private static int targetOf(Action action) {
+		return (action instanceof TargetedAction) ? ((TargetedAction) action).getTargetId() : -1;
+	}
+
+	private void ensureCapacity(int unitId) {
+		if (unitId >= rosterIndexById.length) {
+			int oldLength = rosterIndexById.length;
+			int newLength = Math.max(unitId + 1, oldLength * 2);
+			rosterIndexById = Arrays.copyOf(rosterIndexById, newLength);
+			Arrays.fill(rosterIndexById, oldLength, newLength, NOT_IN_ROSTER);
+			turnRewardById = Arrays.copyOf(turnRewardById, newLength);
+			cumulativeRewardById = Arrays.copyOf(cumulativeRewardById, newLength);
+		}
+	}
+
+	private void ensureClaimantCapacity(int unitId) {
+		if (unitId >= claimantById.length) {
+			int oldLength = claimantById.length;
+			int newLength = Math.max(unitId + 1, oldLength * 2);
+			claimantById = Arrays.copyOf(claimantById, newLength);
+			Arrays.fill(claimantById, oldLength, newLength, NOT_IN_ROSTER);
+		}
+	}
+}
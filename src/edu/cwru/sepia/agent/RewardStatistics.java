@@ -0,0 +1,146 @@
+package edu.cwru.sepia.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The average cumulative rewards of a session's testing blocks, kept in primitive arrays.
+ *
+ * With a window, only the most recent window averages are kept, in a ring buffer, so memory stays the same however
+ * long the session runs. The mean and variance of every average ever added are kept as running aggregates with
+ * Welford's method, alongside the mean of the window and the best average, and none of them ever look at more
+ * than the newest value. Without a window every average is kept.
+ *
+ * Not thread-safe; RLAgent synchronizes on the instance.
+ */
+class RewardStatistics {
+
+	// 0 keeps everything
+	private final int window;
+
+	private double[] values;
+	// Index the next value goes to, and how many values have been added in total
+	private int next;
+	private long count;
+
+	private double mean;
+	private double squaredDeviations;
+	private double windowSum;
+	private double best = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * @param window Number of recent averages to keep, or 0 to keep every one
+	 */
+	RewardStatistics(int window) {
+		if (window < 0) {
+			throw new IllegalArgumentException("Window must not be negative: " + window);
+		}
+		this.window = window;
+		this.values = new double[window > 0 ? window : 16];
+	}
+
+	void add(double value) {
+		if (window == 0 && next == values.length) {
+			values = Arrays.copyOf(values, values.length * 2);
+		}
+		if (window > 0 && count >= window) {
+			// The oldest value leaves the window
+			windowSum -= values[next];
+		}
+		values[next] = value;
+		next = window > 0 ? (next + 1) % window : next + 1;
+		windowSum += value;
+		count++;
+		if (window > 0 && next == 0) {
+			// Once per lap, resum the window so rounding errors from the subtractions do not build up
+			windowSum = 0;
+			for (double kept : values) {
+				windowSum += kept;
+			}
+		}
+
+		double delta = value - mean;
+		mean += delta / count;
+		squaredDeviations += delta * (value - mean);
+		best = Math.max(best, value);
+	}
+
+	/**
+	 * @return Number of values added since the start, including those that have left the window
+	 */
+	long count() {
+		return count;
+	}
+
+	/**
+	 * @return Number of values still kept
+	 */
+	int retained() {
+		return (int) (window > 0 ? Math.min(count, window) : count);
+	}
+
+	/**
+	 * @return The i-th oldest value still kept
+	 */
+	double get(int i) {
+		if (i < 0 || i >= retained()) {
+			throw new IndexOutOfBoundsException("Index " + i + " of " + retained() + " retained values");
+		}
+		if (window == 0 || count < window) {
+			return values[i];
+		}
+		return values[(next + i) % window];
+	}
+
+	/**
+	 * @return The most recently added value
+	 */
+	double last() {
+		return get(retained() - 1);
+	}
+
+	/**
+	 * @return The values still kept, oldest first
+	 */
+	List<Double> toList() {
+		int retained = retained();
+		List<Double> list = new ArrayList<Double>(retained);
+		for (int i = 0; i < retained; i++) {
+			list.add(get(i));
+		}
+		return list;
+	}
+
+	/**
+	 * @return The mean of every value added
+	 */
+	double mean() {
+		return mean;
+	}
+
+	/**
+	 * @return The sample variance of every value added, or 0 for fewer than two values
+	 */
+	double variance() {
+		return count > 1 ? squaredDeviations / (count - 1) : 0.0;
+	}
+
+	double standardDeviation() {
+		return Math.sqrt(variance());
+	}
+
+	/**
+	 * @return The mean of the values still kept
+	 */
+	double windowMean() {
+		return retained() == 0 ? 0.0 : windowSum / retained();
+	}
+
+	/**
+	 * @return The largest value added, or negative infinity if none was
+	 */
+	double best() {
+		return best;
+	}
+}
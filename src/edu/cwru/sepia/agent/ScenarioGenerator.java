@@ -0,0 +1,346 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.state.PlayerState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Generates N-vs-N footman battles like data/rl_5fv5f.xml and data/rl_10fv10f.xml, for any N.
+ *
+ * Each army stands in a block formation facing the other across the middle of the map: columns of footmen, front
+ * column first, about twice as many footmen per column as there are columns. Spacing is the distance between
+ * neighbouring footmen, so 1 packs them shoulder to shoulder and 2, as in the provided maps, leaves a tile between
+ * them. The front columns are gap tiles apart. The map is just big enough for both formations and a margin unless
+ * a larger size is given, in which case they are centred on it. The footmen are the provided maps' footman
+ * templates, with the combat agent's slightly stronger piercing attack.
+ *
+ * A generator is itself a StateCreator, so the HeadlessTrainer and the other drivers can play the battle without
+ * going through an XML map. {@link #writeMap(Path)} and {@link #writeConfig(Path, String, int)} write the same
+ * battle for the XML runner.
+ *
+ * From the command line the map and configuration are written to data/generated, so the provided files in data are
+ * not replaced. Existing files are only overwritten when overwrite is true.
+ *
+ * Usage: ScenarioGenerator [footmen per side] [output directory] [spacing] [gap] [map width] [map height] [overwrite]
+ */
+public class ScenarioGenerator implements StateCreator {
+
+	private static final long serialVersionUID = 1L;
+
+	// The footman templates of the provided maps
+	private static final int[] FOOTMAN_TEMPLATE_IDS = { 25, 58 };
+	private static final int[] FOOTMAN_PIERCING_ATTACK = { 3, 4 };
+	private static final int FOOTMAN_HP = 60;
+	private static final int NEXT_TEMPLATE_ID = 66;
+
+	// Empty tiles between a formation and the edge of the map
+	private static final int MARGIN = 4;
+
+	private final int footmen;
+	private final int spacing;
+	private final int gap;
+	private final int rows;
+	private final int columns;
+	private final int width;
+	private final int height;
+
+	/**
+	 * A battle on the smallest map that fits it, with the provided maps' spacing and gap.
+	 */
+	public ScenarioGenerator(int footmen) {
+		this(footmen, 2, 10, 0, 0);
+	}
+
+	/**
+	 * @param footmen Footmen per side
+	 * @param spacing Distance between neighbouring footmen in a formation, at least 1
+	 * @param gap Distance between the two front columns, at least 2
+	 * @param width Map width, or 0 for the smallest that fits
+	 * @param height Map height, or 0 for the smallest that fits
+	 */
+	public ScenarioGenerator(int footmen, int spacing, int gap, int width, int height) {
+		if (footmen <= 0 || spacing < 1 || gap < 2 || width < 0 || height < 0) {
+			throw new IllegalArgumentException(String.format("Invalid scenario: %d footmen, spacing %d, gap %d, %dx%d",
+					footmen, spacing, gap, width, height));
+		}
+		this.footmen = footmen;
+		this.spacing = spacing;
+		this.gap = gap;
+		this.rows = (int) Math.ceil(Math.sqrt(4.0 * footmen));
+		this.columns = (footmen + rows - 1) / rows;
+
+		int minWidth = 2 * (MARGIN + span(columns)) + gap - 1;
+		int minHeight = 2 * MARGIN + span(rows);
+		if ((width > 0 && width < minWidth) || (height > 0 && height < minHeight)) {
+			throw new IllegalArgumentException(String.format("%d footmen with spacing %d and gap %d need a map of at least %dx%d",
+					footmen, spacing, gap, minWidth, minHeight));
+		}
+		this.width = width > 0 ? width : minWidth;
+		this.height = height > 0 ? height : minHeight;
+	}
+
+	public int getFootmen() {
+		return footmen;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The file name the provided maps use for this many footmen, e.g. rl_5fv5f.xml
+	 */
+	public String getMapName() {
+		return String.format("rl_%dfv%df.xml", footmen, footmen);
+	}
+
+	public String getConfigName() {
+		return String.format("%dfv%dfConfig.xml", footmen, footmen);
+	}
+
+	/**
+	 * @return The x position of the index-th footman of the player, front column first
+	 */
+	int xPosition(int player, int index) {
+		int column = index / rows;
+		int front = (width - gap) / 2;
+		return player == 0 ? front - column * spacing : front + gap + column * spacing;
+	}
+
+	/**
+	 * @return The y position of the index-th footman of the player, centred on the map
+	 */
+	int yPosition(int player, int index) {
+		int top = (height - span(rows)) / 2;
+		return top + (index % rows) * spacing;
+	}
+
+	@Override
+	public State createState() {
+		State.StateBuilder builder = new State.StateBuilder();
+		builder.setSize(width, height);
+		int nextId = 0;
+		for (int player = 0; player < 2; player++) {
+			PlayerState playerState = new PlayerState(player);
+			UnitTemplate footman = footmanTemplate(player);
+			playerState.addTemplate(footman);
+			for (int i = 0; i < footmen; i++) {
+				Unit unit = new Unit(footman, nextId++);
+				unit.setHP(FOOTMAN_HP);
+				builder.addUnit(unit, xPosition(player, i), yPosition(player, i));
+				playerState.addUnit(unit);
+			}
+			builder.addPlayer(playerState);
+		}
+		builder.setIDDistributerTargetMax(nextId);
+		builder.setIDDistributerTemplateMax(NEXT_TEMPLATE_ID);
+		State state = builder.build();
+		state.updateGlobalListsFromPlayers();
+		state.recalculateVision();
+		return state;
+	}
+
+	/**
+	 * Writes the battle as a SEPIA XML map in the layout of the provided maps.
+	 */
+	public void writeMap(Path file) throws IOException {
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+		xml.append(String.format("<state xExtent=\"%d\" yExtent=\"%d\" nextTargetID=\"%d\" nextTemplateID=\"%d\" fogOfWar=\"false\">\n",
+				width, height, 2 * footmen, NEXT_TEMPLATE_ID));
+		int nextId = 0;
+		for (int player = 0; player < 2; player++) {
+			xml.append("    <player>\n");
+			xml.append("        <ID>").append(player).append("</ID>\n");
+			for (int i = 0; i < footmen; i++) {
+				xml.append("        <unit>\n");
+				xml.append("            <ID>").append(nextId++).append("</ID>\n");
+				xml.append("            <currentHealth>").append(FOOTMAN_HP).append("</currentHealth>\n");
+				xml.append("            <xPosition>").append(xPosition(player, i)).append("</xPosition>\n");
+				xml.append("            <yPosition>").append(yPosition(player, i)).append("</yPosition>\n");
+				xml.append("            <templateID>").append(FOOTMAN_TEMPLATE_IDS[player]).append("</templateID>\n");
+				xml.append("            <cargoAmount>0</cargoAmount>\n");
+				xml.append("            <progressAmount>0</progressAmount>\n");
+				xml.append("        </unit>\n");
+			}
+			appendFootmanTemplate(xml, player);
+			for (String resource : new String[] { "GOLD", "WOOD" }) {
+				xml.append("        <resourceAmount>\n");
+				xml.append("            <quantity>0</quantity>\n");
+				xml.append("            <type>").append(resource).append("</type>\n");
+				xml.append("        </resourceAmount>\n");
+			}
+			xml.append("        <supply>").append(footmen).append("</supply>\n");
+			xml.append("        <supplyCap>0</supplyCap>\n");
+			xml.append("    </player>\n");
+		}
+		xml.append("</state>\n");
+		write(file, xml.toString());
+	}
+
+	/**
+	 * Writes a configuration like data/5fv5fConfig.xml for the battle. The visual agent is left commented out, as
+	 * large battles are meant to be played headless.
+	 *
+	 * @param mapPath The map as the XML runner should find it, e.g. data/rl_50fv50f.xml
+	 * @param learningEpisodes The RLAgent's number of episodes to learn
+	 */
+	public void writeConfig(Path file, String mapPath, int learningEpisodes) throws IOException {
+		String xml = "<Configuration>\n"
+				+ "\t<Map>" + mapPath + "</Map>\n"
+				+ "\t<Player Id=\"0\">\n"
+				+ "\t\t<AgentClass>\n"
+				+ "\t\t\t<ClassName>edu.cwru.sepia.agent.RLAgent</ClassName>\n"
+				+ "\t\t\t<Argument>" + learningEpisodes + "</Argument> <!-- Number of episodes to learn -->\n"
+				+ "\t\t\t<Argument>false</Argument> <!-- If true then will attempt to load the weights file in the constructor -->\n"
+				+ "\t\t</AgentClass>\n"
+				+ "\t</Player>\n"
+				+ "\n"
+				+ "\t<!--\n"
+				+ "\t<Player Id=\"0\">\n"
+				+ "\t\t<AgentClass>\n"
+				+ "\t\t\t<ClassName>edu.cwru.sepia.agent.visual.VisualAgent</ClassName>\n"
+				+ "\t\t\t<Argument>true</Argument>\n"
+				+ "\t\t\t<Argument>false</Argument>\n"
+				+ "\t\t</AgentClass>\n"
+				+ "\t</Player>\n"
+				+ "\t-->\n"
+				+ "\n"
+				+ "\t<Player Id=\"1\">\n"
+				+ "\t\t<AgentClass>\n"
+				+ "\t\t\t<ClassName>" + HeadlessTrainer.ENEMY_AGENT_CLASS + "</ClassName>\n"
+				+ "\t\t\t<Argument>false</Argument> <!-- Verbosity of combat agent -->\n"
+				+ "\t\t</AgentClass>\n"
+				+ "\t</Player>\n"
+				+ "\t<ModelParameters>\n"
+				+ "\t\t<Conquest>true</Conquest>\n"
+				+ "\t\t<Midas>false</Midas>\n"
+				+ "\t\t<ManifestDestiny>false</ManifestDestiny>\n"
+				+ "\t\t<TimeLimit>100000</TimeLimit>\n"
+				+ "\t</ModelParameters>\n"
+				+ "\t<Runner>\n"
+				+ "\t\t<RunnerClass>edu.cwru.sepia.experiment.SimpleModelEpisodicRunner</RunnerClass>\n"
+				+ "\t\t<Parameter Name=\"experiment.NumEpisodes\" Value=\"1000\"/>\n"
+				+ "\t\t<Parameter Name=\"experiment.EpisodesPerSave\" Value=\"1\"/>\n"
+				+ "\t\t<Parameter Name=\"experiment.SaveAgents\" Value=\"false\"/>\n"
+				+ "\t\t<Parameter Name=\"experiment.episodesperagentsave\" Value=\"4\" />\n"
+				+ "\t\t<Parameter Name=\"experiment.episodesperreplaysave\" Value=\"4\" />\n"
+				+ "\t\t<Parameter Name=\"experiment.save.replaydirectory\" Value=\"saves/test1\" />\n"
+				+ "\t\t<Parameter Name=\"experiment.save.agentdirectory\" Value=\"saves/test1\" />\n"
+				+ "\t\t<Parameter Name=\"experiment.temp.thing\" Value=\"saves/test1\" />\n"
+				+ "\t\t<Parameter Name=\"environment.model.class\" Value=\"edu.cwru.sepia.environment.model.BestEffortModel\" />\n"
+				+ "\t</Runner>\n"
+				+ "</Configuration>\n";
+		write(file, xml);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%dfv%df on %dx%d, spacing %d, gap %d", footmen, footmen, width, height, spacing, gap);
+	}
+
+	/**
+	 * @return Tiles covered by count footmen in a line
+	 */
+	private int span(int count) {
+		return (count - 1) * spacing + 1;
+	}
+
+	private static UnitTemplate footmanTemplate(int player) {
+		UnitTemplate footman = new UnitTemplate(FOOTMAN_TEMPLATE_IDS[player]);
+		footman.setName("Footman");
+		footman.setFoodCost(1);
+		footman.setGoldCost(600);
+		footman.setTimeCost(1);
+		footman.setBaseHealth(FOOTMAN_HP);
+		footman.setBasicAttack(6);
+		footman.setPiercingAttack(FOOTMAN_PIERCING_ATTACK[player]);
+		footman.setRange(1);
+		footman.setArmor(2);
+		footman.setSightRange(4);
+		footman.setCanMove(true);
+		footman.setCharacter('f');
+		footman.setDurationGatherWood(1);
+		footman.setDurationGatherGold(1);
+		footman.setDurationMove(1);
+		footman.setDurationAttack(1);
+		footman.setDurationDeposit(1);
+		footman.setPlayer(player);
+		return footman;
+	}
+
+	private static void appendFootmanTemplate(StringBuilder xml, int player) {
+		xml.append("        <template xsi:type=\"UnitTemplate\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n");
+		xml.append("            <ID>").append(FOOTMAN_TEMPLATE_IDS[player]).append("</ID>\n");
+		xml.append("            <foodCost>1</foodCost>\n");
+		xml.append("            <goldCost>600</goldCost>\n");
+		xml.append("            <woodCost>0</woodCost>\n");
+		xml.append("            <timeCost>1</timeCost>\n");
+		xml.append("            <name>Footman</name>\n");
+		xml.append("            <baseHealth>").append(FOOTMAN_HP).append("</baseHealth>\n");
+		xml.append("            <baseAttack>6</baseAttack>\n");
+		xml.append("            <piercingAttack>").append(FOOTMAN_PIERCING_ATTACK[player]).append("</piercingAttack>\n");
+		xml.append("            <range>1</range>\n");
+		xml.append("            <armor>2</armor>\n");
+		xml.append("            <sightRange>4</sightRange>\n");
+		xml.append("            <canGather>false</canGather>\n");
+		xml.append("            <canBuild>false</canBuild>\n");
+		xml.append("            <canMove>true</canMove>\n");
+		xml.append("            <canAcceptGold>false</canAcceptGold>\n");
+		xml.append("            <canAcceptWood>false</canAcceptWood>\n");
+		xml.append("            <foodProvided>0</foodProvided>\n");
+		xml.append("            <character>102</character>\n");
+		xml.append("            <goldGatherRate>0</goldGatherRate>\n");
+		xml.append("            <woodGatherRate>0</woodGatherRate>\n");
+		xml.append("            <durationGatherWood>1</durationGatherWood>\n");
+		xml.append("            <durationGatherGold>1</durationGatherGold>\n");
+		xml.append("            <durationMove>1</durationMove>\n");
+		xml.append("            <durationAttack>1</durationAttack>\n");
+		xml.append("            <durationDeposit>1</durationDeposit>\n");
+		xml.append("        </template>\n");
+	}
+
+	private static void write(Path file, String contents) throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static void main(String[] args) throws IOException {
+		int footmen = args.length >= 1 ? Integer.parseInt(args[0]) : 50;
+		Path directory = Paths.get(args.length >= 2 ? args[1] : "data/generated");
+		int spacing = args.length >= 3 ? Integer.parseInt(args[2]) : 2;
+		int gap = args.length >= 4 ? Integer.parseInt(args[3]) : 10;
+		int width = args.length >= 5 ? Integer.parseInt(args[4]) : 0;
+		int height = args.length >= 6 ? Integer.parseInt(args[5]) : 0;
+		boolean overwrite = args.length >= 7 && Boolean.parseBoolean(args[6]);
+
+		ScenarioGenerator scenario = new ScenarioGenerator(footmen, spacing, gap, width, height);
+		Path map = directory.resolve(scenario.getMapName());
+		Path config = directory.resolve(scenario.getConfigName());
+		for (Path file : new Path[] { map, config }) {
+			if (!overwrite && Files.exists(file)) {
+				System.err.println(file + " already exists. Pass true as the overwrite argument to replace it.");
+				System.exit(1);
+			}
+		}
+		scenario.writeMap(map);
+		// The XML runner resolves the map relative to where it is started, like the provided configurations
+		scenario.writeConfig(config, map.toString().replace('\\', '/'), 150);
+		System.out.println("Wrote " + scenario + " to " + map + " and " + config);
+	}
+}
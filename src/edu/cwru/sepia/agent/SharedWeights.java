@@ -0,0 +1,73 @@
+package edu.cwru.sepia.agent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A weight vector shared by several learners running on different threads, in the style of Hogwild!: nobody takes
+ * a lock, readers may see a mix of old and new components, and every update is applied as an atomic
+ * compare-and-set add on each component it touches. Each component is its own stripe, so two learners only
+ * contend when they update the same weight at the same instant, and no update is ever lost.
+ *
+ * Doubles are stored as their raw long bits.
+ */
+public class SharedWeights {
+
+	private final AtomicLongArray bits;
+
+	public SharedWeights(double[] initialWeights) {
+		bits = new AtomicLongArray(initialWeights.length);
+		for (int i = 0; i < initialWeights.length; i++) {
+			bits.set(i, Double.doubleToRawLongBits(initialWeights[i]));
+		}
+	}
+
+	public int length() {
+		return bits.length();
+	}
+
+	public double get(int i) {
+		return Double.longBitsToDouble(bits.get(i));
+	}
+
+	/**
+	 * Copies the current weights into the given array without locking.
+	 */
+	public void copyInto(double[] weights) {
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = Double.longBitsToDouble(bits.get(i));
+		}
+	}
+
+	/**
+	 * @return A copy of the current weights.
+	 */
+	public double[] snapshot() {
+		double[] weights = new double[bits.length()];
+		copyInto(weights);
+		return weights;
+	}
+
+	/**
+	 * Atomically adds delta to weight i.
+	 */
+	public void add(int i, double delta) {
+		while (true) {
+			long current = bits.get(i);
+			long updated = Double.doubleToRawLongBits(Double.longBitsToDouble(current) + delta);
+			if (bits.compareAndSet(i, current, updated)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Adds step * features to the weights, one atomic add per non-zero component.
+	 */
+	public void addScaled(double[] features, double step) {
+		for (int i = 0; i < features.length; i++) {
+			if (features[i] != 0.0) {
+				add(i, step * features[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays the testing episodes for snapshots of a learner's weights on background threads, so the learner can keep
+ * learning instead of stopping for a set of testing episodes after every block of learning episodes.
+ *
+ * Every snapshot is evaluated by its own frozen RLAgent in its own SEPIA environment against the combat agent.
+ * Evaluations may finish out of order when running on several threads, but their average cumulative rewards are
+ * handed back to the learner in the order the snapshots were submitted, so its test data reads the same as it
+ * would have with interleaved testing. The evaluating agents print nothing and record no metrics, so the learner's
+ * output and metrics are its own. A failed evaluation is reported and skipped: the learner gets no result for it.
+ *
+ * See {@link RLAgent#setSnapshotEvaluator(SnapshotEvaluator)}.
+ */
+public class SnapshotEvaluator implements Closeable {
+
+	private final StateCreator stateCreator;
+	private final int seed;
+	private final ExecutorService executor;
+
+	// Number of snapshots submitted and handed back so far, and finished results that are waiting for an earlier
+	// one. A failed evaluation finishes with a null result.
+	private int submitted;
+	private int delivered;
+	private final Map<Integer, Double> finished = new HashMap<Integer, Double>();
+	private Throwable failure;
+
+	/**
+	 * @param stateCreator Creates the starting state of every testing episode. Calls to it are serialized.
+	 * @param numThreads Number of snapshots to evaluate at once
+	 * @param seed Base seed for the evaluation models; snapshot i is played with seed + i
+	 */
+	public SnapshotEvaluator(StateCreator stateCreator, int numThreads, int seed) {
+		this.stateCreator = new ParallelTrainer.SerializedStateCreator(stateCreator);
+		this.seed = seed;
+		this.executor = Executors.newFixedThreadPool(numThreads, ParallelTrainer.daemonThreads("snapshot-evaluator"));
+	}
+
+	/**
+	 * Queues a snapshot for evaluation. The caller must not modify the array afterwards.
+	 *
+	 * @param weights The learner's weights at the end of a learning block
+	 * @param numTestingEpisodes Number of testing episodes to average over
+	 * @param learner Receives the average cumulative reward once this and every earlier snapshot are done, unless
+	 *                the evaluation fails
+	 */
+	public void submit(final double[] weights, final int numTestingEpisodes, final RLAgent learner) {
+		final int index;
+		synchronized (this) {
+			index = submitted++;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Double averageCumulativeReward = null;
+				try {
+					averageCumulativeReward = evaluate(weights, numTestingEpisodes, learner, seed + index);
+				} catch (Throwable ex) {
+					System.err.println("Failed to evaluate snapshot " + index + ". Reason: " + ex.getMessage());
+					synchronized (SnapshotEvaluator.this) {
+						if (failure == null) {
+							failure = ex;
+						}
+					}
+				}
+				finish(index, averageCumulativeReward, learner);
+			}
+		});
+	}
+
+	/**
+	 * Waits for every submitted snapshot to be evaluated and handed back, then stops the threads.
+	 *
+	 * @throws IllegalStateException If an evaluation failed
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (failure != null) {
+				throw new IllegalStateException("A snapshot evaluation failed", failure);
+			}
+		}
+	}
+
+	/**
+	 * Plays the testing episodes for one snapshot on the calling thread, which must be a daemon, see HeadlessTrainer.
+	 */
+	private double evaluate(double[] weights, int numTestingEpisodes, RLAgent learner, int evaluationSeed) throws InterruptedException {
+		// The session ends once more than numEpisodes episodes have been played
+		RLAgent agent = new RLAgent(learner.playernum, numTestingEpisodes - 1, weights.clone(), evaluationSeed,
+				learner.getFeatureRegistry());
+		agent.setMetrics(new AgentMetrics(false));
+		// One testing block of the requested length, whatever the learner's blocks are
+		agent.setEpisodeBlocks(1, numTestingEpisodes);
+		agent.setFrozenTesting(true);
+		agent.setEpisodeLogging(false);
+		agent.setTestReporting(false);
+		agent.setWeightSaving(false);
+
+		new HeadlessTrainer(stateCreator, evaluationSeed).runSession(agent);
+		return agent.getAverageCumulativeRewards().get(0);
+	}
+
+	/**
+	 * Hands back every result that is now next in submission order, skipping failed evaluations.
+	 */
+	private synchronized void finish(int index, Double averageCumulativeReward, RLAgent learner) {
+		finished.put(index, averageCumulativeReward);
+		while (finished.containsKey(delivered)) {
+			Double result = finished.remove(delivered);
+			if (result != null) {
+				learner.testBlockEvaluated(result);
+			}
+			delivered++;
+		}
+	}
+}
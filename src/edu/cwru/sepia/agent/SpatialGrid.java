@@ -0,0 +1,250 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the map that buckets units by position, so distance questions only look at the cells
+ * around the point asked about instead of every unit. Distances are Chebyshev distances, the number of moves
+ * a footman needs to reach a tile.
+ *
+ * The grid is kept up to date incrementally: {@link #update(int, int, int)} only relinks a unit when it crosses
+ * into another cell, and {@link #remove(int)} takes out units as they die. Each cell is an intrusive doubly
+ * linked list threaded through arrays indexed by SEPIA unit ID, so nothing is allocated once the largest unit ID
+ * of the session has been seen.
+ */
+class SpatialGrid {
+
+	private static final int NONE = -1;
+
+	private int xExtent;
+	private int yExtent;
+	private int cellSize = 1;
+	private int cellsX;
+	private int cellsY;
+	private int size;
+
+	// First unit in each cell and how many units are in it
+	private int[] cellHead = new int[0];
+	private int[] cellCount = new int[0];
+
+	// Per unit ID: its cell (NONE if not in the grid), position and neighbours in the cell's list
+	private int[] cellOf = new int[0];
+	private int[] unitX = new int[0];
+	private int[] unitY = new int[0];
+	private int[] next = new int[0];
+	private int[] previous = new int[0];
+
+	/**
+	 * Empties the grid and sizes its cells for the given map, aiming for about one unit per cell.
+	 *
+	 * @param xExtent Width of the map in tiles
+	 * @param yExtent Height of the map in tiles
+	 * @param expectedUnits Number of units that will be added
+	 */
+	void reset(int xExtent, int yExtent, int expectedUnits) {
+		this.xExtent = Math.max(1, xExtent);
+		this.yExtent = Math.max(1, yExtent);
+		this.cellSize = Math.max(2, (int) Math.ceil(Math.sqrt((double) this.xExtent * this.yExtent / Math.max(1, expectedUnits))));
+		this.cellsX = (this.xExtent + cellSize - 1) / cellSize;
+		this.cellsY = (this.yExtent + cellSize - 1) / cellSize;
+		this.size = 0;
+
+		int cells = cellsX * cellsY;
+		if (cellHead.length < cells) {
+			cellHead = new int[cells];
+			cellCount = new int[cells];
+		}
+		Arrays.fill(cellHead, 0, cells, NONE);
+		Arrays.fill(cellCount, 0, cells, 0);
+		Arrays.fill(cellOf, NONE);
+	}
+
+	/**
+	 * Adds the unit at the given position, or moves it there if it is already in the grid.
+	 */
+	void update(int unitId, int x, int y) {
+		ensureUnitCapacity(unitId);
+		int cell = cellIndex(x, y);
+		int oldCell = cellOf[unitId];
+		unitX[unitId] = x;
+		unitY[unitId] = y;
+		if (oldCell == cell) {
+			return;
+		}
+		if (oldCell != NONE) {
+			unlink(unitId, oldCell);
+		} else {
+			size++;
+		}
+		link(unitId, cell);
+	}
+
+	/**
+	 * Takes the unit out of the grid, e.g. when its death is logged. Does nothing if it is not in the grid.
+	 */
+	void remove(int unitId) {
+		if (unitId >= cellOf.length || cellOf[unitId] == NONE) {
+			return;
+		}
+		unlink(unitId, cellOf[unitId]);
+		cellOf[unitId] = NONE;
+		size--;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Counts the units within the given Chebyshev radius of a point. Cells that lie entirely inside the query
+	 * square are counted without looking at their units; only the cells on its border are scanned.
+	 *
+	 * @param radius Units at exactly this distance are counted. A negative radius counts nothing.
+	 */
+	int countWithin(int x, int y, int radius) {
+		if (radius < 0) {
+			return 0;
+		}
+		int minX = Math.max(0, x - radius);
+		int maxX = Math.min(xExtent - 1, x + radius);
+		int minY = Math.max(0, y - radius);
+		int maxY = Math.min(yExtent - 1, y + radius);
+		if (minX > maxX || minY > maxY) {
+			return 0;
+		}
+
+		int count = 0;
+		for (int cy = minY / cellSize; cy <= maxY / cellSize; cy++) {
+			boolean rowInside = cy * cellSize >= minY && (cy + 1) * cellSize - 1 <= maxY;
+			for (int cx = minX / cellSize; cx <= maxX / cellSize; cx++) {
+				int cell = cy * cellsX + cx;
+				if (rowInside && cx * cellSize >= minX && (cx + 1) * cellSize - 1 <= maxX) {
+					count += cellCount[cell];
+					continue;
+				}
+				for (int unitId = cellHead[cell]; unitId != NONE; unitId = next[unitId]) {
+					int ux = unitX[unitId];
+					int uy = unitY[unitId];
+					if (ux >= minX && ux <= maxX && uy >= minY && uy <= maxY) {
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the k units nearest to a point, searching outwards one ring of cells at a time and stopping as soon
+	 * as no unit in an unsearched ring could be nearer than the k-th found. Ties are broken by unit ID, so the
+	 * result does not depend on the order units were added.
+	 *
+	 * @param k How many units to find
+	 * @param ids Receives the units' IDs, nearest first. Must hold at least k entries.
+	 * @param distances Receives the units' distances. Must hold at least k entries.
+	 * @return How many units were found, less than k only if the grid holds fewer than k units.
+	 */
+	int nearest(int x, int y, int k, int[] ids, int[] distances) {
+		if (k <= 0) {
+			return 0;
+		}
+		int found = 0;
+		int centerX = clamp(x, xExtent) / cellSize;
+		int centerY = clamp(y, yExtent) / cellSize;
+		int maxRing = Math.max(Math.max(centerX, cellsX - 1 - centerX), Math.max(centerY, cellsY - 1 - centerY));
+
+		for (int ring = 0; ring <= maxRing; ring++) {
+			for (int cy = centerY - ring; cy <= centerY + ring; cy++) {
+				if (cy < 0 || cy >= cellsY) {
+					continue;
+				}
+				// Inside rows of the ring only have their two end cells on the ring
+				boolean edgeRow = cy == centerY - ring || cy == centerY + ring;
+				int step = (edgeRow || ring == 0) ? 1 : 2 * ring;
+				for (int cx = centerX - ring; cx <= centerX + ring; cx += step) {
+					if (cx < 0 || cx >= cellsX) {
+						continue;
+					}
+					for (int unitId = cellHead[cy * cellsX + cx]; unitId != NONE; unitId = next[unitId]) {
+						int distance = DistanceRankTable.chebyshevDistance(x, y, unitX[unitId], unitY[unitId]);
+						found = insert(unitId, distance, ids, distances, found, k);
+					}
+				}
+			}
+			// Every unit beyond this ring is at least ring * cellSize + 1 away
+			if (found == k && distances[k - 1] <= ring * cellSize) {
+				break;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Inserts a unit into the sorted prefix of the result arrays, dropping the farthest if k are already held.
+	 */
+	private static int insert(int unitId, int distance, int[] ids, int[] distances, int found, int k) {
+		int position = found;
+		while (position > 0 && (distances[position - 1] > distance
+				|| (distances[position - 1] == distance && ids[position - 1] > unitId))) {
+			position--;
+		}
+		if (position >= k) {
+			return found;
+		}
+		int last = Math.min(found, k - 1);
+		for (int i = last; i > position; i--) {
+			ids[i] = ids[i - 1];
+			distances[i] = distances[i - 1];
+		}
+		ids[position] = unitId;
+		distances[position] = distance;
+		return Math.min(found + 1, k);
+	}
+
+	private int cellIndex(int x, int y) {
+		return (clamp(y, yExtent) / cellSize) * cellsX + clamp(x, xExtent) / cellSize;
+	}
+
+	private static int clamp(int value, int extent) {
+		return value < 0 ? 0 : (value >= extent ? extent - 1 : value);
+	}
+
+	private void link(int unitId, int cell) {
+		int head = cellHead[cell];
+		next[unitId] = head;
+		previous[unitId] = NONE;
+		if (head != NONE) {
+			previous[head] = unitId;
+		}
+		cellHead[cell] = unitId;
+		cellCount[cell]++;
+		cellOf[unitId] = cell;
+	}
+
+	private void unlink(int unitId, int cell) {
+		int before = previous[unitId];
+		int after = next[unitId];
+		if (before != NONE) {
+			next[before] = after;
+		} else {
+			cellHead[cell] = after;
+		}
+		if (after != NONE) {
+			previous[after] = before;
+		}
+		cellCount[cell]--;
+	}
+
+	private void ensureUnitCapacity(int unitId) {
+		if (unitId >= cellOf.length) {
+			int oldLength = cellOf.length;
+			int newLength = Math.max(unitId + 1, oldLength * 2);
+			cellOf = Arrays.copyOf(cellOf, newLength);
+			Arrays.fill(cellOf, oldLength, newLength, NONE);
+			unitX = Arrays.copyOf(unitX, newLength);
+			unitY = Arrays.copyOf(unitY, newLength);
+			next = Arrays.copyOf(next, newLength);
+			previous = Arrays.copyOf(previous, newLength);
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the targets of the footmen with a decision pending jointly instead of one footman at a time, so the army
+ * neither piles onto one enemy nor spreads its damage thinly. The Q-matrix is the benefit surface: the solver
+ * maximizes the sum of the chosen pairs' Q-values, with at most a focus-fire capacity of footmen on each enemy.
+ *
+ * It is Bertsekas' auction algorithm with every enemy split into capacity identical copies. Unplaced footmen bid on
+ * the copy that is worth the most to them at its current price, raising it by how much better it is than their
+ * next best choice plus epsilon, and outbid footmen bid again. With epsilon set to a small fraction of the spread
+ * of the Q-values, the result is within numBidders * epsilon of the best assignment.
+ *
+ * Each solve is a repair: only the footmen with a decision pending bid. The others keep their current targets, and
+ * the copies they occupy are taken out of the auction. If the per-turn time budget runs out before every bidder is
+ * placed, the footmen still unplaced take the best copy that is free at that moment, or their own best target.
+ */
+class TargetAssignment {
+
+	// Bids placed between reads of the clock
+	private static final int BIDS_PER_CLOCK_CHECK = 32;
+
+	private final int capacity;
+	private final long budgetNanos;
+
+	// Per enemy slot: how many footmen that are not bidding already target it, and how many copies are free
+	private int[] lockedLoad = new int[0];
+	private int[] freeCopies = new int[0];
+	// Per copy, enemy slot * copies + copy: its price and the attacker slot holding it, or -1
+	private double[] copyPrice = new double[0];
+	private int[] copyOwner = new int[0];
+	private int copiesPerEnemy;
+
+	// Per attacker slot: the column chosen, or -1
+	private int[] assignedColumn = new int[0];
+	// Attackers waiting to bid, as a ring
+	private int[] queue = new int[0];
+
+	private int solves;
+	private int timeouts;
+
+	/**
+	 * @param capacity Most footmen on one enemy. Raised for a turn when there are too few enemies to hold every footman.
+	 * @param budgetNanos Time allowed for one solve
+	 */
+	TargetAssignment(int capacity, long budgetNanos) {
+		if (capacity <= 0 || budgetNanos <= 0) {
+			throw new IllegalArgumentException("Capacity and time budget must be positive");
+		}
+		this.capacity = capacity;
+		this.budgetNanos = budgetNanos;
+	}
+
+	/**
+	 * Assigns a target to every attacker with a decision pending. Their rows of the Q-matrix must be evaluated.
+	 *
+	 * @param qMatrix This turn's Q-values
+	 * @param numAllies Number of attackers
+	 * @param numEnemies Number of enemies
+	 * @param numColumns Number of columns in each row of the Q-matrix
+	 * @param candidateSlots The enemy slot of each column, row-major by attacker slot, or null if column i is enemy slot i
+	 * @param pending Which attackers bid
+	 * @param currentTarget The enemy slot each attacker is attacking, or -1; counted against capacity for those not bidding
+	 */
+	void solve(QMatrix qMatrix, int numAllies, int numEnemies, int numColumns, int[] candidateSlots,
+			boolean[] pending, int[] currentTarget) {
+		long deadline = System.nanoTime() + budgetNanos;
+		solves++;
+		ensureCapacity(numAllies, numEnemies);
+		Arrays.fill(assignedColumn, 0, numAllies, -1);
+		if (numEnemies == 0 || numColumns == 0) {
+			return;
+		}
+
+		// Enough copies for everybody, however few enemies are left
+		copiesPerEnemy = Math.max(capacity, (numAllies + numEnemies - 1) / numEnemies);
+		if (copyPrice.length < numEnemies * copiesPerEnemy) {
+			copyPrice = new double[numEnemies * copiesPerEnemy];
+			copyOwner = new int[numEnemies * copiesPerEnemy];
+		}
+		Arrays.fill(copyPrice, 0, numEnemies * copiesPerEnemy, 0.0);
+		Arrays.fill(copyOwner, 0, numEnemies * copiesPerEnemy, -1);
+		Arrays.fill(lockedLoad, 0, numEnemies, 0);
+
+		int head = 0;
+		int tail = 0;
+		double minQ = Double.POSITIVE_INFINITY;
+		double maxQ = Double.NEGATIVE_INFINITY;
+		for (int attackerSlot = 0; attackerSlot < numAllies; attackerSlot++) {
+			if (pending[attackerSlot]) {
+				queue[tail++] = attackerSlot;
+				for (int column = 0; column < numColumns; column++) {
+					double qValue = qMatrix.qValue(attackerSlot, column);
+					minQ = Math.min(minQ, qValue);
+					maxQ = Math.max(maxQ, qValue);
+				}
+			} else if (currentTarget[attackerSlot] >= 0) {
+				lockedLoad[currentTarget[attackerSlot]]++;
+			}
+		}
+		int numBidders = tail;
+		if (numBidders == 0) {
+			return;
+		}
+		for (int enemySlot = 0; enemySlot < numEnemies; enemySlot++) {
+			freeCopies[enemySlot] = Math.max(0, copiesPerEnemy - lockedLoad[enemySlot]);
+		}
+		double epsilon = Math.max(maxQ - minQ, 1e-9) / (8.0 * (numBidders + 1));
+
+		int bids = 0;
+		int waiting = numBidders;
+		while (waiting > 0) {
+			if (++bids % BIDS_PER_CLOCK_CHECK == 0 && System.nanoTime() > deadline) {
+				timeouts++;
+				break;
+			}
+			int attackerSlot = queue[head];
+			head = (head + 1) % queue.length;
+			waiting--;
+
+			// Best and second best net value over the free copies of the row's candidates
+			int bestColumn = -1;
+			int bestCopy = -1;
+			double bestValue = Double.NEGATIVE_INFINITY;
+			double secondValue = Double.NEGATIVE_INFINITY;
+			for (int column = 0; column < numColumns; column++) {
+				int enemySlot = candidateSlots == null ? column : candidateSlots[attackerSlot * numColumns + column];
+				int free = freeCopies[enemySlot];
+				if (free == 0) {
+					continue;
+				}
+				double qValue = qMatrix.qValue(attackerSlot, column);
+				int first = enemySlot * copiesPerEnemy;
+				int cheapest = first;
+				double cheapestPrice = copyPrice[first];
+				double nextPrice = Double.POSITIVE_INFINITY;
+				for (int copy = first + 1; copy < first + free; copy++) {
+					if (copyPrice[copy] < cheapestPrice) {
+						nextPrice = cheapestPrice;
+						cheapestPrice = copyPrice[copy];
+						cheapest = copy;
+					} else if (copyPrice[copy] < nextPrice) {
+						nextPrice = copyPrice[copy];
+					}
+				}
+				double value = qValue - cheapestPrice;
+				if (value > bestValue) {
+					secondValue = Math.max(bestValue, qValue - nextPrice);
+					bestValue = value;
+					bestColumn = column;
+					bestCopy = cheapest;
+				} else {
+					secondValue = Math.max(secondValue, value);
+				}
+			}
+			if (bestColumn < 0) {
+				// Every candidate is full of footmen that are not bidding
+				assignedColumn[attackerSlot] = qMatrix.bestDefenderSlot(attackerSlot);
+				continue;
+			}
+
+			// Without a second choice any raise will do
+			double raise = secondValue == Double.NEGATIVE_INFINITY ? epsilon : bestValue - secondValue + epsilon;
+			copyPrice[bestCopy] += raise;
+			int outbid = copyOwner[bestCopy];
+			if (outbid >= 0) {
+				assignedColumn[outbid] = -1;
+				queue[(head + waiting) % queue.length] = outbid;
+				waiting++;
+			}
+			copyOwner[bestCopy] = attackerSlot;
+			assignedColumn[attackerSlot] = bestColumn;
+		}
+
+		// Out of time: whoever is still waiting takes a free copy greedily
+		for (; waiting > 0; waiting--) {
+			int attackerSlot = queue[head];
+			head = (head + 1) % queue.length;
+			assignedColumn[attackerSlot] = greedyColumn(qMatrix, attackerSlot, numColumns, candidateSlots);
+		}
+	}
+
+	/**
+	 * @return The column of the Q-matrix row chosen for the attacker in the last solve, or -1 if it did not bid
+	 *         or there are no enemies left
+	 */
+	int columnOf(int attackerSlot) {
+		return attackerSlot < assignedColumn.length ? assignedColumn[attackerSlot] : -1;
+	}
+
+	/**
+	 * @return Number of solves so far and how many of them ran out of time
+	 */
+	int solves() {
+		return solves;
+	}
+
+	int timeouts() {
+		return timeouts;
+	}
+
+	private int greedyColumn(QMatrix qMatrix, int attackerSlot, int numColumns, int[] candidateSlots) {
+		int bestColumn = -1;
+		int bestCopy = -1;
+		double bestValue = Double.NEGATIVE_INFINITY;
+		for (int column = 0; column < numColumns; column++) {
+			int enemySlot = candidateSlots == null ? column : candidateSlots[attackerSlot * numColumns + column];
+			int first = enemySlot * copiesPerEnemy;
+			for (int copy = first; copy < first + freeCopies[enemySlot]; copy++) {
+				if (copyOwner[copy] < 0) {
+					double value = qMatrix.qValue(attackerSlot, column);
+					if (value > bestValue) {
+						bestValue = value;
+						bestColumn = column;
+						bestCopy = copy;
+					}
+					break;
+				}
+			}
+		}
+		if (bestColumn < 0) {
+			return qMatrix.bestDefenderSlot(attackerSlot);
+		}
+		copyOwner[bestCopy] = attackerSlot;
+		return bestColumn;
+	}
+
+	private void ensureCapacity(int numAllies, int numEnemies) {
+		if (assignedColumn.length < numAllies) {
+			assignedColumn = new int[numAllies];
+			queue = new int[numAllies];
+		}
+		if (lockedLoad.length < numEnemies) {
+			lockedLoad = new int[numEnemies];
+			freeCopies = new int[numEnemies];
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Keeps track of who is targeting whom on both sides. Instead of re-reading the command history for every
+ * candidate pair, the index is brought up to date once per turn from the commands issued and the deaths logged on
+ * the previous turn, and then answers both targeting questions with a single array read.
+ *
+ * The index remembers each unit's latest order, however long ago it was issued. The features only ever looked at
+ * the orders issued on the last turn, so the index also keeps the turn of each order, see {@link #orderedTargetOf}.
+ *
+ * Both tables are indexed directly by SEPIA unit ID.
+ */
+class TargetingIndex {
+
+	private static final int NO_TARGET = -1;
+	private static final int NO_TURN = -1;
+
+	private final int playernum;
+	private final int enemyPlayernum;
+
+	// The unit each unit was last ordered to attack, or NO_TARGET
+	private int[] targetById = new int[0];
+	// The turn on which each unit was given its latest order, or NO_TURN
+	private int[] orderTurnById = new int[0];
+	// Whether the unit belongs to this agent's player
+	private boolean[] isAlly = new boolean[0];
+	// How many of this agent's footmen are currently targeting each unit
+	private int[] alliedAttackersById = new int[0];
+	// The last turn applied, or NO_TURN
+	private int appliedTurn = NO_TURN;
+
+	TargetingIndex(int playernum, int enemyPlayernum) {
+		this.playernum = playernum;
+		this.enemyPlayernum = enemyPlayernum;
+	}
+
+	/**
+	 * Forgets every order. Call this at the start of each episode.
+	 */
+	void clear() {
+		Arrays.fill(targetById, NO_TARGET);
+		Arrays.fill(orderTurnById, NO_TURN);
+		Arrays.fill(isAlly, false);
+		Arrays.fill(alliedAttackersById, 0);
+		appliedTurn = NO_TURN;
+	}
+
+	/**
+	 * Applies the commands issued by both players and the deaths that happened on the given turn.
+	 *
+	 * @param historyView History of the game up until this turn
+	 * @param turnNumber The turn whose deltas should be applied, normally the last one
+	 */
+	void applyTurn(History.HistoryView historyView, int turnNumber) {
+		appliedTurn = turnNumber;
+		applyCommands(historyView.getCommandsIssued(this.playernum, turnNumber), true);
+		applyCommands(historyView.getCommandsIssued(this.enemyPlayernum, turnNumber), false);
+
+		for (DeathLog deathLog : historyView.getDeathLogs(turnNumber)) {
+			setTarget(deathLog.getDeadUnitID(), NO_TARGET, deathLog.getController() == this.playernum);
+		}
+	}
+
+	/**
+	 * @return The unit the given unit was last ordered to attack, or -1 if it has no attack order.
+	 */
+	int targetOf(int unitId) {
+		return unitId < targetById.length ? targetById[unitId] : NO_TARGET;
+	}
+
+	/**
+	 * @return The unit the given unit was ordered to attack on the last applied turn, or -1 if it was given no
+	 *         attack order on that turn.
+	 */
+	int orderedTargetOf(int unitId) {
+		if (appliedTurn == NO_TURN || unitId >= orderTurnById.length || orderTurnById[unitId] != appliedTurn) {
+			return NO_TARGET;
+		}
+		return targetById[unitId];
+	}
+
+	/**
+	 * @return How many of this agent's footmen are currently ordered to attack the given unit.
+	 */
+	int alliedAttackersOn(int unitId) {
+		return unitId < alliedAttackersById.length ? alliedAttackersById[unitId] : 0;
+	}
+
+	private void applyCommands(Map<Integer, Action> commandsIssued, boolean allied) {
+		for (Map.Entry<Integer, Action> commandEntry : commandsIssued.entrySet()) {
+			Action action = commandEntry.getValue();
+			int targetId = (action instanceof TargetedAction) ? ((TargetedAction) action).getTargetId() : NO_TARGET;
+			setTarget(commandEntry.getKey(), targetId, allied);
+			orderTurnById[commandEntry.getKey()] = appliedTurn;
+		}
+	}
+
+	private void setTarget(int unitId, int targetId, boolean allied) {
+		ensureCapacity(Math.max(unitId, targetId));
+
+		int oldTargetId = targetById[unitId];
+		if (isAlly[unitId] && oldTargetId != NO_TARGET) {
+			alliedAttackersById[oldTargetId]--;
+		}
+
+		targetById[unitId] = targetId;
+		isAlly[unitId] = allied;
+		if (allied && targetId != NO_TARGET) {
+			alliedAttackersById[targetId]++;
+		}
+	}
+
+	private void ensureCapacity(int unitId) {
+		if (unitId >= targetById.length) {
+			int oldLength = targetById.length;
+			int newLength = Math.max(unitId + 1, oldLength * 2);
+			targetById = Arrays.copyOf(targetById, newLength);
+			Arrays.fill(targetById, oldLength, newLength, NO_TARGET);
+			orderTurnById = Arrays.copyOf(orderTurnById, newLength);
+			Arrays.fill(orderTurnById, oldLength, newLength, NO_TURN);
+			isAlly = Arrays.copyOf(isAlly, newLength);
+			alliedAttackersById = Arrays.copyOf(alliedAttackersById, newLength);
+		}
+	}
+}
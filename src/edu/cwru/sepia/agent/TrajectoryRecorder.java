@@ -0,0 +1,206 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streams every learning decision to an append-only binary log, so weights can later be fitted to the recorded
+ * games by {@link OfflineTrainer} without running SEPIA.
+ *
+ * Each record holds what updateWeights used: the chosen pair's features, the footman's reward and the features of
+ * every candidate pair in the footman's row, which the max over next actions is taken from. Records are packed into
+ * a direct buffer and written through a FileChannel whenever it fills up, and on {@link #close()}.
+ *
+ * File layout (big-endian, features and rewards as floats to keep the log compact):
+ * <pre>
+ *   int    magic "RLTR"
+ *   int    format version
+ *   int    number of features
+ *   names  for each feature, its name as a short byte length and UTF-8 bytes
+ *   records until the end of the file:
+ *     int    attacker ID
+ *     int    defender ID
+ *     float  reward
+ *     int    number of next candidates
+ *     float  features of the chosen pair...
+ *     float  features of each next candidate...
+ * </pre>
+ *
+ * A record cut short by a crash is ignored when the log is read, and cut off when the log is reopened so that new
+ * records follow the last complete one.
+ */
+public class TrajectoryRecorder implements Closeable {
+
+	static final int MAGIC = 0x524C5452;
+	static final int VERSION = 1;
+
+	private static final int BUFFER_BYTES = 1 << 20;
+
+	private final FileChannel channel;
+	private final int numFeatures;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+	private long records;
+
+	/**
+	 * Opens a log for appending, writing its header if the file is new. An existing log is truncated to the end of
+	 * its last complete record.
+	 *
+	 * @param featureNames The names of the features in the feature vector, see FeatureRegistry
+	 * @throws IOException If the file cannot be opened, or is a log of different features
+	 */
+	public TrajectoryRecorder(Path path, String[] featureNames) throws IOException {
+		Path parent = path.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+
+		this.numFeatures = featureNames.length;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = header(featureNames);
+			if (channel.size() == 0) {
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+			} else {
+				// Only keep appending to a log of the same features
+				ByteBuffer existing = ByteBuffer.allocate(header.remaining());
+				while (existing.hasRemaining() && channel.read(existing, existing.position()) > 0) {
+					// keep reading
+				}
+				existing.flip();
+				if (!existing.equals(header)) {
+					throw new IOException(path + " is not a trajectory log of features " + Arrays.toString(featureNames));
+				}
+				channel.truncate(endOfRecords(path, header.limit()));
+			}
+			channel.position(channel.size());
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Walks the records of the log from the end of its header.
+	 *
+	 * @return The position just past the last complete record
+	 * @throws IOException If a record has a negative number of next candidates
+	 */
+	private long endOfRecords(Path path, long position) throws IOException {
+		ByteBuffer recordHeader = ByteBuffer.allocate(16);
+		long size = channel.size();
+		while (size - position >= 16) {
+			recordHeader.clear();
+			while (recordHeader.hasRemaining() && channel.read(recordHeader, position + recordHeader.position()) > 0) {
+				// keep reading
+			}
+			int numNext = recordHeader.getInt(12);
+			if (numNext < 0) {
+				throw new IOException(path + " is corrupt at byte " + position);
+			}
+			long length = 16 + 4L * numFeatures * (1 + (long) numNext);
+			if (position + length > size) {
+				break;
+			}
+			position += length;
+		}
+		return position;
+	}
+
+	/**
+	 * Appends one decision.
+	 *
+	 * @param features Features of the chosen pair
+	 * @param reward The reward used as the target for the chosen pair
+	 * @param nextFeatures Buffer holding the features of the next candidates back to back
+	 * @param nextOffset Index of the first of those features
+	 * @param numNext Number of next candidates
+	 */
+	public synchronized void record(int attackerId, int defenderId, double[] features, double reward,
+			double[] nextFeatures, int nextOffset, int numNext) throws IOException {
+		int bytes = 16 + 4 * numFeatures * (1 + numNext);
+		if (buffer.remaining() < bytes) {
+			flush();
+		}
+		if (buffer.remaining() < bytes) {
+			// Too big for the buffer; write it on its own
+			ByteBuffer large = ByteBuffer.allocate(bytes);
+			put(large, attackerId, defenderId, features, reward, nextFeatures, nextOffset, numNext);
+			large.flip();
+			while (large.hasRemaining()) {
+				channel.write(large);
+			}
+		} else {
+			put(buffer, attackerId, defenderId, features, reward, nextFeatures, nextOffset, numNext);
+		}
+		records++;
+	}
+
+	/**
+	 * @return Number of decisions recorded by this recorder
+	 */
+	public synchronized long records() {
+		return records;
+	}
+
+	/**
+	 * Writes the buffered records to the file.
+	 */
+	public synchronized void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void put(ByteBuffer out, int attackerId, int defenderId, double[] features, double reward,
+			double[] nextFeatures, int nextOffset, int numNext) {
+		out.putInt(attackerId);
+		out.putInt(defenderId);
+		out.putFloat((float) reward);
+		out.putInt(numNext);
+		for (int i = 0; i < numFeatures; i++) {
+			out.putFloat((float) features[i]);
+		}
+		int end = nextOffset + numNext * numFeatures;
+		for (int i = nextOffset; i < end; i++) {
+			out.putFloat((float) nextFeatures[i]);
+		}
+	}
+
+	static ByteBuffer header(String[] featureNames) {
+		byte[][] names = new byte[featureNames.length][];
+		int bytes = 12;
+		for (int i = 0; i < names.length; i++) {
+			names[i] = featureNames[i].getBytes(StandardCharsets.UTF_8);
+			bytes += 2 + names[i].length;
+		}
+		ByteBuffer header = ByteBuffer.allocate(bytes);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(featureNames.length);
+		for (byte[] name : names) {
+			header.putShort((short) name.length);
+			header.put(name);
+		}
+		header.flip();
+		return header;
+	}
+}
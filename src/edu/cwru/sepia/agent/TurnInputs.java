@@ -0,0 +1,40 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * Everything features are computed from during one turn, prepared once by the agent at the start of the turn:
+ * the battlefield snapshot, the spatial grid of enemies, the targeting index and the distance ranks.
+ */
+class TurnInputs {
+
+	final BattleSnapshot snapshot;
+	final SpatialGrid enemyGrid;
+	final TargetingIndex targeting;
+	final DistanceRankTable distanceRanks;
+
+	/**
+	 * Whether the distance rank table is being filled this turn. When it is not, or when the attacker's row was not
+	 * rebuilt, distance ranks are counted on the grid instead.
+	 */
+	boolean rankTableInUse;
+
+	TurnInputs(BattleSnapshot snapshot, SpatialGrid enemyGrid, TargetingIndex targeting, DistanceRankTable distanceRanks) {
+		this.snapshot = snapshot;
+		this.enemyGrid = enemyGrid;
+		this.targeting = targeting;
+		this.distanceRanks = distanceRanks;
+	}
+
+	/**
+	 * @return How many enemies are strictly closer to the attacker than the defender, in Chebyshev distance.
+	 */
+	int closerCount(int attackerSlot, int defenderSlot) {
+		if (rankTableInUse && distanceRanks.hasRow(attackerSlot)) {
+			// From the ranks sorted once for this turn
+			return distanceRanks.closerCount(attackerSlot, defenderSlot);
+		}
+		int x = snapshot.allyX[attackerSlot];
+		int y = snapshot.allyY[attackerSlot];
+		int distance = DistanceRankTable.chebyshevDistance(x, y, snapshot.enemyX[defenderSlot], snapshot.enemyY[defenderSlot]);
+		return enemyGrid.countWithin(x, y, distance - 1);
+	}
+}
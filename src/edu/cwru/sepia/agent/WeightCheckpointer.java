@@ -0,0 +1,297 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the weights to a versioned binary checkpoint on a background thread, so saving never holds up the game
+ * thread between episodes.
+ *
+ * A checkpoint is taken every N episodes or every so many seconds, whichever comes first. Each checkpoint is
+ * written to a temporary file through a FileChannel, forced to disk and then renamed over the previous one, so
+ * the checkpoint on disk is always complete. If checkpoints are requested faster than they can be written, only
+ * the newest pending one is written.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   int    magic "RLWC"
+ *   int    format version
+ *   long   episodes played when the checkpoint was taken
+ *   int    number of weights
+ *   names  for each weight, the name of its feature as a short byte length and UTF-8 bytes (version 2 and up)
+ *   double weights...
+ *   long   CRC32 of everything above
+ * </pre>
+ *
+ * The names let an agent whose feature registry has changed since the checkpoint was taken pick out the weights
+ * of the features it still has. Version 1 checkpoints, which have no names, can still be read.
+ *
+ * Usage: WeightCheckpointer [checkpoint file] [text file] exports a checkpoint in the text format read by
+ * RLAgent.loadWeights.
+ */
+public class WeightCheckpointer implements Closeable {
+
+	public static final String DEFAULT_PATH = "agent_weights/weights.bin";
+
+	static final int MAGIC = 0x524C5743;
+	static final int VERSION = 2;
+
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 4;
+	private static final int TRAILER_BYTES = 8;
+
+	private final Path path;
+	private final String[] featureNames;
+	private final int everyEpisodes;
+	private final long everyNanos;
+
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(ParallelTrainer.daemonThreads("weight-checkpointer"));
+	// The newest checkpoint that has not been written yet, if any
+	private final AtomicReference<Checkpoint> pending = new AtomicReference<Checkpoint>();
+
+	private int episodesSinceCheckpoint;
+	private long lastCheckpointNanos = System.nanoTime();
+
+	/**
+	 * @param path Checkpoint file
+	 * @param featureNames Name of the feature of each weight, see FeatureRegistry
+	 * @param everyEpisodes Take a checkpoint after this many episodes
+	 * @param everySeconds Or after this many seconds since the last one, whichever comes first
+	 */
+	public WeightCheckpointer(Path path, String[] featureNames, int everyEpisodes, double everySeconds) {
+		this.path = path;
+		this.featureNames = featureNames.clone();
+		this.everyEpisodes = everyEpisodes;
+		this.everyNanos = (long) (everySeconds * 1e9);
+	}
+
+	/**
+	 * Call at the end of every episode. Takes a checkpoint if one is due.
+	 */
+	public void episodeFinished(double[] weights, long episodesPlayed) {
+		episodesSinceCheckpoint++;
+		if (episodesSinceCheckpoint >= everyEpisodes || System.nanoTime() - lastCheckpointNanos >= everyNanos) {
+			checkpoint(weights, episodesPlayed);
+		}
+	}
+
+	/**
+	 * Copies the weights and queues them to be written in the background.
+	 */
+	public void checkpoint(double[] weights, long episodesPlayed) {
+		episodesSinceCheckpoint = 0;
+		lastCheckpointNanos = System.nanoTime();
+
+		// If a checkpoint was already waiting, the queued write will pick up this newer one instead
+		if (pending.getAndSet(new Checkpoint(weights.clone(), null, episodesPlayed)) == null) {
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					Checkpoint checkpoint = pending.getAndSet(null);
+					if (checkpoint != null) {
+						try {
+							write(path, checkpoint.weights, featureNames, checkpoint.episodesPlayed);
+						} catch (IOException ex) {
+							System.err.println("Failed to write weight checkpoint. Reason: " + ex.getMessage());
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Waits for all queued checkpoints to be written.
+	 */
+	@Override
+	public void close() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes a checkpoint on the calling thread: to a temporary file first, then renamed over the target.
+	 */
+	public static void write(Path path, double[] weights, String[] featureNames, long episodesPlayed) throws IOException {
+		if (featureNames.length != weights.length) {
+			throw new IllegalArgumentException(featureNames.length + " feature names for " + weights.length + " weights");
+		}
+		Path parent = path.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+
+		byte[][] names = new byte[featureNames.length][];
+		int namesBytes = 0;
+		for (int i = 0; i < names.length; i++) {
+			names[i] = featureNames[i].getBytes(StandardCharsets.UTF_8);
+			namesBytes += 2 + names[i].length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + namesBytes + 8 * weights.length + TRAILER_BYTES);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(episodesPlayed);
+		buffer.putInt(weights.length);
+		for (byte[] name : names) {
+			buffer.putShort((short) name.length);
+			buffer.put(name);
+		}
+		for (double weight : weights) {
+			buffer.putDouble(weight);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		buffer.putLong(crc.getValue());
+		buffer.flip();
+
+		Path temporary = parent.resolve(path.getFileName() + ".tmp");
+		FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+
+		try {
+			Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Reads the weights from a checkpoint.
+	 *
+	 * @throws IOException If the file cannot be read or is not a valid checkpoint
+	 */
+	public static double[] read(Path path) throws IOException {
+		return load(path).weights;
+	}
+
+	/**
+	 * Reads a whole checkpoint: the weights, their feature names and the episodes played.
+	 *
+	 * @throws IOException If the file cannot be read or is not a valid checkpoint
+	 */
+	static Checkpoint load(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		ByteBuffer buffer;
+		try {
+			long size = channel.size();
+			if (size < HEADER_BYTES + TRAILER_BYTES || size > Integer.MAX_VALUE) {
+				throw new IOException(path + " is not a weight checkpoint");
+			}
+			buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// keep reading
+			}
+			buffer.flip();
+		} finally {
+			channel.close();
+		}
+
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException(path + " is not a weight checkpoint");
+		}
+		int version = buffer.getInt();
+		if (version < 1 || version > VERSION) {
+			throw new IOException(path + " has unsupported checkpoint version " + version);
+		}
+		long episodesPlayed = buffer.getLong();
+		int numWeights = buffer.getInt();
+		// Every weight takes 8 bytes, and its name at least 2 more, so a corrupt count is caught before allocating
+		if (numWeights < 0 || (long) numWeights * (version >= 2 ? 10 : 8) + TRAILER_BYTES > buffer.remaining()) {
+			throw new IOException(path + " is corrupt");
+		}
+
+		String[] featureNames = null;
+		if (version >= 2) {
+			featureNames = new String[numWeights];
+			for (int i = 0; i < numWeights; i++) {
+				if (buffer.remaining() < 2) {
+					throw new IOException(path + " is truncated");
+				}
+				int length = buffer.getShort() & 0xFFFF;
+				if (buffer.remaining() < length) {
+					throw new IOException(path + " is truncated");
+				}
+				byte[] name = new byte[length];
+				buffer.get(name);
+				featureNames[i] = new String(name, StandardCharsets.UTF_8);
+			}
+		}
+		if (buffer.remaining() != 8L * numWeights + TRAILER_BYTES) {
+			throw new IOException(path + " is truncated");
+		}
+		double[] weights = new double[numWeights];
+		for (int i = 0; i < numWeights; i++) {
+			weights[i] = buffer.getDouble();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		if (buffer.getLong() != crc.getValue()) {
+			throw new IOException(path + " is corrupt");
+		}
+		return new Checkpoint(weights, featureNames, episodesPlayed);
+	}
+
+	/**
+	 * Writes the weights in the text format used by RLAgent.saveWeights and loadWeights.
+	 */
+	public static void exportText(double[] weights, File textFile) throws IOException {
+		textFile.getAbsoluteFile().getParentFile().mkdirs();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(textFile, false));
+		try {
+			for (double weight : weights) {
+				writer.write(String.format("%f\n", weight));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	static class Checkpoint {
+		final double[] weights;
+		// Feature name of each weight, or null for a version 1 checkpoint
+		final String[] featureNames;
+		final long episodesPlayed;
+
+		Checkpoint(double[] weights, String[] featureNames, long episodesPlayed) {
+			this.weights = weights;
+			this.featureNames = featureNames;
+			this.episodesPlayed = episodesPlayed;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Path checkpoint = Paths.get(args.length >= 1 ? args[0] : DEFAULT_PATH);
+		File textFile = new File(args.length >= 2 ? args[1] : "agent_weights/weights.txt");
+
+		exportText(read(checkpoint), textFile);
+		System.out.println("Exported " + checkpoint + " to " + textFile);
+	}
+}
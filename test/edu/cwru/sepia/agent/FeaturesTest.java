@@ -0,0 +1,122 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plays learning episodes against the combat agent and checks, on every turn, that the feature vector of every
+ * (footman, enemy) pair is the one the baseline's per-pair scans of the state and the last turn's commands gave.
+ */
+public class FeaturesTest {
+
+	@Test
+	public void featuresMatchTheBaselineScans() throws InterruptedException {
+		CheckingAgent agent = new CheckingAgent();
+		new HeadlessTrainer(new ScenarioGenerator(5), 7).play(agent, 3);
+
+		assertTrue("No pairs were checked", agent.pairsChecked > 0);
+		assertTrue("No enemy was ever attacking the footman evaluated", agent.attackingSelfSeen > 0);
+		assertTrue(agent.mismatches.toString(), agent.mismatches.isEmpty());
+	}
+
+	private static class CheckingAgent extends RLAgent {
+
+		private static final long serialVersionUID = 1L;
+
+		final List<String> mismatches = new ArrayList<String>();
+		int pairsChecked;
+		int attackingSelfSeen;
+
+		CheckingAgent() {
+			super(0, new String[] { "1000", "false" }, 11);
+			setExitOnCompletion(false);
+			setWeightSaving(false);
+			setEpisodeLogging(false);
+			setTestReporting(false);
+			setMetrics(new AgentMetrics(false));
+		}
+
+		@Override
+		public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+			Map<Integer, Action> actions = super.middleStep(stateView, historyView);
+			List<Integer> allies = stateView.getUnitIds(playernum);
+			List<Integer> enemies = stateView.getUnitIds(ENEMY_PLAYERNUM);
+			for (int attackerId : allies) {
+				for (int defenderId : enemies) {
+					double[] expected = baselineFeatures(stateView, historyView, allies, enemies, attackerId, defenderId);
+					double[] actual = calculateFeatureVector(stateView, historyView, attackerId, defenderId);
+					if (!Arrays.equals(expected, actual)) {
+						mismatches.add("turn " + stateView.getTurnNumber() + ": " + attackerId + " on " + defenderId
+								+ " has " + Arrays.toString(actual) + ", the baseline gave " + Arrays.toString(expected));
+					}
+					if (expected[4] == 1.0) {
+						attackingSelfSeen++;
+					}
+					pairsChecked++;
+				}
+			}
+			return actions;
+		}
+
+		/**
+		 * The baseline calculateFeatureVector and its feature functions, unchanged apart from the unit lists being
+		 * passed in.
+		 */
+		private static double[] baselineFeatures(State.StateView stateView, History.HistoryView historyView,
+				List<Integer> myFootmen, List<Integer> enemyFootmen, int attackerId, int defenderId) {
+			double[] featureVector = new double[5];
+			featureVector[0] = 0.0;
+
+			Unit.UnitView attacker = stateView.getUnit(attackerId);
+			Unit.UnitView defender = stateView.getUnit(defenderId);
+			int targetDistance = chebyshevDistance(attacker, defender);
+			int numberOfEnemiesCloser = 0;
+			for (int enemyId : enemyFootmen) {
+				if (chebyshevDistance(attacker, stateView.getUnit(enemyId)) < targetDistance) {
+					numberOfEnemiesCloser++;
+				}
+			}
+			featureVector[1] = enemyFootmen.size() - numberOfEnemiesCloser;
+
+			featureVector[2] = ((double) attacker.getHP()) / ((double) defender.getHP());
+
+			int lastTurnNumber = stateView.getTurnNumber() - 1;
+			Map<Integer, Action> commandsIssued = historyView.getCommandsIssued(ENEMY_PLAYERNUM, lastTurnNumber);
+			double numbersFeature = 0.0;
+			for (int myFootman : myFootmen) {
+				if (commandsIssued.containsKey(myFootman)) {
+					TargetedAction action = (TargetedAction) commandsIssued.get(myFootman);
+					if (action.getTargetId() == defenderId) {
+						numbersFeature += 1.0;
+					}
+				}
+			}
+			featureVector[3] = numbersFeature / myFootmen.size();
+
+			double isAttackingSelfFeature = 0.0;
+			if (commandsIssued.containsKey(defenderId)) {
+				TargetedAction defenderAction = (TargetedAction) commandsIssued.get(defenderId);
+				if (defenderAction.getTargetId() == attackerId) {
+					isAttackingSelfFeature = 1.0;
+				}
+			}
+			featureVector[4] = isAttackingSelfFeature;
+			return featureVector;
+		}
+
+		private static int chebyshevDistance(Unit.UnitView a, Unit.UnitView b) {
+			return Math.max(Math.abs(a.getXPosition() - b.getXPosition()), Math.abs(a.getYPosition() - b.getYPosition()));
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+	@Test
+	public void smallValuesGetABucketEach() {
+		for (int value = 0; value < 8; value++) {
+			assertEquals(value, Histogram.bucketIndex(value));
+			assertEquals(value, Histogram.bucketLowerBound(value));
+			assertEquals(1, Histogram.bucketWidth(value));
+		}
+	}
+
+	@Test
+	public void bucketsTileTheWholeRangeOfALong() {
+		int lastBucket = Histogram.bucketIndex(Long.MAX_VALUE);
+		for (int index = 0; index <= lastBucket; index++) {
+			long lower = Histogram.bucketLowerBound(index);
+			long upper = lower + Histogram.bucketWidth(index) - 1;
+			assertEquals("lower bound of bucket " + index, index, Histogram.bucketIndex(lower));
+			assertEquals("upper bound of bucket " + index, index, Histogram.bucketIndex(upper));
+			if (index < lastBucket) {
+				assertEquals("bucket after " + index, index + 1, Histogram.bucketIndex(upper + 1));
+			} else {
+				assertEquals(Long.MAX_VALUE, upper);
+			}
+		}
+	}
+
+	@Test
+	public void powersOfTwoStartANewGroupOfEightBuckets() {
+		for (int exponent = 3; exponent < 63; exponent++) {
+			long power = 1L << exponent;
+			assertEquals(Histogram.bucketIndex(power - 1) + 1, Histogram.bucketIndex(power));
+			assertEquals(0, Histogram.bucketIndex(power) % 8);
+			assertEquals(power, Histogram.bucketLowerBound(Histogram.bucketIndex(power)));
+		}
+	}
+
+	@Test
+	public void quantilesAreWithinAnEighthOfTheValue() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.quantile(0.5));
+
+		for (long value = 1; value <= 1000; value++) {
+			histogram.record(value);
+		}
+		assertEquals(1000, histogram.count());
+		assertEquals(500.5, histogram.mean(), 1e-9);
+		assertEquals(1000, histogram.max());
+
+		long median = histogram.quantile(0.5);
+		assertTrue("median " + median, Math.abs(median - 500) <= 500 / 8);
+		long p99 = histogram.quantile(0.99);
+		assertTrue("p99 " + p99, Math.abs(p99 - 990) <= 990 / 8);
+		assertEquals(Histogram.bucketIndex(1000), Histogram.bucketIndex(histogram.quantile(1.0)));
+	}
+
+	@Test
+	public void quantileIsClampedToTheLargestValue() {
+		Histogram histogram = new Histogram();
+		// The bucket is [960, 1024), so its midpoint is above the only value
+		histogram.record(960);
+		assertEquals(960, histogram.quantile(0.5));
+	}
+
+	@Test
+	public void negativeValuesCountAsZero() {
+		Histogram histogram = new Histogram();
+		histogram.record(-5);
+		assertEquals(1, histogram.count());
+		assertEquals(0, histogram.max());
+		assertEquals(0, histogram.quantile(0.5));
+	}
+}
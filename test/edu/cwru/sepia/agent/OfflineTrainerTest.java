@@ -0,0 +1,53 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class OfflineTrainerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void terminalRewardsAreFitted() throws IOException, InterruptedException {
+		Path path = folder.getRoot().toPath().resolve("terminal.bin");
+		TrajectoryRecorder recorder = new TrajectoryRecorder(path, new String[] { "x" });
+		for (double x : new double[] { 0.5, 1, 1.5, 2 }) {
+			recorder.record(1, 2, new double[] { x }, 2 * x, new double[0], 0, 0);
+		}
+		recorder.close();
+
+		OfflineTrainer trainer = new OfflineTrainer(Arrays.asList(path));
+		assertEquals(4, trainer.records());
+		assertArrayEquals(new double[] { 2 }, trainer.train(new double[] { 0 }, 200, 0.1, 0.9, 1, 3), 1e-6);
+	}
+
+	@Test
+	public void theBestNextCandidateIsBootstrapped() throws IOException, InterruptedException {
+		Path path = folder.getRoot().toPath().resolve("bootstrap.bin");
+		TrajectoryRecorder recorder = new TrajectoryRecorder(path, new String[] { "x" });
+		recorder.record(1, 2, new double[] { 1 }, 1, new double[] { -1, 1 }, 0, 2);
+		recorder.close();
+
+		// w = 1 + 0.5 * max(-w, w) holds at w = 2
+		double[] weights = new OfflineTrainer(Arrays.asList(path)).train(new double[] { 0.5 }, 500, 0.1, 0.5, 1, 3);
+		assertArrayEquals(new double[] { 2 }, weights, 1e-6);
+	}
+
+	@Test(expected = IOException.class)
+	public void logsOfDifferentFeaturesAreNotMixed() throws IOException {
+		Path first = folder.getRoot().toPath().resolve("first.bin");
+		Path second = folder.getRoot().toPath().resolve("second.bin");
+		new TrajectoryRecorder(first, new String[] { "x" }).close();
+		new TrajectoryRecorder(second, new String[] { "y" }).close();
+		new OfflineTrainer(Arrays.asList(first, second));
+	}
+}
@@ -0,0 +1,40 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The weights are saved to agent_weights/ in the working directory, which Maven points at target/test-work.
+ */
+public class ParallelTrainerTest {
+
+	@Before
+	public void removeSavedWeights() throws IOException {
+		Files.deleteIfExists(Paths.get(WeightCheckpointer.DEFAULT_PATH));
+		Files.deleteIfExists(Paths.get("agent_weights/weights.txt"));
+	}
+
+	@Test
+	public void savedWeightsAreTheSharedResult() throws InterruptedException, IOException {
+		double[] initialWeights = { 0.1, -0.2, 0.3, -0.4, 0.5 };
+		HeadlessTrainer.Result result = new ParallelTrainer(new ScenarioGenerator(5), 3, 8).train(initialWeights, 4);
+
+		WeightCheckpointer.Checkpoint checkpoint = WeightCheckpointer.load(Paths.get(WeightCheckpointer.DEFAULT_PATH));
+		assertArrayEquals(result.weights, checkpoint.weights, 0.0);
+		assertEquals(result.episodes, checkpoint.episodesPlayed);
+
+		List<String> lines = Files.readAllLines(Paths.get("agent_weights/weights.txt"));
+		assertEquals(result.weights.length, lines.size());
+		for (int i = 0; i < result.weights.length; i++) {
+			assertEquals(String.format("%f", result.weights[i]), lines.get(i));
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sessions and eligibility traces of the learning agent. The weights are saved to agent_weights/ in the working
+ * directory, which Maven points at target/test-work.
+ */
+public class RLAgentTest {
+
+	private static final Path WEIGHTS_DIRECTORY = Paths.get("agent_weights");
+
+	@Before
+	public void removeSavedWeights() throws IOException {
+		Files.deleteIfExists(Paths.get(WeightCheckpointer.DEFAULT_PATH));
+		Files.deleteIfExists(WEIGHTS_DIRECTORY.resolve("weights.txt"));
+	}
+
+	@Test
+	public void savedSessionReloadsBitIdentical() throws InterruptedException {
+		double[] trained = trainSavingSession();
+
+		assertArrayEquals(bits(trained), bits(loadingAgent().weights));
+	}
+
+	@Test
+	public void textWeightsReplacedAfterTheSessionAreLoaded() throws InterruptedException, IOException {
+		trainSavingSession();
+		File textWeights = WEIGHTS_DIRECTORY.resolve("weights.txt").toFile();
+		Files.write(textWeights.toPath(), "0.5\n-0.25\n1.0\n2.0\n-3.0\n".getBytes("US-ASCII"));
+		// Written after the checkpoint, whatever the file system's timestamp resolution
+		textWeights.setLastModified(new File(WeightCheckpointer.DEFAULT_PATH).lastModified() + 2000);
+
+		assertArrayEquals(new double[] { 0.5, -0.25, 1.0, 2.0, -3.0 }, loadingAgent().weights, 0.0);
+	}
+
+	@Test
+	public void textWeightsAloneAreLoadedRounded() throws InterruptedException, IOException {
+		double[] trained = trainSavingSession();
+		Files.delete(Paths.get(WeightCheckpointer.DEFAULT_PATH));
+
+		double[] loaded = loadingAgent().weights;
+		assertEquals(trained.length, loaded.length);
+		for (int i = 0; i < trained.length; i++) {
+			assertEquals(trained[i], loaded[i], 5e-7);
+		}
+		assertFalse("The trained weights have more than 6 decimals", Arrays.equals(bits(trained), bits(loaded)));
+	}
+
+	@Test
+	public void tracesDecayByGammaLambdaAndResetOffPolicy() {
+		RLAgent agent = new RLAgent(0, new String[] { "1", "false" }, 1);
+		agent.setHyperparameters(0.9, 0.5, 0.001, 0.02);
+		double[] trace = new double[5];
+
+		// Footman 7 follows its greedy choice twice, then explores, then follows its greedy choice again
+		agent.accumulateTrace(7, new double[] { 1, 0, 2, 0, 0 }, 0, false, trace);
+		assertArrayEquals(new double[] { 1, 0, 2, 0, 0 }, trace, 1e-12);
+		agent.accumulateTrace(7, new double[] { 9, 1, 1, 0, 0, 1 }, 1, false, trace);
+		assertArrayEquals(new double[] { 1.45, 1, 0.9, 0, 1 }, trace, 1e-12);
+		// Footman 3 has a trace of its own
+		agent.accumulateTrace(3, new double[] { 0, 0, 0, 0, 1 }, 0, false, trace);
+		assertArrayEquals(new double[] { 0, 0, 0, 0, 1 }, trace, 1e-12);
+		agent.accumulateTrace(7, new double[] { 1, 0, 0, 1, 0 }, 0, false, trace);
+		assertArrayEquals(new double[] { 1.6525, 0.45, 0.405, 1, 0.45 }, trace, 1e-12);
+		agent.accumulateTrace(7, new double[] { 1, 2, 0, 0, 0 }, 0, true, trace);
+		assertArrayEquals(new double[] { 1, 2, 0, 0, 0 }, trace, 1e-12);
+		agent.accumulateTrace(7, new double[] { 1, 0, 0, 0, 0 }, 0, false, trace);
+		assertArrayEquals(new double[] { 1.45, 0.9, 0, 0, 0 }, trace, 1e-12);
+	}
+
+	@Test
+	public void overriddenChoicesResetTheTrace() throws InterruptedException {
+		TraceCheckingAgent agent = new TraceCheckingAgent();
+		new HeadlessTrainer(new ScenarioGenerator(5), 7).play(agent, 3);
+
+		assertTrue("No trace was decayed", agent.decayed > 0);
+		assertTrue("No choice was overridden", agent.overridden > 0);
+		assertTrue(agent.mismatches.toString(), agent.mismatches.isEmpty());
+	}
+
+	/**
+	 * SEPIA's games are not reproducible from a seed alone, so the agents are driven through the same games in
+	 * lockstep and must learn the same weights from them, whatever the size of their pools.
+	 */
+	@Test
+	public void forkJoinAgentsWithTheSameSeedLearnTheSameWeights() throws InterruptedException {
+		int[] poolSizes = { 4, 4, 1 };
+		RLAgent[] agents = new RLAgent[poolSizes.length];
+		ForkJoinPool[] pools = new ForkJoinPool[poolSizes.length];
+		try {
+			for (int i = 0; i < agents.length; i++) {
+				pools[i] = new ForkJoinPool(poolSizes[i]);
+				agents[i] = new RLAgent(0, new String[] { "1000", "false" }, 5);
+				agents[i].setExitOnCompletion(false);
+				agents[i].setWeightSaving(false);
+				agents[i].setEpisodeLogging(false);
+				agents[i].setTestReporting(false);
+				agents[i].setMetrics(new AgentMetrics(false));
+				agents[i].setParallelDecisions(pools[i]);
+			}
+			// 20 footmen a side, so every turn is split into several decision tasks
+			new HeadlessTrainer(new ScenarioGenerator(20), 5).play(new Lockstep(agents), 3);
+		} finally {
+			for (ForkJoinPool pool : pools) {
+				pool.shutdown();
+			}
+		}
+
+		assertFalse("Nothing was learned",
+				Arrays.equals(new RLAgent(0, new String[] { "1000", "false" }, 5).weights, agents[0].weights));
+		for (int i = 1; i < agents.length; i++) {
+			assertArrayEquals(bits(agents[0].weights), bits(agents[i].weights));
+		}
+	}
+
+	/**
+	 * Hands every state to each agent and plays the first one's actions.
+	 */
+	private static class Lockstep extends Agent {
+
+		private static final long serialVersionUID = 1L;
+
+		private final RLAgent[] agents;
+
+		Lockstep(RLAgent[] agents) {
+			super(0);
+			this.agents = agents;
+		}
+
+		@Override
+		public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+			Map<Integer, Action> actions = agents[0].initialStep(stateView, historyView);
+			for (int i = 1; i < agents.length; i++) {
+				agents[i].initialStep(stateView, historyView);
+			}
+			return actions;
+		}
+
+		@Override
+		public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+			Map<Integer, Action> actions = agents[0].middleStep(stateView, historyView);
+			for (int i = 1; i < agents.length; i++) {
+				agents[i].middleStep(stateView, historyView);
+			}
+			return actions;
+		}
+
+		@Override
+		public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+			for (RLAgent agent : agents) {
+				agent.terminalStep(stateView, historyView);
+			}
+		}
+
+		@Override
+		public void savePlayerData(OutputStream outputStream) {
+		}
+
+		@Override
+		public void loadPlayerData(InputStream inputStream) {
+		}
+	}
+
+	/**
+	 * Never explores, and puts at most one footman on an enemy, so the footmen sharing a best enemy are overridden.
+	 * Each trace is checked against one decayed by gamma * lambda after a choice of the footman's own best enemy,
+	 * under the weights it was chosen with, and restarted after any other choice.
+	 */
+	private static class TraceCheckingAgent extends RLAgent {
+
+		private static final long serialVersionUID = 1L;
+
+		final List<String> mismatches = new ArrayList<String>();
+		int decayed;
+		int overridden;
+
+		private final Map<Integer, double[]> expectedTraces = new HashMap<Integer, double[]>();
+		private boolean ownBest;
+
+		TraceCheckingAgent() {
+			super(0, new String[] { "1000", "false" }, 11);
+			setExitOnCompletion(false);
+			setWeightSaving(false);
+			setEpisodeLogging(false);
+			setTestReporting(false);
+			setMetrics(new AgentMetrics(false));
+			setHyperparameters(0.9, 0.5, 0.001, 0.0);
+			setJointAssignment(1, Long.MAX_VALUE);
+		}
+
+		@Override
+		public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+			expectedTraces.clear();
+			return super.initialStep(stateView, historyView);
+		}
+
+		@Override
+		public int selectAction(State.StateView stateView, History.HistoryView historyView, int attackerId) {
+			int defenderId = super.selectAction(stateView, historyView, attackerId);
+			double bestQValue = Double.NEGATIVE_INFINITY;
+			for (int enemyId : stateView.getUnitIds(ENEMY_PLAYERNUM)) {
+				bestQValue = Math.max(bestQValue, qValue(stateView, historyView, attackerId, enemyId));
+			}
+			ownBest = defenderId >= 0 && qValue(stateView, historyView, attackerId, defenderId) == bestQValue;
+			return defenderId;
+		}
+
+		@Override
+		double[] accumulateTrace(int footmanId, double[] features, int offset, boolean exploratory, double[] out) {
+			double[] expected = expectedTraces.get(footmanId);
+			if (expected == null || !ownBest) {
+				expected = new double[out.length];
+				expectedTraces.put(footmanId, expected);
+			}
+			if (ownBest && !Arrays.equals(expected, new double[expected.length])) {
+				decayed++;
+			}
+			if (!ownBest) {
+				overridden++;
+			}
+			for (int i = 0; i < expected.length; i++) {
+				expected[i] = (ownBest ? gamma * lambda : 0) * expected[i] + features[offset + i];
+			}
+			double[] trace = super.accumulateTrace(footmanId, features, offset, exploratory, out);
+			if (!Arrays.equals(expected, trace)) {
+				mismatches.add("footman " + footmanId + " has trace " + Arrays.toString(trace) + ", expected "
+						+ Arrays.toString(expected));
+			}
+			return trace;
+		}
+
+		private double qValue(State.StateView stateView, History.HistoryView historyView, int attackerId, int defenderId) {
+			double[] features = calculateFeatureVector(stateView, historyView, attackerId, defenderId);
+			double qValue = 0;
+			for (int i = 0; i < features.length; i++) {
+				qValue += weights[i] * features[i];
+			}
+			return qValue;
+		}
+	}
+
+	/**
+	 * Plays a short learning session that ends by saving its weights, as the XML runner's would.
+	 *
+	 * @return The weights at the end of the session
+	 */
+	private static double[] trainSavingSession() throws InterruptedException {
+		RLAgent agent = new RLAgent(0, new String[] { "2", "false" }, 3);
+		agent.setExitOnCompletion(false);
+		agent.setEpisodeLogging(false);
+		agent.setTestReporting(false);
+		agent.setMetrics(new AgentMetrics(false));
+		agent.setEpisodeBlocks(1, 1);
+		return new HeadlessTrainer(new ScenarioGenerator(5), 5).train(agent).weights;
+	}
+
+	private static RLAgent loadingAgent() {
+		return new RLAgent(0, new String[] { "1", "true" }, 4);
+	}
+
+	private static long[] bits(double[] weights) {
+		long[] bits = new long[weights.length];
+		for (int i = 0; i < weights.length; i++) {
+			bits[i] = Double.doubleToRawLongBits(weights[i]);
+		}
+		return bits;
+	}
+}
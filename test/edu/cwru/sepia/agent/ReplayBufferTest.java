@@ -0,0 +1,48 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ReplayBufferTest {
+
+	@Test
+	public void transitionsAreCopiedAndTheOldestOverwritten() {
+		ReplayBuffer buffer = new ReplayBuffer(2, 2, 3);
+		double[] row = { 1, 2, 3, 4, 5, 6, 7, 8 };
+		double[] nextFeatures = buffer.nextFeatures();
+
+		buffer.add(new double[] { 0.5, 0.25 }, 10, row, new int[] { 6, 2 }, 2);
+		buffer.add(new double[] { 1.5, 1.25 }, 20, row, new int[0], 0);
+		assertEquals(2, buffer.size());
+		assertTransition(buffer, 0, new double[] { 0.5, 0.25 }, 10, new double[] { 7, 8, 3, 4 });
+		assertTransition(buffer, 1, new double[] { 1.5, 1.25 }, 20, new double[0]);
+
+		buffer.add(new double[] { 2.5, 2.25 }, 30, row, new int[] { 0, 2, 4 }, 3);
+		assertEquals(2, buffer.size());
+		assertTransition(buffer, 0, new double[] { 2.5, 2.25 }, 30, new double[] { 1, 2, 3, 4, 5, 6 });
+		assertTransition(buffer, 1, new double[] { 1.5, 1.25 }, 20, new double[0]);
+		// Nothing is reallocated, whatever was stored
+		assertSame(nextFeatures, buffer.nextFeatures());
+		assertEquals(2 * 3 * 2, nextFeatures.length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void moreCandidatesThanTheRoomAreRejected() {
+		ReplayBuffer buffer = new ReplayBuffer(4, 1, 2);
+		buffer.add(new double[] { 1 }, 0, new double[] { 1, 2, 3 }, new int[] { 0, 1, 2 }, 3);
+	}
+
+	private static void assertTransition(ReplayBuffer buffer, int index, double[] features, double reward, double[] next) {
+		double[] stored = new double[features.length];
+		System.arraycopy(buffer.features(), buffer.featureOffset(index), stored, 0, features.length);
+		assertArrayEquals(features, stored, 0.0);
+		assertEquals(reward, buffer.reward(index), 0.0);
+		assertEquals(next.length / features.length, buffer.nextCount(index));
+		double[] storedNext = new double[next.length];
+		System.arraycopy(buffer.nextFeatures(), buffer.nextOffset(index), storedNext, 0, next.length);
+		assertArrayEquals(next, storedNext, 0.0);
+	}
+}
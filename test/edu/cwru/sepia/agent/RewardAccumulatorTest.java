@@ -0,0 +1,178 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays games against the combat agent and checks that the single pass over each turn's logs credits every
+ * footman with exactly the reward the baseline's per-footman scan gave it, kills included.
+ */
+public class RewardAccumulatorTest {
+
+	@Test
+	public void singlePassMatchesTheBaselineScan() throws InterruptedException {
+		CheckingAgent agent = new CheckingAgent(0, new Random(5));
+		new HeadlessTrainer(new ScenarioGenerator(5), 5).play(agent, 4);
+
+		assertTrue("No kills were credited", agent.killsCredited > 0);
+		assertTrue(agent.mismatches.toString(), agent.mismatches.isEmpty());
+	}
+
+	/**
+	 * Orders the footmen onto mostly the same enemy, with random switches, and keeps both the accumulator and the baseline's bookkeeping:
+	 * the living footmen in roster order, rewarded one at a time before the dead are removed.
+	 */
+	private static class CheckingAgent extends Agent {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Random random;
+		private final RewardAccumulator accumulator;
+		private final Set<Integer> accumulatorKills = new HashSet<Integer>();
+		private final Set<Integer> baselineKills = new HashSet<Integer>();
+		private final Map<Integer, Double> baselineRewards = new HashMap<Integer, Double>();
+		private List<Integer> myFootmen;
+		final List<String> mismatches = new ArrayList<String>();
+		int killsCredited;
+
+		CheckingAgent(int playernum, Random random) {
+			super(playernum);
+			this.random = random;
+			this.accumulator = new RewardAccumulator(playernum, RLAgent.ENEMY_PLAYERNUM);
+		}
+
+		@Override
+		public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+			myFootmen = new LinkedList<Integer>(stateView.getUnitIds(playernum));
+			accumulator.reset(myFootmen);
+			accumulatorKills.clear();
+			baselineKills.clear();
+			baselineRewards.clear();
+			for (int footmanId : myFootmen) {
+				baselineRewards.put(footmanId, 0.0);
+			}
+			return middleStep(stateView, historyView);
+		}
+
+		@Override
+		public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+			check(stateView, historyView);
+
+			Map<Integer, Action> actions = new HashMap<Integer, Action>();
+			List<Integer> enemies = stateView.getUnitIds(RLAgent.ENEMY_PLAYERNUM);
+			int turnNumber = stateView.getTurnNumber();
+			boolean retarget = turnNumber == 0 || !historyView.getDeathLogs(turnNumber - 1).isEmpty();
+			for (int footmanId : stateView.getUnitIds(playernum)) {
+				if (!enemies.isEmpty() && (retarget || random.nextInt(8) == 0)) {
+					// Mostly focus on one enemy, so that kills happen and are credited
+					int enemyId = enemies.get(random.nextInt(4) > 0 ? 0 : random.nextInt(enemies.size()));
+					actions.put(footmanId, Action.createCompoundAttack(footmanId, enemyId));
+				}
+			}
+			return actions;
+		}
+
+		@Override
+		public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+			check(stateView, historyView);
+		}
+
+		private void check(State.StateView stateView, History.HistoryView historyView) {
+			int turnNumber = stateView.getTurnNumber();
+			if (turnNumber == 0) {
+				return;
+			}
+			accumulator.accumulate(historyView, turnNumber - 1, accumulatorKills);
+			for (int footmanId : myFootmen) {
+				double reward = baselineReward(historyView, turnNumber - 1, footmanId);
+				baselineRewards.put(footmanId, baselineRewards.get(footmanId) + reward);
+				if (reward >= 50) {
+					killsCredited++;
+				}
+				if (accumulator.turnReward(footmanId) != reward
+						|| accumulator.cumulativeReward(footmanId) != baselineRewards.get(footmanId)) {
+					mismatches.add("turn " + turnNumber + ": footman " + footmanId + " got "
+							+ accumulator.turnReward(footmanId) + ", the baseline scan gave " + reward);
+				}
+			}
+			if (!accumulatorKills.equals(baselineKills)) {
+				mismatches.add("turn " + turnNumber + ": kills " + accumulatorKills + ", the baseline claimed " + baselineKills);
+			}
+			for (DeathLog deathLog : historyView.getDeathLogs(turnNumber - 1)) {
+				myFootmen.remove(Integer.valueOf(deathLog.getDeadUnitID()));
+			}
+		}
+
+		/**
+		 * The baseline RLAgent.calculateReward, unchanged apart from its fields being passed in.
+		 */
+		private double baselineReward(History.HistoryView historyView, int lastTurnNumber, int footmanId) {
+			double reward = 0.0;
+
+			for (DamageLog damageLog : historyView.getDamageLogs(lastTurnNumber)) {
+				if (damageLog.getAttackerID() == footmanId) {
+					reward += damageLog.getDamage();
+				}
+				if (damageLog.getDefenderID() == footmanId) {
+					reward -= damageLog.getDamage();
+				}
+			}
+
+			for (DeathLog deathLog : historyView.getDeathLogs(lastTurnNumber)) {
+				if (deathLog.getDeadUnitID() == footmanId) {
+					reward -= 100;
+				}
+				if (deathLog.getController() == RLAgent.ENEMY_PLAYERNUM) {
+					Map<Integer, ActionResult> actionResults = historyView.getCommandFeedback(playernum, lastTurnNumber);
+					if (actionResults.containsKey(footmanId)) {
+						TargetedAction action = (TargetedAction) actionResults.get(footmanId).getAction();
+						int defenderId = action.getTargetId();
+						if (!baselineKills.contains(defenderId) && deathLog.getDeadUnitID() == defenderId) {
+							baselineKills.add(defenderId);
+							reward += 100;
+						}
+					}
+				}
+			}
+
+			// The baseline read the last turn's command twice, so the switch penalty never applied
+			Map<Integer, Action> commandsIssued = historyView.getCommandsIssued(playernum, lastTurnNumber);
+			Map<Integer, Action> commandsIssuedBeforeLast = historyView.getCommandsIssued(playernum, lastTurnNumber - 1);
+			if (commandsIssued.containsKey(footmanId) && commandsIssuedBeforeLast.containsKey(footmanId)) {
+				int enemyFootmanId = ((TargetedAction) commandsIssued.get(footmanId)).getTargetId();
+				int enemyFootmanIdBeforeLast = ((TargetedAction) commandsIssued.get(footmanId)).getTargetId();
+				if (enemyFootmanId != enemyFootmanIdBeforeLast) {
+					reward -= 0.1;
+				}
+			}
+			return reward;
+		}
+
+		@Override
+		public void savePlayerData(OutputStream outputStream) {
+		}
+
+		@Override
+		public void loadPlayerData(InputStream inputStream) {
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RewardStatisticsTest {
+
+	@Test
+	public void windowKeepsTheNewestValuesOldestFirst() {
+		RewardStatistics statistics = new RewardStatistics(3);
+		List<Double> added = new ArrayList<Double>();
+		for (int i = 1; i <= 8; i++) {
+			statistics.add(i);
+			added.add((double) i);
+			List<Double> expected = added.subList(Math.max(0, added.size() - 3), added.size());
+			assertEquals(expected, statistics.toList());
+			assertEquals(expected.size(), statistics.retained());
+			assertEquals(i, statistics.count());
+			assertEquals(i, statistics.last(), 0.0);
+			assertEquals(mean(expected), statistics.windowMean(), 1e-12);
+		}
+	}
+
+	@Test
+	public void aggregatesCoverEveryValueAdded() {
+		Random random = new Random(23);
+		RewardStatistics statistics = new RewardStatistics(5);
+		List<Double> added = new ArrayList<Double>();
+		for (int i = 0; i < 1000; i++) {
+			double value = random.nextGaussian() * 40 - 100;
+			statistics.add(value);
+			added.add(value);
+		}
+
+		double mean = mean(added);
+		double squaredDeviations = 0;
+		double best = Double.NEGATIVE_INFINITY;
+		for (double value : added) {
+			squaredDeviations += (value - mean) * (value - mean);
+			best = Math.max(best, value);
+		}
+		assertEquals(mean, statistics.mean(), 1e-9);
+		assertEquals(squaredDeviations / (added.size() - 1), statistics.variance(), 1e-6);
+		assertEquals(best, statistics.best(), 0.0);
+		assertEquals(mean(added.subList(995, 1000)), statistics.windowMean(), 1e-9);
+	}
+
+	@Test
+	public void noWindowKeepsEverything() {
+		RewardStatistics statistics = new RewardStatistics(0);
+		List<Double> added = new ArrayList<Double>();
+		for (int i = 0; i < 40; i++) {
+			statistics.add(i * 0.5);
+			added.add(i * 0.5);
+		}
+		assertEquals(added, statistics.toList());
+		assertEquals(mean(added), statistics.windowMean(), 1e-12);
+	}
+
+	@Test
+	public void emptyStatistics() {
+		RewardStatistics statistics = new RewardStatistics(4);
+		assertEquals(0, statistics.retained());
+		assertEquals(0.0, statistics.windowMean(), 0.0);
+		assertEquals(0.0, statistics.variance(), 0.0);
+		assertEquals(Double.NEGATIVE_INFINITY, statistics.best(), 0.0);
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void valuesThatLeftTheWindowCannotBeRead() {
+		RewardStatistics statistics = new RewardStatistics(2);
+		for (int i = 0; i < 5; i++) {
+			statistics.add(i);
+		}
+		statistics.get(2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeWindowIsRejected() {
+		new RewardStatistics(-1);
+	}
+
+	private static double mean(List<Double> values) {
+		double sum = 0;
+		for (double value : values) {
+			sum += value;
+		}
+		return sum / values.size();
+	}
+}
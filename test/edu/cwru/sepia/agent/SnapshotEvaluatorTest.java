@@ -0,0 +1,76 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SnapshotEvaluatorTest {
+
+	private static final double[] WEIGHTS = { 0.1, -0.2, 0.3, -0.4, 0.5 };
+
+	private RLAgent learner;
+	private PrintStream out;
+	private PrintStream err;
+	private final ByteArrayOutputStream printed = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+	@Before
+	public void captureOutput() {
+		learner = new RLAgent(0, new String[] { "10", "false" }, 1);
+		learner.setTestReporting(false);
+		out = System.out;
+		err = System.err;
+		System.setOut(new PrintStream(printed, true));
+		System.setErr(new PrintStream(errors, true));
+	}
+
+	@After
+	public void restoreOutput() {
+		System.setOut(out);
+		System.setErr(err);
+	}
+
+	@Test
+	public void evaluationsArePrivateToTheEvaluator() {
+		long sharedEpisodes = AgentMetrics.shared().getEpisodes();
+		SnapshotEvaluator evaluator = new SnapshotEvaluator(new ScenarioGenerator(5), 2, 9);
+		evaluator.submit(WEIGHTS, 2, learner);
+		evaluator.submit(WEIGHTS, 2, learner);
+		evaluator.close();
+
+		assertEquals(2, learner.getAverageCumulativeRewards().size());
+		assertEquals("", printed.toString());
+		assertEquals(sharedEpisodes, AgentMetrics.shared().getEpisodes());
+	}
+
+	@Test
+	public void failedEvaluationsAreSkipped() {
+		SnapshotEvaluator evaluator = new SnapshotEvaluator(new ScenarioGenerator(5), 2, 9);
+		evaluator.submit(WEIGHTS, 2, learner);
+		// No weights to copy, so the evaluation fails before its game starts
+		evaluator.submit(null, 2, learner);
+		evaluator.submit(WEIGHTS, 2, learner);
+		try {
+			evaluator.close();
+			fail("The failed evaluation was not reported");
+		} catch (IllegalStateException expected) {
+			// The first failure is rethrown once every evaluation is done
+		}
+
+		List<Double> rewards = learner.getAverageCumulativeRewards();
+		assertEquals(2, rewards.size());
+		for (double reward : rewards) {
+			assertFalse(Double.isNaN(reward));
+		}
+		assertTrue(errors.toString(), errors.toString().contains("Failed to evaluate snapshot 1"));
+	}
+}
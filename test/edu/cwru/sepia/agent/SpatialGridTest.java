@@ -0,0 +1,105 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the grid's answers with a scan of every unit, while units are added, moved across cells and removed.
+ */
+public class SpatialGridTest {
+
+	@Test
+	public void countWithinMatchesAScanOfEveryUnit() {
+		Random random = new Random(13);
+		for (int trial = 0; trial < 200; trial++) {
+			int xExtent = 1 + random.nextInt(40);
+			int yExtent = 1 + random.nextInt(40);
+			SpatialGrid grid = new SpatialGrid();
+			grid.reset(xExtent, yExtent, 1 + random.nextInt(30));
+			Map<Integer, int[]> units = new HashMap<Integer, int[]>();
+
+			for (int step = 0; step < 60; step++) {
+				moveRandomUnit(random, grid, units, xExtent, yExtent);
+				assertEquals(units.size(), grid.size());
+
+				int x = random.nextInt(xExtent);
+				int y = random.nextInt(yExtent);
+				int radius = random.nextInt(Math.max(xExtent, yExtent) + 2) - 1;
+				int expected = 0;
+				for (int[] position : units.values()) {
+					if (distance(x, y, position) <= radius) {
+						expected++;
+					}
+				}
+				assertEquals("trial " + trial + ", step " + step + ": radius " + radius + " around (" + x + ", " + y + ")",
+						expected, grid.countWithin(x, y, radius));
+			}
+		}
+	}
+
+	@Test
+	public void nearestMatchesASortOfEveryUnit() {
+		Random random = new Random(17);
+		for (int trial = 0; trial < 200; trial++) {
+			int xExtent = 1 + random.nextInt(40);
+			int yExtent = 1 + random.nextInt(40);
+			SpatialGrid grid = new SpatialGrid();
+			grid.reset(xExtent, yExtent, 1 + random.nextInt(30));
+			Map<Integer, int[]> units = new HashMap<Integer, int[]>();
+
+			for (int step = 0; step < 60; step++) {
+				moveRandomUnit(random, grid, units, xExtent, yExtent);
+
+				final int x = random.nextInt(xExtent);
+				final int y = random.nextInt(yExtent);
+				final Map<Integer, int[]> positions = units;
+				List<Integer> expected = new ArrayList<Integer>(units.keySet());
+				Collections.sort(expected, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						int byDistance = Integer.compare(distance(x, y, positions.get(a)), distance(x, y, positions.get(b)));
+						return byDistance != 0 ? byDistance : Integer.compare(a, b);
+					}
+				});
+
+				int k = 1 + random.nextInt(8);
+				int[] ids = new int[k];
+				int[] distances = new int[k];
+				int found = grid.nearest(x, y, k, ids, distances);
+				assertEquals(Math.min(k, units.size()), found);
+				for (int i = 0; i < found; i++) {
+					assertEquals("trial " + trial + ", step " + step + ": nearest " + i, (int) expected.get(i), ids[i]);
+					assertEquals(distance(x, y, units.get(ids[i])), distances[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a unit, moves one, possibly across cells, or removes one, in the grid and in the reference map.
+	 */
+	private static void moveRandomUnit(Random random, SpatialGrid grid, Map<Integer, int[]> units, int xExtent, int yExtent) {
+		int unitId = random.nextInt(40);
+		if (units.containsKey(unitId) && random.nextInt(5) == 0) {
+			grid.remove(unitId);
+			units.remove(unitId);
+		} else {
+			int[] position = { random.nextInt(xExtent), random.nextInt(yExtent) };
+			grid.update(unitId, position[0], position[1]);
+			units.put(unitId, position);
+		}
+	}
+
+	private static int distance(int x, int y, int[] position) {
+		return Math.max(Math.abs(x - position[0]), Math.abs(y - position[1]));
+	}
+}
@@ -0,0 +1,114 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the auction with every assignment of the bidders, on small random Q-matrices with some footmen keeping
+ * their targets. The auction is within numBidders * epsilon of the best total, where epsilon is the spread of the
+ * Q-values over 8 * (numBidders + 1).
+ */
+public class TargetAssignmentTest {
+
+	@Test
+	public void auctionMatchesBruteForceWithinItsBound() {
+		Random random = new Random(1);
+		for (int trial = 0; trial < 2000; trial++) {
+			int numAllies = 1 + random.nextInt(6);
+			int numEnemies = 1 + random.nextInt(4);
+			int capacity = 1 + random.nextInt(3);
+
+			QMatrix qMatrix = new QMatrix(1);
+			qMatrix.resize(numAllies, numEnemies);
+			double[] features = qMatrix.features();
+			for (int i = 0; i < numAllies * numEnemies; i++) {
+				features[i] = random.nextInt(20) - 10 + random.nextDouble();
+			}
+			for (int attackerSlot = 0; attackerSlot < numAllies; attackerSlot++) {
+				qMatrix.ensureRow(attackerSlot, new double[] { 1.0 });
+			}
+
+			boolean[] pending = new boolean[numAllies];
+			int[] currentTarget = new int[numAllies];
+			int numBidders = 0;
+			double minQ = Double.POSITIVE_INFINITY;
+			double maxQ = Double.NEGATIVE_INFINITY;
+			for (int attackerSlot = 0; attackerSlot < numAllies; attackerSlot++) {
+				pending[attackerSlot] = random.nextInt(3) > 0;
+				currentTarget[attackerSlot] = random.nextInt(numEnemies + 1) - 1;
+				if (pending[attackerSlot]) {
+					numBidders++;
+					for (int column = 0; column < numEnemies; column++) {
+						minQ = Math.min(minQ, qMatrix.qValue(attackerSlot, column));
+						maxQ = Math.max(maxQ, qMatrix.qValue(attackerSlot, column));
+					}
+				}
+			}
+
+			TargetAssignment assignment = new TargetAssignment(capacity, 1000000000L);
+			assignment.solve(qMatrix, numAllies, numEnemies, numEnemies, null, pending, currentTarget);
+
+			// As in the solver, the capacity is raised when there are too few enemies for everybody
+			int copies = Math.max(capacity, (numAllies + numEnemies - 1) / numEnemies);
+			int[] lockedLoad = new int[numEnemies];
+			for (int attackerSlot = 0; attackerSlot < numAllies; attackerSlot++) {
+				if (!pending[attackerSlot] && currentTarget[attackerSlot] >= 0) {
+					lockedLoad[currentTarget[attackerSlot]]++;
+				}
+			}
+			int[] load = lockedLoad.clone();
+			double total = 0;
+			for (int attackerSlot = 0; attackerSlot < numAllies; attackerSlot++) {
+				int column = assignment.columnOf(attackerSlot);
+				if (!pending[attackerSlot]) {
+					assertEquals(-1, column);
+					continue;
+				}
+				assertTrue("trial " + trial + ": footman " + attackerSlot + " unassigned", column >= 0);
+				total += qMatrix.qValue(attackerSlot, column);
+				load[column]++;
+			}
+			for (int enemySlot = 0; enemySlot < numEnemies; enemySlot++) {
+				assertTrue("trial " + trial + ": enemy " + enemySlot + " over capacity",
+						load[enemySlot] <= Math.max(copies, lockedLoad[enemySlot]));
+			}
+
+			double best = bestTotal(qMatrix, numAllies, numEnemies, pending, lockedLoad.clone(), copies, 0);
+			double epsilon = Math.max(maxQ - minQ, 1e-9) / (8.0 * (numBidders + 1));
+			assertTrue("trial " + trial + ": total " + total + ", best " + best,
+					total >= best - numBidders * epsilon - 1e-9);
+		}
+	}
+
+	/**
+	 * @return The best total Q-value of the bidders from the given attacker on. A bidder with every enemy full takes
+	 *         its own best target, as the solver does.
+	 */
+	private static double bestTotal(QMatrix qMatrix, int numAllies, int numEnemies, boolean[] pending, int[] load,
+			int copies, int attackerSlot) {
+		if (attackerSlot == numAllies) {
+			return 0;
+		}
+		if (!pending[attackerSlot]) {
+			return bestTotal(qMatrix, numAllies, numEnemies, pending, load, copies, attackerSlot + 1);
+		}
+		double best = Double.NEGATIVE_INFINITY;
+		for (int enemySlot = 0; enemySlot < numEnemies; enemySlot++) {
+			if (load[enemySlot] < copies) {
+				load[enemySlot]++;
+				best = Math.max(best, qMatrix.qValue(attackerSlot, enemySlot)
+						+ bestTotal(qMatrix, numAllies, numEnemies, pending, load, copies, attackerSlot + 1));
+				load[enemySlot]--;
+			}
+		}
+		if (best == Double.NEGATIVE_INFINITY) {
+			best = qMatrix.qValue(attackerSlot, qMatrix.bestDefenderSlot(attackerSlot))
+					+ bestTotal(qMatrix, numAllies, numEnemies, pending, load, copies, attackerSlot + 1);
+		}
+		return best;
+	}
+}
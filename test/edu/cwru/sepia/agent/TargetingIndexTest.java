@@ -0,0 +1,264 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.PlayerState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays games against the combat agent and checks, on every turn, that the targeting index brought up to date
+ * from each turn's deltas answers exactly what a rescan of the whole history from turn 0 answers, and that the
+ * orders it reports for the last turn are exactly those the baseline features' scan of the last turn's commands
+ * saw. Two small hand-made histories cover an enemy changing its target and targets dying.
+ */
+public class TargetingIndexTest {
+
+	private final TargetingIndex index = new TargetingIndex(0, RLAgent.ENEMY_PLAYERNUM);
+
+	@Test
+	public void deltasMatchAFullHistoryRescan() throws InterruptedException {
+		CheckingAgent agent = new CheckingAgent(0, new Random(3));
+		new HeadlessTrainer(new ScenarioGenerator(5), 3).play(agent, 3);
+
+		assertTrue("No turns were checked", agent.turnsChecked > 0);
+		assertTrue(agent.mismatches.toString(), agent.mismatches.isEmpty());
+	}
+
+	@Test
+	public void enemyChangingTargetIsFollowed() {
+		Battle battle = new Battle();
+		battle.order(0, 0, 2);
+		battle.order(0, 1, 2);
+		battle.order(0, 2, 0);
+		index.applyTurn(battle.historyView, 0);
+		assertEquals(0, index.targetOf(2));
+		assertEquals(0, index.orderedTargetOf(2));
+		assertEquals(2, index.alliedAttackersOn(2));
+
+		// The enemy turns on the other footman, which switches to the other enemy
+		battle.order(1, 2, 1);
+		battle.order(1, 1, 3);
+		index.applyTurn(battle.historyView, 1);
+		assertEquals(1, index.targetOf(2));
+		assertEquals(1, index.orderedTargetOf(2));
+		assertEquals(2, index.targetOf(0));
+		assertEquals(-1, index.orderedTargetOf(0));
+		assertEquals(1, index.alliedAttackersOn(2));
+		assertEquals(1, index.alliedAttackersOn(3));
+
+		// Nobody is ordered again: the orders stand, but none was issued on the last turn
+		index.applyTurn(battle.historyView, 2);
+		assertEquals(1, index.targetOf(2));
+		assertEquals(-1, index.orderedTargetOf(2));
+		assertEquals(1, index.alliedAttackersOn(2));
+		assertEquals(1, index.alliedAttackersOn(3));
+	}
+
+	@Test
+	public void deadTargetsAreForgotten() {
+		Battle battle = new Battle();
+		battle.order(0, 0, 2);
+		battle.order(0, 1, 2);
+		battle.order(0, 2, 0);
+		battle.order(0, 3, 0);
+		index.applyTurn(battle.historyView, 0);
+
+		// A footman and the enemy both footmen were ordered onto die
+		battle.kill(1, 0);
+		battle.kill(1, 2);
+		index.applyTurn(battle.historyView, 1);
+		assertEquals(-1, index.targetOf(0));
+		assertEquals(-1, index.targetOf(2));
+		assertEquals(-1, index.orderedTargetOf(2));
+		// The dead footman no longer counts; the living one keeps its order until it is given a new one
+		assertEquals(1, index.alliedAttackersOn(2));
+		assertEquals(0, index.targetOf(3));
+
+		battle.order(2, 1, 3);
+		index.applyTurn(battle.historyView, 2);
+		assertEquals(0, index.alliedAttackersOn(2));
+		assertEquals(1, index.alliedAttackersOn(3));
+		assertEquals(-1, index.orderedTargetOf(3));
+
+		index.clear();
+		assertEquals(-1, index.targetOf(1));
+		assertEquals(0, index.alliedAttackersOn(3));
+	}
+
+	/**
+	 * Footmen 0 and 1 against enemy footmen 2 and 3, with a history that orders and deaths are written into.
+	 */
+	private static class Battle {
+
+		final State state;
+		final History history = new History();
+		final History.HistoryView historyView;
+		final Unit[] units = new Unit[4];
+
+		Battle() {
+			State.StateBuilder builder = new State.StateBuilder();
+			builder.setSize(8, 8);
+			for (int player = 0; player < 2; player++) {
+				PlayerState playerState = new PlayerState(player);
+				UnitTemplate footman = new UnitTemplate(100 + player);
+				footman.setName("Footman");
+				footman.setPlayer(player);
+				playerState.addTemplate(footman);
+				for (int i = 0; i < 2; i++) {
+					int unitId = 2 * player + i;
+					units[unitId] = new Unit(footman, unitId);
+					builder.addUnit(units[unitId], unitId, 0);
+					playerState.addUnit(units[unitId]);
+				}
+				builder.addPlayer(playerState);
+				history.addPlayer(player);
+			}
+			state = builder.build();
+			historyView = history.getView(0);
+		}
+
+		void order(int turnNumber, int unitId, int targetId) {
+			history.recordCommandRecieved(unitId < 2 ? 0 : RLAgent.ENEMY_PLAYERNUM, turnNumber, unitId,
+					Action.createCompoundAttack(unitId, targetId));
+		}
+
+		void kill(int turnNumber, int unitId) {
+			while (state.getTurnNumber() < turnNumber) {
+				state.incrementTurn();
+			}
+			history.recordDeath(units[unitId], state);
+		}
+	}
+
+	/**
+	 * Orders random footmen onto random enemies, so the orders change often, and compares the index with the
+	 * rescan before every decision. Failures are collected, because the agent runs on SEPIA's threads.
+	 */
+	private static class CheckingAgent extends Agent {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Random random;
+		private final TargetingIndex index;
+		final List<String> mismatches = new ArrayList<String>();
+		int turnsChecked;
+
+		CheckingAgent(int playernum, Random random) {
+			super(playernum);
+			this.random = random;
+			this.index = new TargetingIndex(playernum, RLAgent.ENEMY_PLAYERNUM);
+		}
+
+		@Override
+		public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+			index.clear();
+			return middleStep(stateView, historyView);
+		}
+
+		@Override
+		public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+			int turnNumber = stateView.getTurnNumber();
+			if (turnNumber > 0) {
+				index.applyTurn(historyView, turnNumber - 1);
+			}
+			check(stateView, historyView, turnNumber);
+
+			Map<Integer, Action> actions = new HashMap<Integer, Action>();
+			List<Integer> enemies = stateView.getUnitIds(RLAgent.ENEMY_PLAYERNUM);
+			for (int footmanId : stateView.getUnitIds(playernum)) {
+				if (!enemies.isEmpty() && (turnNumber == 0 || random.nextInt(4) == 0)) {
+					int enemyId = enemies.get(random.nextInt(enemies.size()));
+					actions.put(footmanId, Action.createCompoundAttack(footmanId, enemyId));
+				}
+			}
+			return actions;
+		}
+
+		private void check(State.StateView stateView, History.HistoryView historyView, int turnNumber) {
+			// Every order and death so far, applied from the start of the episode
+			Map<Integer, Integer> targets = new HashMap<Integer, Integer>();
+			Map<Integer, Boolean> allied = new HashMap<Integer, Boolean>();
+			for (int turn = 0; turn < turnNumber; turn++) {
+				rescanCommands(historyView.getCommandsIssued(playernum, turn), true, targets, allied);
+				rescanCommands(historyView.getCommandsIssued(RLAgent.ENEMY_PLAYERNUM, turn), false, targets, allied);
+				for (DeathLog deathLog : historyView.getDeathLogs(turn)) {
+					targets.put(deathLog.getDeadUnitID(), -1);
+					allied.put(deathLog.getDeadUnitID(), deathLog.getController() == playernum);
+				}
+			}
+			Map<Integer, Integer> alliedAttackers = new HashMap<Integer, Integer>();
+			for (Map.Entry<Integer, Integer> target : targets.entrySet()) {
+				if (allied.get(target.getKey()) && target.getValue() >= 0) {
+					Integer count = alliedAttackers.get(target.getValue());
+					alliedAttackers.put(target.getValue(), count == null ? 1 : count + 1);
+				}
+			}
+
+			for (int unitId : stateView.getAllUnitIds()) {
+				Integer expectedTarget = targets.get(unitId);
+				int expected = expectedTarget == null ? -1 : expectedTarget;
+				if (index.targetOf(unitId) != expected) {
+					mismatches.add("turn " + turnNumber + ": unit " + unitId + " targets " + index.targetOf(unitId)
+							+ ", rescan says " + expected);
+				}
+				Integer expectedCount = alliedAttackers.get(unitId);
+				int expectedAttackers = expectedCount == null ? 0 : expectedCount;
+				if (index.alliedAttackersOn(unitId) != expectedAttackers) {
+					mismatches.add("turn " + turnNumber + ": " + index.alliedAttackersOn(unitId) + " footmen on unit "
+							+ unitId + ", rescan says " + expectedAttackers);
+				}
+			}
+
+			// The baseline's scan only saw orders issued on the last turn, and must see exactly the same ones
+			if (turnNumber > 0) {
+				Map<Integer, Action> lastCommands = historyView.getCommandsIssued(RLAgent.ENEMY_PLAYERNUM, turnNumber - 1);
+				for (int enemyId : stateView.getUnitIds(RLAgent.ENEMY_PLAYERNUM)) {
+					Action command = lastCommands.get(enemyId);
+					int expected = command instanceof TargetedAction ? ((TargetedAction) command).getTargetId() : -1;
+					if (index.orderedTargetOf(enemyId) != expected) {
+						mismatches.add("turn " + turnNumber + ": enemy " + enemyId + " was ordered onto "
+								+ index.orderedTargetOf(enemyId) + ", last turn's order says " + command);
+					}
+				}
+			}
+			turnsChecked++;
+		}
+
+		private static void rescanCommands(Map<Integer, Action> commands, boolean ally, Map<Integer, Integer> targets,
+				Map<Integer, Boolean> allied) {
+			for (Map.Entry<Integer, Action> command : commands.entrySet()) {
+				Action action = command.getValue();
+				targets.put(command.getKey(), action instanceof TargetedAction ? ((TargetedAction) action).getTargetId() : -1);
+				allied.put(command.getKey(), ally);
+			}
+		}
+
+		@Override
+		public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+		}
+
+		@Override
+		public void savePlayerData(OutputStream outputStream) {
+		}
+
+		@Override
+		public void loadPlayerData(InputStream inputStream) {
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TrajectoryRecorderTest {
+
+	private static final String[] FEATURES = { "constant", "distance" };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recordsAreReadBack() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("trajectories.bin");
+		TrajectoryRecorder recorder = new TrajectoryRecorder(path, FEATURES);
+		recorder.record(1, 2, new double[] { 1, 0.5 }, -3, new double[] { 9, 1, 0.25, 1, 0.75 }, 1, 2);
+		recorder.record(3, 4, new double[] { 1, 2 }, 10, new double[0], 0, 0);
+		assertEquals(2, recorder.records());
+		recorder.close();
+
+		OfflineTrainer.TrajectoryLog log = OfflineTrainer.TrajectoryLog.open(path);
+		assertArrayEquals(FEATURES, log.featureNames);
+		assertEquals(2, log.offsets.length);
+		assertRecord(log, 0, 1, 2, -3, new float[] { 1, 0.5f }, new float[] { 1, 0.25f, 1, 0.75f });
+		assertRecord(log, 1, 3, 4, 10, new float[] { 1, 2 }, new float[0]);
+	}
+
+	@Test
+	public void reopeningCutsOffATornRecord() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("trajectories.bin");
+		TrajectoryRecorder recorder = new TrajectoryRecorder(path, FEATURES);
+		recorder.record(1, 2, new double[] { 1, 0.5 }, -3, new double[] { 1, 0.25 }, 0, 1);
+		recorder.record(3, 4, new double[] { 1, 2 }, 10, new double[] { 1, 4 }, 0, 1);
+		recorder.close();
+		// A crash part way through writing the second record
+		RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+		try {
+			file.setLength(file.length() - 6);
+		} finally {
+			file.close();
+		}
+
+		recorder = new TrajectoryRecorder(path, FEATURES);
+		recorder.record(5, 6, new double[] { 1, 3 }, 7, new double[0], 0, 0);
+		recorder.close();
+
+		OfflineTrainer.TrajectoryLog log = OfflineTrainer.TrajectoryLog.open(path);
+		assertEquals(2, log.offsets.length);
+		assertRecord(log, 0, 1, 2, -3, new float[] { 1, 0.5f }, new float[] { 1, 0.25f });
+		assertRecord(log, 1, 5, 6, 7, new float[] { 1, 3 }, new float[0]);
+		assertEquals(log.offsets[1] + 16 + 4 * FEATURES.length, Files.size(path));
+	}
+
+	@Test(expected = IOException.class)
+	public void logsOfOtherFeaturesAreNotAppendedTo() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("trajectories.bin");
+		new TrajectoryRecorder(path, FEATURES).close();
+		new TrajectoryRecorder(path, new String[] { "constant" });
+	}
+
+	private static void assertRecord(OfflineTrainer.TrajectoryLog log, int record, int attackerId, int defenderId,
+			float reward, float[] features, float[] nextFeatures) {
+		ByteBuffer buffer = log.buffer;
+		int position = log.offsets[record];
+		assertEquals(attackerId, buffer.getInt(position));
+		assertEquals(defenderId, buffer.getInt(position + 4));
+		assertEquals(reward, buffer.getFloat(position + 8), 0f);
+		assertEquals(nextFeatures.length / features.length, buffer.getInt(position + 12));
+		position += 16;
+		for (float feature : features) {
+			assertEquals(feature, buffer.getFloat(position), 0f);
+			position += 4;
+		}
+		for (float feature : nextFeatures) {
+			assertEquals(feature, buffer.getFloat(position), 0f);
+			position += 4;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WeightCheckpointerTest {
+
+	private static final String[] NAMES = { "constant", "distance", "health", "numbers", "isAttackingSelf" };
+	private static final double[] WEIGHTS = { 0.25, -1.5e-7, Double.MAX_VALUE, -0.0, 3.0 };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void versionTwoRoundTrip() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("weights.bin");
+		WeightCheckpointer.write(path, WEIGHTS, NAMES, 1234);
+
+		WeightCheckpointer.Checkpoint checkpoint = WeightCheckpointer.load(path);
+		assertArrayEquals(WEIGHTS, checkpoint.weights, 0.0);
+		assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(checkpoint.weights[3]));
+		assertArrayEquals(NAMES, checkpoint.featureNames);
+		assertEquals(1234, checkpoint.episodesPlayed);
+		assertArrayEquals(WEIGHTS, WeightCheckpointer.read(path), 0.0);
+		assertTrue("The temporary file was left behind", !Files.exists(path.resolveSibling("weights.bin.tmp")));
+	}
+
+	@Test
+	public void backgroundCheckpointIsOnDiskAfterClose() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("nested/weights.bin");
+		WeightCheckpointer checkpointer = new WeightCheckpointer(path, NAMES, 2, 3600);
+		double[] weights = WEIGHTS.clone();
+		checkpointer.episodeFinished(weights, 1);
+		weights[0] = 7.0;
+		checkpointer.episodeFinished(weights, 2);
+		// The checkpoint is a copy, so later changes are not written
+		weights[0] = 8.0;
+		checkpointer.close();
+
+		WeightCheckpointer.Checkpoint checkpoint = WeightCheckpointer.load(path);
+		assertEquals(7.0, checkpoint.weights[0], 0.0);
+		assertEquals(2, checkpoint.episodesPlayed);
+	}
+
+	@Test
+	public void everyCorruptedByteIsDetected() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("weights.bin");
+		WeightCheckpointer.write(path, WEIGHTS, NAMES, 99);
+		byte[] bytes = Files.readAllBytes(path);
+
+		for (int i = 0; i < bytes.length; i++) {
+			byte[] corrupted = bytes.clone();
+			corrupted[i] ^= 0x10;
+			Files.write(path, corrupted);
+			try {
+				WeightCheckpointer.load(path);
+				fail("Flipping a bit of byte " + i + " was not detected");
+			} catch (IOException expected) {
+				// The header checks or the CRC catch it
+			}
+		}
+	}
+
+	@Test
+	public void truncatedCheckpointIsRejected() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("weights.bin");
+		WeightCheckpointer.write(path, WEIGHTS, NAMES, 99);
+		byte[] bytes = Files.readAllBytes(path);
+		Files.write(path, Arrays.copyOf(bytes, bytes.length - 12));
+		try {
+			WeightCheckpointer.load(path);
+			fail("A truncated checkpoint was loaded");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().contains("truncated"));
+		}
+	}
+
+	@Test
+	public void versionOneCheckpointLoadsWithoutNames() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 8 + 4 + 8 * WEIGHTS.length + 8);
+		buffer.putInt(WeightCheckpointer.MAGIC);
+		buffer.putInt(1);
+		buffer.putLong(5);
+		buffer.putInt(WEIGHTS.length);
+		for (double weight : WEIGHTS) {
+			buffer.putDouble(weight);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		buffer.putLong(crc.getValue());
+		Path path = folder.getRoot().toPath().resolve("v1.bin");
+		Files.write(path, buffer.array());
+
+		WeightCheckpointer.Checkpoint checkpoint = WeightCheckpointer.load(path);
+		assertArrayEquals(WEIGHTS, checkpoint.weights, 0.0);
+		assertNull(checkpoint.featureNames);
+		assertEquals(5, checkpoint.episodesPlayed);
+	}
+}